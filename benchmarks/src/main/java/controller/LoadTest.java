@@ -0,0 +1,406 @@
+package controller;
+
+import javafx.scene.control.TreeItem;
+import model.BatchTagger;
+import model.FileManager;
+import model.LibraryGenerator;
+import model.LogManager;
+import model.OperationJournal;
+import model.TagIndex;
+import model.TagManager;
+import model.TagQuery;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.lang.management.MemoryType;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * Times the main flows of the app end to end over a library made by {@link LibraryGenerator},
+ * without a screen. The JavaFX tree can't be created headlessly, so each flow runs the work behind
+ * it, the same way the app does:
+ *
+ * <ul>
+ *   <li>reloadTree: list the root folder and load the tag index, rebuilt from disk (cold) or read
+ *       from the saved index (warm), as {@link TreeManager#reloadTree(File)} does;
+ *   <li>expandAll: list every folder, the cost of expanding the whole tree;
+ *   <li>reloadTreeFiltered: look the images up and build the filtered tree, by tag or by query;
+ *   <li>bulkTag: add and then remove a tag on a batch of images;
+ *   <li>tagRename: rename a tag across the library and back;
+ *   <li>move: move single images to another folder and back, one sample per image.
+ * </ul>
+ *
+ * <p>Every flow runs a few warmup times and then {@code runs} times, and the report shows the
+ * median and 99th percentile latency and the peak heap in use during the flow. Options, with their
+ * defaults:
+ *
+ * <pre>
+ *   --out=DIR          the folder given to the generator (required)
+ *   --runs=20          timed runs per flow
+ *   --warmup=2         untimed runs per flow, the first ones also migrate history.txt
+ *   --batch=1000       images per bulk tag run
+ *   --moves=200        images moved per move run
+ *   --tag=tag0         tag to filter by
+ *   --query=...        query to filter by, default "tag1 and not tag2 or tag3*"
+ *   --rename=tag10     tag to rename
+ *   --json=FILE        also write the report as JSON
+ * </pre>
+ *
+ * <p>The flows change the library but leave it as it was, apart from its history and log.
+ */
+public final class LoadTest {
+  private static final String BULK_TAG = "loadtest";
+
+  private final File home;
+  private final File root;
+  private final int runs;
+  private final int warmup;
+  private final int batch;
+  private final int moves;
+  private final String tag;
+  private final String query;
+  private final String rename;
+  private final Random random = new Random(42);
+
+  private final DirectoryScanner scanner =
+      new DirectoryScanner(Runtime.getRuntime().availableProcessors());
+  private final TagIndex tagIndex;
+  private final TagManager tagManager;
+  private final BatchTagger batchTagger;
+  private final ArrayList<Result> results = new ArrayList<>();
+
+  /**
+   * Instantiates a new Load test.
+   *
+   * @param options the options by name, see the class comment
+   */
+  LoadTest(Map<String, String> options) {
+    if (!options.containsKey("out")) {
+      throw new IllegalArgumentException("--out is required.");
+    }
+    home = new File(options.get("out"));
+    root = new File(home, "library");
+    if (!root.isDirectory()) {
+      throw new IllegalArgumentException(root + " is not a library made by LibraryGenerator.");
+    }
+    runs = Integer.parseInt(options.getOrDefault("runs", "20"));
+    warmup = Integer.parseInt(options.getOrDefault("warmup", "2"));
+    batch = Integer.parseInt(options.getOrDefault("batch", "1000"));
+    moves = Integer.parseInt(options.getOrDefault("moves", "200"));
+    tag = options.getOrDefault("tag", "tag0");
+    query = options.getOrDefault("query", "tag1 and not tag2 or tag3*");
+    rename = options.getOrDefault("rename", "tag10");
+
+    tagIndex = new TagIndex(new File(home, "tag_index.txt").getPath());
+    tagManager = new TagManager(new File(home, "tags.txt").getPath());
+    LogManager logManager = new LogManager(new File(home, "log.txt").getPath());
+    batchTagger = new BatchTagger(logManager, Runtime.getRuntime().availableProcessors());
+    FileManager.setTagIndex(tagIndex);
+    FileManager.setOperationJournal(
+        new OperationJournal(new File(home, "operations.journal").getPath(), logManager));
+  }
+
+  /**
+   * Run all flows.
+   *
+   * @throws Exception if a flow fails
+   */
+  void run() throws Exception {
+    File savedIndex = new File(home, "tag_index.txt");
+    measure(
+        "reloadTree.cold",
+        () -> {
+          savedIndex.delete();
+          return reloadTree();
+        });
+    measure("reloadTree.warm", this::reloadTree);
+    measure("expandAll", this::expandAll);
+
+    ArrayList<String> tags = new ArrayList<>(Collections.singletonList(tag));
+    measure("reloadTreeFiltered.tag", () -> FilteredTree.build(root, tagIndex.getImages(tags)));
+    TagQuery tagQuery = new TagQuery(query, tagManager.getRegistry(), tagIndex.getTags());
+    measure(
+        "reloadTreeFiltered.query",
+        () -> FilteredTree.build(root, tagQuery.filter(tagIndex.getImages())));
+
+    measureBulkTag();
+    measureTagRename();
+    measureMove();
+  }
+
+  /**
+   * List the root folder and load the tag index, like loading a folder in the app.
+   *
+   * @return the listed children of root
+   */
+  private Object reloadTree() {
+    scanner.cancel();
+    ArrayList<?> children = scanner.list(root).join();
+    tagIndex.load(root);
+    return children;
+  }
+
+  /**
+   * List every folder, a level at a time with the folders of one level listed together, like
+   * expanding the whole tree in the app.
+   *
+   * @return the number of listed images and folders
+   */
+  private Object expandAll() {
+    scanner.cancel();
+    ArrayList<CompletableFuture<ArrayList<TreeItem<File>>>> level = new ArrayList<>();
+    level.add(scanner.list(root));
+    int count = 0;
+    while (!level.isEmpty()) {
+      ArrayList<CompletableFuture<ArrayList<TreeItem<File>>>> next = new ArrayList<>();
+      for (CompletableFuture<ArrayList<TreeItem<File>>> listing : level) {
+        for (TreeItem<File> child : listing.join()) {
+          count++;
+          if (((LazyFileTreeItem) child).isDirectory()) {
+            next.add(scanner.list(child.getValue()));
+          }
+        }
+      }
+      level = next;
+    }
+    return count;
+  }
+
+  /**
+   * Time adding a tag to a batch of images, and removing it again, as two flows.
+   *
+   * @throws Exception if tagging fails
+   */
+  private void measureBulkTag() throws Exception {
+    Result add = new Result("bulkTag.add");
+    Result remove = new Result("bulkTag.remove");
+    for (int i = 0; i < warmup + runs; i++) {
+      List<String> images = sample(batch);
+      long start = System.nanoTime();
+      Map<String, String> tagged = batchTagger.tag(images, BULK_TAG, true, done -> {}).get();
+      add.record(i >= warmup, start);
+
+      start = System.nanoTime();
+      batchTagger.tag(new ArrayList<>(tagged.values()), BULK_TAG, false, done -> {}).get();
+      remove.record(i >= warmup, start);
+    }
+    report(add);
+    report(remove);
+  }
+
+  /**
+   * Time renaming a tag across the library and back, one sample per direction.
+   *
+   * @throws Exception if renaming fails
+   */
+  private void measureTagRename() throws Exception {
+    Result result = new Result("tagRename");
+    String renamed = rename + "_renamed";
+    for (int i = 0; i < warmup + runs; i++) {
+      long start = System.nanoTime();
+      tagManager.renameTag(rename, renamed, tagIndex, batchTagger, done -> {}).get();
+      result.record(i >= warmup, start);
+
+      start = System.nanoTime();
+      tagManager.renameTag(renamed, rename, tagIndex, batchTagger, done -> {}).get();
+      result.record(i >= warmup, start);
+    }
+    report(result);
+  }
+
+  /**
+   * Time moving single images to another folder and back, one sample per move.
+   *
+   * @throws IOException if the folder for moved images can't be made
+   */
+  private void measureMove() throws IOException {
+    Result result = new Result("move");
+    File target = new File(root, "loadtest-moved");
+    Files.createDirectories(target.toPath());
+    for (int i = 0; i < warmup + runs; i++) {
+      for (String image : sample(moves)) {
+        File file = new File(image);
+        long start = System.nanoTime();
+        FileManager moved = new FileManager(image);
+        moved.moveImage(new File(target, file.getName()).getPath());
+        result.record(i >= warmup, start);
+
+        start = System.nanoTime();
+        moved.moveImage(image);
+        result.record(i >= warmup, start);
+      }
+    }
+    Files.delete(target.toPath());
+    report(result);
+  }
+
+  /**
+   * Time a flow that returns something, so the work can't be skipped.
+   *
+   * @param name the name of flow
+   * @param flow the flow
+   * @throws Exception if the flow fails
+   */
+  private void measure(String name, Callable<Object> flow) throws Exception {
+    Result result = new Result(name);
+    for (int i = 0; i < warmup + runs; i++) {
+      long start = System.nanoTime();
+      if (flow.call() == null) {
+        throw new IllegalStateException(name + " returned nothing.");
+      }
+      result.record(i >= warmup, start);
+    }
+    report(result);
+  }
+
+  /**
+   * Pick random images from the tag index.
+   *
+   * @param count the number of images
+   * @return the paths of images, in a random order
+   */
+  private List<String> sample(int count) {
+    ArrayList<String> images = tagIndex.getImages();
+    Collections.shuffle(images, random);
+    return images.subList(0, Math.min(count, images.size()));
+  }
+
+  /**
+   * Print the result of a flow and keep it for the JSON report.
+   *
+   * @param result the result of flow
+   */
+  private void report(Result result) {
+    results.add(result);
+    System.out.printf(
+        "%-26s %8d %10.2f %10.2f %10.2f %10.1f%n",
+        result.name,
+        result.count,
+        result.percentile(0.5),
+        result.percentile(0.99),
+        result.percentile(1),
+        result.peakHeap / 1048576.0);
+  }
+
+  /**
+   * Write the results as JSON.
+   *
+   * @param path the path of JSON file
+   * @throws IOException if the file can't be written
+   */
+  private void writeJson(String path) throws IOException {
+    try (PrintWriter writer = new PrintWriter(path, "UTF-8")) {
+      writer.println("[");
+      for (int i = 0; i < results.size(); i++) {
+        Result result = results.get(i);
+        writer.printf(
+            "  {\"flow\": \"%s\", \"samples\": %d, \"p50Ms\": %.3f, \"p99Ms\": %.3f,"
+                + " \"maxMs\": %.3f, \"peakHeapBytes\": %d}%s%n",
+            result.name,
+            result.count,
+            result.percentile(0.5),
+            result.percentile(0.99),
+            result.percentile(1),
+            result.peakHeap,
+            i + 1 < results.size() ? "," : "");
+      }
+      writer.println("]");
+    }
+  }
+
+  /**
+   * The entry point of the load test.
+   *
+   * @param args the options, see the class comment
+   * @throws Exception if a flow fails
+   */
+  public static void main(String[] args) throws Exception {
+    Map<String, String> options = LibraryGenerator.parseOptions(args);
+    LoadTest loadTest = new LoadTest(options);
+    System.out.printf(
+        "%-26s %8s %10s %10s %10s %10s%n",
+        "flow", "samples", "p50 ms", "p99 ms", "max ms", "heap MB");
+    loadTest.run();
+    if (options.containsKey("json")) {
+      loadTest.writeJson(options.get("json"));
+    }
+    System.exit(0);
+  }
+
+  /**
+   * The latencies of one flow and the peak heap in use while it ran. The peak is the sum of the
+   * peaks of the heap memory pools, which were reset when the flow started.
+   */
+  private static class Result {
+    private final String name;
+    private long[] samples = new long[64];
+    private int count = 0;
+    private long peakHeap;
+
+    /**
+     * Instantiates a new Result, starting to track the peak heap.
+     *
+     * @param name the name of flow
+     */
+    Result(String name) {
+      this.name = name;
+      System.gc();
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          pool.resetPeakUsage();
+        }
+      }
+    }
+
+    /**
+     * Record a sample that started at a time, and update the peak heap.
+     *
+     * @param timed false for a warmup run, which is not recorded
+     * @param start the start time from System.nanoTime
+     */
+    void record(boolean timed, long start) {
+      long elapsed = System.nanoTime() - start;
+      if (!timed) {
+        return;
+      }
+      if (count == samples.length) {
+        samples = Arrays.copyOf(samples, count * 2);
+      }
+      samples[count++] = elapsed;
+      long peak = 0;
+      for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+        if (pool.getType() == MemoryType.HEAP) {
+          peak += pool.getPeakUsage().getUsed();
+        }
+      }
+      peakHeap = Math.max(peakHeap, peak);
+    }
+
+    /**
+     * Get a percentile of the latencies, by the nearest rank.
+     *
+     * @param fraction the percentile as a fraction, e.g. 0.99
+     * @return the latency in milliseconds, 0 if there are no samples
+     */
+    double percentile(double fraction) {
+      if (count == 0) {
+        return 0;
+      }
+      long[] sorted = Arrays.copyOf(samples, count);
+      Arrays.sort(sorted);
+      int rank = (int) Math.ceil(fraction * count);
+      return sorted[Math.max(rank, 1) - 1] / 1e6;
+    }
+  }
+}
@@ -0,0 +1,36 @@
+package model;
+
+import org.openjdk.jmh.results.format.ResultFormatType;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.CommandLineOptionException;
+import org.openjdk.jmh.runner.options.CommandLineOptions;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the benchmarks and always writes the results as JSON, so the results of two releases can be
+ * compared file by file. Takes the usual JMH options, e.g. {@code -rff results-1.1.json} for the
+ * result file, {@code -p names=1000} for a smaller dataset or a regex to run some benchmarks only.
+ */
+public final class BenchmarkRunner {
+  private BenchmarkRunner() {}
+
+  /**
+   * The entry point of benchmarks.
+   *
+   * @param args the JMH options
+   * @throws RunnerException if a benchmark fails
+   * @throws CommandLineOptionException if an option is not valid
+   */
+  public static void main(String[] args) throws RunnerException, CommandLineOptionException {
+    CommandLineOptions commandLine = new CommandLineOptions(args);
+    Options options =
+        new OptionsBuilder()
+            .parent(commandLine)
+            .resultFormat(ResultFormatType.JSON)
+            .result(commandLine.getResult().orElse("jmh-result.json"))
+            .build();
+    new Runner(options).run();
+  }
+}
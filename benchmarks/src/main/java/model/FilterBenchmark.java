@@ -0,0 +1,67 @@
+package model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/** Finding the images that match a tag filter. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class FilterBenchmark {
+  @Param({"1000", "100000", "1000000"})
+  public int names;
+
+  private List<String> paths;
+  private ArrayList<String> tags = new ArrayList<>(Arrays.asList("tag0", "tag1"));
+  private TagQuery query;
+
+  /** Make the image names and parse the query. */
+  @Setup
+  public void setUp() {
+    paths = Arrays.asList(SyntheticNames.paths(names, 42));
+    query = new TagQuery("(tag0 OR tag1) AND NOT tag2 AND tag1*", SyntheticNames.registry());
+  }
+
+  /**
+   * Match every image against two tags, one image after another.
+   *
+   * @return the number of matching images
+   */
+  @Benchmark
+  public int containsTag() {
+    int matching = 0;
+    for (String path : paths) {
+      if (FileManager.containsTag(path, tags)) {
+        matching++;
+      }
+    }
+    return matching;
+  }
+
+  /**
+   * Match every image against a boolean query, in parallel.
+   *
+   * @return the matching images
+   */
+  @Benchmark
+  public ArrayList<String> tagQuery() {
+    return query.filter(paths);
+  }
+}
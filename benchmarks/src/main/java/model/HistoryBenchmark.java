@@ -0,0 +1,87 @@
+package model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+/** Appending to and looking up the rename history of a folder that has many renamed images. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class HistoryBenchmark {
+  @Param({"1000", "100000", "1000000"})
+  public int names;
+
+  private File directory;
+  private HistoryJournal journal;
+  private String[] heads;
+  private Random random = new Random(42);
+  private int renames = 0;
+
+  /**
+   * Write a journal in which every image was renamed once.
+   *
+   * @throws IOException if the temporary folder can't be made
+   */
+  @Setup
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("history-benchmark").toFile();
+    journal = new HistoryJournal(directory);
+    String[] paths = SyntheticNames.paths(names, 42);
+    heads = new String[names];
+    ArrayList<String[]> batch = new ArrayList<>();
+    for (int i = 0; i < names; i++) {
+      String name = StringManipulator.convertPathToName(paths[i]);
+      heads[i] = name + " @renamed";
+      batch.add(new String[] {name, heads[i]});
+      if (batch.size() == 10000 || i == names - 1) {
+        journal.addNames(batch);
+        batch.clear();
+      }
+    }
+  }
+
+  /** Delete the journal. */
+  @TearDown
+  public void tearDown() {
+    new File(directory, "history.journal").delete();
+    new File(directory, "history.journal.tmp").delete();
+    directory.delete();
+  }
+
+  /** Record one more rename, with one append to the journal. */
+  @Benchmark
+  public void addName() {
+    renames++;
+    journal.addName("new" + renames, "new" + renames + " @renamed");
+  }
+
+  /**
+   * Look up the history of a random image.
+   *
+   * @return the names of image
+   */
+  @Benchmark
+  public ArrayList<String> getHistory() {
+    return journal.getHistory(heads[random.nextInt(heads.length)]);
+  }
+}
@@ -0,0 +1,278 @@
+package model;
+
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Random;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.IntStream;
+
+/**
+ * Creates a synthetic image library on disk, laid out like the home folder of the app: the images
+ * under {@code library/}, and {@code tags.txt} next to it. Folders are nested {@code depth} levels
+ * deep with {@code fanout} sub folders each, and the images are spread evenly over all of them.
+ * Images are empty files named like {@code IMG_0000042 @tag3 @tag17.jpg}, with tags picked from a
+ * Zipf distribution so a few tags are very common and most are rare. Some images get a name
+ * history, written to the {@code history.txt} of their folder in the old format, so the first run
+ * of the app over the library also migrates it.
+ *
+ * <p>The same options and seed always give the same library. Options, with their defaults:
+ *
+ * <pre>
+ *   --out=DIR        where to create the library (required, must not exist yet)
+ *   --depth=3        levels of sub folders under the root
+ *   --fanout=8       sub folders per folder
+ *   --files=100000   number of images
+ *   --tags=200       number of different tags
+ *   --skew=1.0       Zipf exponent of tag popularity, 0 for uniform
+ *   --max-tags=4     most tags on one image
+ *   --history=0.3    share of images that were renamed before
+ *   --seed=42        random seed
+ * </pre>
+ */
+public final class LibraryGenerator {
+  private final Path root;
+  private final int depth;
+  private final int fanout;
+  private final int files;
+  private final int maxTags;
+  private final double history;
+  private final long seed;
+  private final String[] tags;
+  // cumulative popularity of the tags, the last one is 1.
+  private final double[] popularity;
+
+  /**
+   * Instantiates a new Library generator.
+   *
+   * @param options the options by name, see the class comment
+   */
+  LibraryGenerator(Map<String, String> options) {
+    if (!options.containsKey("out")) {
+      throw new IllegalArgumentException("--out is required.");
+    }
+    root = Paths.get(options.get("out"), "library");
+    depth = Integer.parseInt(options.getOrDefault("depth", "3"));
+    fanout = Integer.parseInt(options.getOrDefault("fanout", "8"));
+    files = Integer.parseInt(options.getOrDefault("files", "100000"));
+    maxTags = Integer.parseInt(options.getOrDefault("max-tags", "4"));
+    history = Double.parseDouble(options.getOrDefault("history", "0.3"));
+    seed = Long.parseLong(options.getOrDefault("seed", "42"));
+
+    tags = new String[Integer.parseInt(options.getOrDefault("tags", "200"))];
+    popularity = new double[tags.length];
+    double skew = Double.parseDouble(options.getOrDefault("skew", "1.0"));
+    double total = 0;
+    for (int i = 0; i < tags.length; i++) {
+      tags[i] = "tag" + i;
+      total += 1 / Math.pow(i + 1, skew);
+      popularity[i] = total;
+    }
+    for (int i = 0; i < tags.length; i++) {
+      popularity[i] /= total;
+    }
+  }
+
+  /**
+   * Create the library.
+   *
+   * @return the number of images with a history
+   * @throws IOException if the library can't be written
+   */
+  int generate() throws IOException {
+    if (Files.exists(root)) {
+      throw new IOException(root + " already exists.");
+    }
+    ArrayList<Path> folders = new ArrayList<>();
+    folders.add(root);
+    for (int level = 0, first = 0; level < depth; level++) {
+      int last = folders.size();
+      for (int parent = first; parent < last; parent++) {
+        for (int child = 0; child < fanout; child++) {
+          folders.add(folders.get(parent).resolve("folder" + child));
+        }
+      }
+      first = last;
+    }
+    for (Path folder : folders) {
+      Files.createDirectories(folder);
+    }
+
+    // every folder gets its own random source, so they can be filled at the same time.
+    AtomicInteger renamed = new AtomicInteger();
+    try {
+      IntStream.range(0, folders.size())
+          .parallel()
+          .forEach(
+              f -> {
+                int from = (int) ((long) files * f / folders.size());
+                int to = (int) ((long) files * (f + 1) / folders.size());
+                renamed.addAndGet(fillFolder(folders.get(f), from, to, new Random(seed + f)));
+              });
+    } catch (UncheckedIOException e) {
+      throw e.getCause();
+    }
+    Files.write(root.resolveSibling("tags.txt"), Arrays.asList(tags));
+    return renamed.get();
+  }
+
+  /**
+   * Create the images of one folder and its history.txt.
+   *
+   * @param folder the folder
+   * @param from the number of first image
+   * @param to the number after the last image
+   * @param random the random source of this folder
+   * @return the number of images with a history
+   */
+  private int fillFolder(Path folder, int from, int to, Random random) {
+    ArrayList<String> history = new ArrayList<>();
+    int renamed = 0;
+    try {
+      for (int i = from; i < to; i++) {
+        String[] imageTags = pickTags(random);
+        String base = String.format("IMG_%07d", i);
+        String name = withTags(base, imageTags, imageTags.length);
+        Files.createFile(folder.resolve(name + ".jpg"));
+        if (random.nextDouble() < this.history) {
+          addHistory(history, base, imageTags, random);
+          renamed++;
+        }
+      }
+      if (!history.isEmpty()) {
+        try (BufferedWriter writer = Files.newBufferedWriter(folder.resolve("history.txt"))) {
+          for (String line : history) {
+            writer.write(line);
+            writer.write('\n');
+          }
+        }
+      }
+    } catch (IOException e) {
+      throw new UncheckedIOException(e);
+    }
+    return renamed;
+  }
+
+  /**
+   * Add the name history of an image: it got its tags one at a time, and some images were renamed
+   * from the camera name first.
+   *
+   * @param history the lines of history.txt: names from newest to oldest, then an empty line
+   * @param base the name of image without tags
+   * @param imageTags the tags of image
+   * @param random the random source
+   */
+  private static void addHistory(
+      ArrayList<String> history, String base, String[] imageTags, Random random) {
+    for (int count = imageTags.length; count >= 0; count--) {
+      history.add(withTags(base, imageTags, count));
+    }
+    if (imageTags.length == 0 || random.nextBoolean()) {
+      history.add("DSC" + base.substring(3));
+    }
+    history.add("");
+  }
+
+  /**
+   * Pick the tags of an image, without repeats.
+   *
+   * @param random the random source
+   * @return the tags
+   */
+  private String[] pickTags(Random random) {
+    int count = Math.min(random.nextInt(maxTags + 1), tags.length);
+    String[] picked = new String[count];
+    for (int i = 0; i < count; i++) {
+      String tag;
+      do {
+        tag = pickTag(random);
+      } while (contains(picked, i, tag));
+      picked[i] = tag;
+    }
+    return picked;
+  }
+
+  /**
+   * Pick a tag by popularity.
+   *
+   * @param random the random source
+   * @return the tag
+   */
+  private String pickTag(Random random) {
+    int index = Arrays.binarySearch(popularity, random.nextDouble());
+    return tags[Math.min(index < 0 ? -index - 1 : index, tags.length - 1)];
+  }
+
+  /**
+   * Check if a tag was picked already.
+   *
+   * @param picked the tags picked so far
+   * @param count the number of tags picked so far
+   * @param tag the tag
+   * @return true if picked, else false
+   */
+  private static boolean contains(String[] picked, int count, String tag) {
+    for (int i = 0; i < count; i++) {
+      if (picked[i].equals(tag)) {
+        return true;
+      }
+    }
+    return false;
+  }
+
+  /**
+   * Get the name of an image with its first tags.
+   *
+   * @param base the name without tags
+   * @param imageTags the tags
+   * @param count the number of tags to add
+   * @return the name, without extension
+   */
+  private static String withTags(String base, String[] imageTags, int count) {
+    StringBuilder name = new StringBuilder(base);
+    for (int i = 0; i < count; i++) {
+      name.append(" @").append(imageTags[i]);
+    }
+    return name.toString();
+  }
+
+  /**
+   * Read options of the form {@code --name=value}.
+   *
+   * @param args the command line arguments
+   * @return the options by name
+   */
+  public static Map<String, String> parseOptions(String[] args) {
+    HashMap<String, String> options = new HashMap<>();
+    for (String arg : args) {
+      int equals = arg.indexOf('=');
+      if (!arg.startsWith("--") || equals == -1) {
+        throw new IllegalArgumentException("Options look like --name=value, not " + arg + ".");
+      }
+      options.put(arg.substring(2, equals), arg.substring(equals + 1));
+    }
+    return options;
+  }
+
+  /**
+   * The entry point of the generator.
+   *
+   * @param args the options, see the class comment
+   * @throws IOException if the library can't be written
+   */
+  public static void main(String[] args) throws IOException {
+    long start = System.nanoTime();
+    LibraryGenerator generator = new LibraryGenerator(parseOptions(args));
+    int renamed = generator.generate();
+    System.out.printf(
+        "Created %d images (%d with history) under %s in %.1f s.%n",
+        generator.files, renamed, generator.root, (System.nanoTime() - start) / 1e9);
+  }
+}
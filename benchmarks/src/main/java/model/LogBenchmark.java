@@ -0,0 +1,82 @@
+package model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.util.concurrent.TimeUnit;
+
+/** Writing the log and the tag set, the two txt files the app keeps in the home folder. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class LogBenchmark {
+  @Param({"1000", "100000", "1000000"})
+  public int names;
+
+  private File directory;
+  private String[] paths;
+  private LogManager logManager;
+  private TagManager tagManager;
+  private int next = 0;
+
+  /**
+   * Make a log and a tag set with as many tags as names.
+   *
+   * @throws IOException if the temporary folder can't be made
+   */
+  @Setup(Level.Trial)
+  public void setUp() throws IOException {
+    directory = Files.createTempDirectory("log-benchmark").toFile();
+    paths = SyntheticNames.paths(names, 42);
+    logManager = new LogManager(new File(directory, "log.txt").getPath());
+    tagManager = new TagManager(new File(directory, "tags.txt").getPath());
+    for (int i = 0; i < names; i++) {
+      tagManager.addInfo(SyntheticNames.tag(i));
+    }
+  }
+
+  /** Close the log and delete the folder. */
+  @TearDown(Level.Trial)
+  public void tearDown() {
+    logManager.writeInfo();
+    File[] files = directory.listFiles();
+    if (files != null) {
+      for (File file : files) {
+        file.delete();
+      }
+    }
+    directory.delete();
+  }
+
+  /** Log the rename of one image. */
+  @Benchmark
+  public void addInfo() {
+    String path = paths[next];
+    next = (next + 1) % paths.length;
+    logManager.addInfo(path, path.replace(".jpg", " @renamed.jpg"));
+  }
+
+  /** Write all tags into tags.txt. */
+  @Benchmark
+  @OutputTimeUnit(TimeUnit.MILLISECONDS)
+  public void writeTags() {
+    tagManager.writeInfo();
+  }
+}
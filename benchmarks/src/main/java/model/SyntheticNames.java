@@ -0,0 +1,71 @@
+package model;
+
+import java.util.Random;
+
+/**
+ * Synthetic image paths for benchmarks. Images are spread over folders of 500, and have up to four
+ * tags each, picked so a few tags are very common and most are rare, like in a real library.
+ */
+final class SyntheticNames {
+  /** Number of different tags. */
+  static final int TAGS = 200;
+
+  private SyntheticNames() {}
+
+  /**
+   * Get the name of a tag.
+   *
+   * @param index the number of tag
+   * @return the name of tag
+   */
+  static String tag(int index) {
+    return "tag" + index;
+  }
+
+  /**
+   * Make image paths.
+   *
+   * @param count the number of paths
+   * @param seed the seed, the same seed gives the same paths
+   * @return the paths
+   */
+  static String[] paths(int count, long seed) {
+    Random random = new Random(seed);
+    String[] paths = new String[count];
+    StringBuilder path = new StringBuilder();
+    for (int i = 0; i < count; i++) {
+      path.setLength(0);
+      path.append("/library/folder").append(i / 500).append("/IMG_").append(i);
+      int tags = random.nextInt(5);
+      for (int t = 0; t < tags; t++) {
+        path.append(" @").append(tag(pickTag(random)));
+      }
+      paths[i] = path.append(".jpg").toString();
+    }
+    return paths;
+  }
+
+  /**
+   * Make a registry with all tags.
+   *
+   * @return the tag registry
+   */
+  static TagRegistry registry() {
+    TagRegistry registry = new TagRegistry();
+    for (int i = 0; i < TAGS; i++) {
+      registry.add(tag(i));
+    }
+    return registry;
+  }
+
+  /**
+   * Pick a tag, low numbers much more often than high numbers.
+   *
+   * @param random the random source
+   * @return the number of tag
+   */
+  static int pickTag(Random random) {
+    double skewed = random.nextDouble();
+    return (int) (TAGS * skewed * skewed * skewed);
+  }
+}
@@ -0,0 +1,76 @@
+package model;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/** Parsing the tags of every image name in a library. */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class TagParsingBenchmark {
+  @Param({"1000", "100000", "1000000"})
+  public int names;
+
+  private String[] paths;
+  private TagRegistry registry;
+
+  /** Make the image names. */
+  @Setup
+  public void setUp() {
+    paths = SyntheticNames.paths(names, 42);
+    registry = SyntheticNames.registry();
+  }
+
+  /**
+   * Parse the tags of every image into strings.
+   *
+   * @param blackhole keeps the results alive
+   */
+  @Benchmark
+  public void getImageTags(Blackhole blackhole) {
+    for (String path : paths) {
+      blackhole.consume(FileManager.getImageTags(path));
+    }
+  }
+
+  /**
+   * Parse the tags of every image into tag ids.
+   *
+   * @param blackhole keeps the results alive
+   */
+  @Benchmark
+  public void getImageTagSet(Blackhole blackhole) {
+    for (String path : paths) {
+      blackhole.consume(FileManager.getImageTagSet(path, registry));
+    }
+  }
+
+  /**
+   * Count the tags of every image without looking at them.
+   *
+   * @return the number of tags
+   */
+  @Benchmark
+  public long countTags() {
+    long tags = 0;
+    for (String path : paths) {
+      tags += TagParser.count(path);
+    }
+    return tags;
+  }
+}
@@ -1,23 +1,39 @@
 package controller;
 
+import javafx.application.Platform;
 import javafx.collections.FXCollections;
 import javafx.collections.ObservableList;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
+import javafx.scene.control.Button;
+import javafx.scene.control.TextField;
 import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.GridPane;
+import javafx.scene.layout.HBox;
+import javafx.scene.layout.Priority;
+import javafx.scene.layout.VBox;
 import javafx.stage.DirectoryChooser;
 import javafx.stage.Stage;
+import model.BatchTagger;
 import model.FileManager;
+import model.LogIndex;
 import model.LogManager;
 import model.TagManager;
+import model.TagQuery;
+import model.TagStore;
 import view.UserInterface;
 
 import java.awt.*;
 import java.io.File;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
 import java.util.Optional;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 
 /** Actions when buttons are clicked. */
 public class  ButtonActions {
@@ -25,6 +41,15 @@ public class  ButtonActions {
   private static TagManager tagManager;
   private static TreeManager treeManager;
   private static LogManager logManager;
+  private static BatchTagger batchTagger;
+  // indexes the log and reads its rotated segments for the log dialog.
+  private static ExecutorService logReader =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "log-reader");
+            thread.setDaemon(true);
+            return thread;
+          });
 
   /**
    * Initiate controller.ButtonActions and its static variables.
@@ -40,11 +65,21 @@ public class  ButtonActions {
     ButtonActions.treeManager = treeManager;
     ButtonActions.logManager = logManager;
     ButtonActions.stage = stage;
+    ButtonActions.batchTagger =
+        new BatchTagger(logManager, Runtime.getRuntime().availableProcessors());
+    TreeManager.getOperations()
+        .setOnFailure(
+            (item, error) -> {
+              String reason = error.getMessage() != null ? error.getMessage() : error.toString();
+              showAlert("error", reason, "");
+              UserInterface.refreshTagView(item);
+            });
   }
 
   /**
    * Generate custom ToggleButton that acts as a tag for use in this project. Deletes tag from tag
-   * set when double clicked. Removes/adds tag from image if clicked once.
+   * set and all images under the loaded folder when double clicked. Removes/adds tag from image if
+   * clicked once.
    *
    * @param name name of button
    * @param item the image file
@@ -54,26 +89,25 @@ public class  ButtonActions {
   public static ToggleButton customTB(String name, TreeItem<File> item, FlowPane flow) {
     ToggleButton toggleButton = new ToggleButton(name);
 
-    /* Add tag to image when selected, remove it otherwise. */
+    /* Add tag to image when selected, remove it otherwise, in the background. */
     toggleButton.setOnAction(
         event -> {
-          try {
-            File file;
-            String newest_path = item.getValue().toString();
-            FileManager fm = new FileManager(newest_path); // newest path of file item
-            String t = toggleButton.getText();
-
-            if (toggleButton.isSelected()) {
-              file = fm.addTagToImage(t, logManager);
-            } else {
-              file = fm.deleteTagToImage(t, logManager);
-            }
-
-            treeManager.updateTreeItem(item, file);
-
-          } catch (NullPointerException e) {
+          if (item.getValue() == null) {
             System.out.println("No images loaded yet.");
+            return;
           }
+          String t = toggleButton.getText();
+          boolean selected = toggleButton.isSelected();
+          TreeManager.getOperations()
+              .submit(
+                  item,
+                  file -> {
+                    FileManager fm = new FileManager(file.getPath()); // newest path of file item
+                    return selected
+                        ? fm.addTagToImage(t, logManager)
+                        : fm.deleteTagToImage(t, logManager);
+                  },
+                  file -> treeManager.updateTreeItem(item, file));
         });
 
     /*Double click to delete tag from tag set.*/
@@ -81,33 +115,126 @@ public class  ButtonActions {
         mouseEvent -> {
           if (mouseEvent.getClickCount() == 2) {
             Alert alert =
-                genConfAlert("Delete Tag", "Are you sure that you want to delete this tag?");
+                genConfAlert(
+                    "Delete Tag",
+                    "Are you sure that you want to delete this tag from all images?");
             Optional<ButtonType> result = alert.showAndWait();
 
             if (result.isPresent() && result.get() == ButtonType.OK) {
-              try {
-                new FileManager(item.getValue().toString()).deleteTagToImage(name, logManager);
-              } catch (NullPointerException e) {
-                System.out.println("No image loaded yet.");
-              }
-              tagManager.deleteTag(name);
               flow.getChildren().remove(toggleButton);
+              renameTag(name, null);
             }
           }
         });
     return toggleButton;
   }
 
-  /** Generates a new log dialog which lists all changes */
+  /**
+   * Generates a new log dialog which lists all changes, newest first. Only the lines in view are
+   * read from log.txt, and the changes can be narrowed down to a time range. The log is indexed in
+   * the background, only the lines appended since the dialog was last opened.
+   */
   public static void viewLog() {
-    ObservableList<String> lines = FXCollections.observableArrayList(logManager.getInfo());
-    ListView<String> listView = new ListView<>(lines);
+    CompletableFuture<LogIndex> opened =
+        CompletableFuture.supplyAsync(
+            () -> {
+              try {
+                return logManager.openIndex();
+              } catch (IOException e) {
+                throw new UncheckedIOException(e);
+              }
+            },
+            logReader);
+    CompletableFuture<ArrayList<File>> segments =
+        CompletableFuture.supplyAsync(logManager::getSegments, logReader);
+    opened
+        .thenAcceptBoth(
+            segments, (logIndex, files) -> Platform.runLater(() -> showLog(logIndex, files)))
+        .exceptionally(
+            error -> {
+              Platform.runLater(() -> showAlert("error", "The log can't be read.", ""));
+              return null;
+            });
+  }
+
+  /**
+   * Show the log in a dialog, newest first. Older, rotated segments can be picked and are read
+   * when they are picked.
+   *
+   * @param current the index of log.txt
+   * @param segments the rotated segments, newest first
+   */
+  private static void showLog(LogIndex current, List<File> segments) {
+    // the index of the log or segment that is shown.
+    LogIndex[] shown = {current};
+    ListView<String> listView = new ListView<>(new LogLines(current, 0, current.size()));
+
+    ChoiceBox<String> source = new ChoiceBox<>();
+    source.getItems().add("Current log");
+    for (File segment : segments) {
+      source.getItems().add(segment.getName());
+    }
+    source.getSelectionModel().select(0);
+    source.setOnAction(
+        event -> {
+          int selected = source.getSelectionModel().getSelectedIndex();
+          if (selected <= 0) {
+            shown[0] = current;
+            listView.setItems(new LogLines(current, 0, current.size()));
+            return;
+          }
+          File segment = segments.get(selected - 1);
+          listView.setItems(FXCollections.observableArrayList("Loading..."));
+          CompletableFuture.supplyAsync(
+                  () -> {
+                    try {
+                      return LogIndex.readSegment(segment);
+                    } catch (IOException e) {
+                      throw new UncheckedIOException(e);
+                    }
+                  },
+                  logReader)
+              .whenComplete(
+                  (logIndex, error) ->
+                      Platform.runLater(
+                          () -> {
+                            if (source.getSelectionModel().getSelectedIndex() != selected) {
+                              return;
+                            }
+                            if (error != null) {
+                              listView.setItems(FXCollections.observableArrayList());
+                              showAlert("error", "The log " + segment + " can't be read.", "");
+                              return;
+                            }
+                            shown[0] = logIndex;
+                            listView.setItems(new LogLines(logIndex, 0, logIndex.size()));
+                          }));
+        });
+
+    TextField from = new TextField();
+    from.setPromptText("From (yyyy-MM-dd HH:mm:ss)");
+    TextField to = new TextField();
+    to.setPromptText("To (yyyy-MM-dd HH:mm:ss)");
+    Button filter = new Button("Filter");
+    filter.setOnAction(
+        event -> {
+          LogIndex logIndex = shown[0];
+          String start = from.getText().trim();
+          String end = to.getText().trim();
+          int first = start.isEmpty() ? 0 : logIndex.lowerBound(start);
+          int last = end.isEmpty() ? logIndex.size() : logIndex.upperBound(end);
+          listView.setItems(new LogLines(logIndex, first, last));
+        });
+
+    HBox range = new HBox(source, from, to, filter);
+    range.setSpacing(10);
+    VBox.setVgrow(listView, Priority.ALWAYS);
 
     final Stage dialog = new Stage();
     dialog.initOwner(stage);
-    Scene dialogScene = new Scene(listView);
+    Scene dialogScene = new Scene(new VBox(range, listView));
     dialog.setScene(dialogScene);
-    dialog.setWidth(700);
+    dialog.setWidth(800);
     dialog.setTitle("View Log");
     dialog.show();
   }
@@ -126,7 +253,7 @@ public class  ButtonActions {
     Optional<String> result = dialog.showAndWait();
     result.ifPresent(
         name -> {
-          if (!tagManager.getInfo().contains(name)) {
+          if (!tagManager.contains(name)) {
             tagManager.addInfo(name);
             flow.getChildren().add(customTB(name, item, flow));
             showAlert("info", "", "You have successfully added a new tag.");
@@ -178,14 +305,16 @@ public class  ButtonActions {
 
     Optional<ButtonType> result = alert.showAndWait();
 
-    if (result.isPresent() && result.get() == ButtonType.OK) {
-      File file = item.getValue();
-      String s = history.getSelectionModel().getSelectedItem();
-      System.out.println(s);
-      FileManager fm = new FileManager(file.toString());
-      file = fm.changeImageName(s, logManager);
-      treeManager.updateTreeItem(item, file);
-      UserInterface.refreshTagView(item);
+    String s = history.getSelectionModel().getSelectedItem();
+    if (result.isPresent() && result.get() == ButtonType.OK && s != null) {
+      TreeManager.getOperations()
+          .submit(
+              item,
+              file -> new FileManager(file.getPath()).changeImageName(s, logManager),
+              file -> {
+                treeManager.updateTreeItem(item, file);
+                UserInterface.refreshTagView(item);
+              });
     }
   }
 
@@ -202,11 +331,16 @@ public class  ButtonActions {
       if (!choice.isDirectory()) {
         showAlert("error", "This is not a directory.", "");
       } else {
-        String new_path = choice.toString() + "/" + item.getValue().getName();
-        new FileManager(item.getValue().getPath()).moveImage(new_path);
-        TreeManager.reloadTree();
-
-        showAlert("info", "Move File Success", "Successfully moved file to " + new_path);
+        TreeManager.getOperations()
+            .submit(
+                item,
+                file ->
+                    new FileManager(file.getPath())
+                        .moveImage(choice.toString() + "/" + file.getName()),
+                file -> {
+                  treeManager.moveTreeItem(item, file);
+                  showAlert("info", "Move File Success", "Successfully moved file to " + file);
+                });
       }
     } catch (NullPointerException e) {
       System.out.println("User cancelled select folder action.");
@@ -255,12 +389,283 @@ public class  ButtonActions {
       flow.getChildren().add(toggleButton);
     }
 
+    TextField queryField = new TextField();
+    queryField.setPromptText("or type a query, e.g. sunset AND NOT draft*");
+    VBox content = new VBox(8, flow, queryField);
+
     Alert alert = genConfAlert("Select Tags", "Please select the tags for filtering.");
-    alert.getDialogPane().setContent(flow);
+    alert.getDialogPane().setContent(content);
     Optional<ButtonType> result = alert.showAndWait();
     if (result.isPresent() && result.get() == ButtonType.OK) {
-      TreeManager.reloadTreeFiltered(selected_tags);
+      boolean filtered;
+      if (queryField.getText().trim().isEmpty()) {
+        filtered = TreeManager.reloadTreeFiltered(selected_tags);
+      } else {
+        try {
+          TagQuery query =
+              new TagQuery(
+                  queryField.getText(),
+                  tagManager.getRegistry(),
+                  TreeManager.getTagIndex().getTags());
+          filtered = TreeManager.reloadTreeFiltered(query);
+        } catch (IllegalArgumentException e) {
+          showAlert("error", e.getMessage(), "");
+          return;
+        }
+      }
+      if (!filtered) {
+        showAlert("error", "The tags of this folder are still being read, please try again.", "");
+      }
+    }
+  }
+
+  /** Add a tag to or remove it from all images selected in the tree, in the background. */
+  public static void batchTagAction() {
+    ArrayList<TreeItem<File>> items = new ArrayList<>();
+    ArrayList<String> paths = new ArrayList<>();
+    for (TreeItem<File> item : TreeManager.getTree().getSelectionModel().getSelectedItems()) {
+      if (item != null
+          && item.getValue() != null
+          && FileManager.isImage(item.getValue().getName())) {
+        items.add(item);
+        paths.add(item.getValue().getPath());
+      }
+    }
+    if (items.isEmpty()) {
+      showAlert("error", "Please select images in the tree first.", "");
+      return;
+    }
+
+    ComboBox<String> tags = new ComboBox<>(FXCollections.observableArrayList(tagManager.getInfo()));
+    ToggleGroup mode = new ToggleGroup();
+    RadioButton add = new RadioButton("Add tag");
+    add.setToggleGroup(mode);
+    add.setSelected(true);
+    RadioButton remove = new RadioButton("Remove tag");
+    remove.setToggleGroup(mode);
+
+    Alert alert =
+        genConfAlert("Tag Selected Images", "Please select a tag for " + items.size() + " images.");
+    alert.getDialogPane().setContent(new VBox(8, tags, new HBox(10, add, remove)));
+    Optional<ButtonType> result = alert.showAndWait();
+    String tag = tags.getValue();
+    if (!result.isPresent() || result.get() != ButtonType.OK || tag == null) {
+      return;
+    }
+
+    ProgressWindow progress = new ProgressWindow(stage, "Tagging Images", items.size());
+    batchTagger
+        .tag(paths, tag, add.isSelected(), progress::update)
+        .whenComplete(
+            (renamed, error) ->
+                Platform.runLater(
+                    () -> {
+                      progress.close();
+                      showBatchResult(items, renamed, error);
+                    }));
+  }
+
+  /**
+   * Update the renamed images in the tree and report how many were changed.
+   *
+   * @param items the selected tree nodes
+   * @param renamed new paths of renamed images by old path, null if the batch failed
+   * @param error the reason the batch failed, null if it didn't
+   */
+  private static void showBatchResult(
+      List<TreeItem<File>> items, Map<String, String> renamed, Throwable error) {
+    if (error != null) {
+      showAlert("error", "Tagging images failed: " + getReason(error), "");
+      return;
+    }
+    for (TreeItem<File> item : items) {
+      String newPath = renamed.get(item.getValue().getPath());
+      if (newPath != null) {
+        treeManager.updateTreeItem(item, new File(newPath));
+      }
+    }
+    refreshSelectedTagView();
+    showAlert("info", "Tagging Done", renamed.size() + " of " + items.size() + " images changed.");
+  }
+
+  /** Rename or merge a tag in all images under the loaded folder. */
+  public static void renameTagAction() {
+    ComboBox<String> tags = new ComboBox<>(FXCollections.observableArrayList(tagManager.getInfo()));
+    TextField newName = new TextField();
+    newName.setPromptText("New name, or an existing tag to merge into");
+
+    Alert alert =
+        genConfAlert("Rename Tag", "The tag is renamed in all images under the loaded folder.");
+    alert.getDialogPane().setContent(new VBox(8, tags, newName));
+    Optional<ButtonType> result = alert.showAndWait();
+    if (!result.isPresent() || result.get() != ButtonType.OK || tags.getValue() == null) {
+      return;
+    }
+    String name = newName.getText().trim();
+    if (name.isEmpty() || name.contains("@")) {
+      showAlert("error", "Please enter a new name without @.", "");
+      return;
+    }
+    if (name.equals(tags.getValue())) {
+      showAlert("error", "The new name is the same as the old one.", "");
+      return;
     }
+    renameTag(tags.getValue(), name);
+  }
+
+  /** Finish a tag rename that was interrupted when the app was closed. */
+  public static void resumeTagRename() {
+    if (!tagManager.isRenameTagPending()) {
+      return;
+    }
+    ProgressWindow progress = new ProgressWindow(stage, "Resuming Tag Rename", 0);
+    tagManager
+        .resumeRenameTag(TreeManager.getTagIndex(), batchTagger, progress::update)
+        .whenComplete(
+            (result, error) -> Platform.runLater(() -> showRenameResult(result, error, progress)));
+  }
+
+  /**
+   * Start or stop keeping the tags of the loaded folder in a tag store instead of the image names.
+   * The stored tags are written into the image names before the store is removed.
+   */
+  public static void tagStoreAction() {
+    TreeItem<File> root = TreeManager.getTree().getRoot();
+    if (root == null || root.getValue() == null) {
+      showAlert("error", "You haven't selected a folder yet", "");
+      return;
+    }
+    boolean enable = FileManager.getTagStore() == null;
+    Alert alert =
+        genConfAlert(
+            "Tag Store",
+            enable
+                ? "Keep tags in " + TagStore.FILE_NAME + " instead of renaming the images?"
+                : "Write the stored tags into the image names and stop using the tag store?");
+    Optional<ButtonType> result = alert.showAndWait();
+    if (!result.isPresent() || result.get() != ButtonType.OK) {
+      return;
+    }
+    if (!enable) {
+      exportTags(true);
+      return;
+    }
+    try {
+      TagStore store = new TagStore(root.getValue());
+      FileManager.setTagStore(store);
+      String warning =
+          store.isKeyedByPath()
+              ? " This file system can't tell a moved image from a new one, so images renamed or"
+                  + " moved outside the app lose their stored tags."
+              : "";
+      showAlert(
+          "info",
+          "Tag Store",
+          "Tags are now kept in the tag store, images are not renamed." + warning);
+    } catch (IOException e) {
+      showAlert("error", "The tag store can't be opened: " + e.getMessage(), "");
+    }
+  }
+
+  /** Write the tags in the tag store into the image names, and keep using the store. */
+  public static void exportTagsAction() {
+    if (FileManager.getTagStore() == null) {
+      showAlert("error", "The tags are in the image names already.", "");
+      return;
+    }
+    exportTags(false);
+  }
+
+  /**
+   * Write the tags in the tag store into the image names in the background.
+   *
+   * @param removeStore true to stop using the store once all names have their tags
+   */
+  private static void exportTags(boolean removeStore) {
+    TagStore store = FileManager.getTagStore();
+    ProgressWindow progress =
+        new ProgressWindow(stage, "Exporting Tags", store.getImages().size());
+    batchTagger
+        .exportTags(progress::update)
+        .whenComplete(
+            (renamed, error) ->
+                Platform.runLater(
+                    () -> {
+                      progress.close();
+                      if (error != null) {
+                        showAlert("error", "Exporting tags failed: " + getReason(error), "");
+                        return;
+                      }
+                      TreeManager.reloadTree();
+                      if (removeStore && !store.matchesNames()) {
+                        showAlert("error", "Some images can't be renamed, the store is kept.", "");
+                        return;
+                      }
+                      if (removeStore) {
+                        FileManager.setTagStore(null);
+                        store.delete();
+                      }
+                      showAlert("info", "Tags Exported", renamed.size() + " images renamed.");
+                    }));
+  }
+
+  /**
+   * Rename a tag in all images under the loaded folder in the background.
+   *
+   * @param oldTag the tag to rename
+   * @param newTag the new name of tag, null to delete it from all images
+   */
+  private static void renameTag(String oldTag, String newTag) {
+    ProgressWindow progress = new ProgressWindow(stage, "Renaming Tag", 0);
+    tagManager
+        .renameTag(oldTag, newTag, TreeManager.getTagIndex(), batchTagger, progress::update)
+        .whenComplete(
+            (result, error) -> Platform.runLater(() -> showRenameResult(result, error, progress)));
+  }
+
+  /**
+   * Report how many images a tag rename changed, and how many it couldn't.
+   *
+   * @param result the renamed images and the images that can't be renamed
+   * @param error the reason the rename failed, null if it didn't
+   * @param progress the progress window
+   */
+  private static void showRenameResult(
+      BatchTagger.Result result, Throwable error, ProgressWindow progress) {
+    progress.close();
+    if (error != null) {
+      showAlert("error", "Renaming tag failed: " + getReason(error), "");
+      return;
+    }
+    refreshSelectedTagView();
+    int count = result.getRenamed().size();
+    int failed = result.getFailed().size();
+    if (failed > 0) {
+      String example = result.getFailed().get(0);
+      showAlert(
+          "error",
+          count + " images changed, " + failed + " can't be renamed (e.g. " + example + ")."
+              + " They keep the old tag until the rename is resumed on the next start.",
+          "");
+      return;
+    }
+    showAlert("info", "Tag Renamed", count + " images changed.");
+  }
+
+  /** Show the tags of the image selected in the tree again, after tags changed. */
+  private static void refreshSelectedTagView() {
+    TreeItem<File> selected = TreeManager.getTree().getSelectionModel().getSelectedItem();
+    UserInterface.refreshTagView(selected != null ? selected : new TreeItem<>());
+  }
+
+  /**
+   * Get the reason a background operation failed.
+   *
+   * @param error the error, possibly wrapped by a future
+   * @return the error message
+   */
+  private static String getReason(Throwable error) {
+    return error.getCause() != null ? error.getCause().getMessage() : error.getMessage();
   }
 
   /**
@@ -0,0 +1,128 @@
+package controller;
+
+import javafx.scene.control.TreeItem;
+import model.FileManager;
+import model.FolderStamp;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.EnumSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.BiPredicate;
+import java.util.function.LongConsumer;
+
+/**
+ * Lists folders one level at a time off the JavaFX thread, for trees that load children when
+ * expanded. Listings run on a work-stealing pool, so folders expanded together are listed at the
+ * same time, and each listing reads the attributes of all entries in one pass.
+ */
+public class DirectoryScanner {
+  private final ForkJoinPool pool;
+  private AtomicBoolean cancelled = new AtomicBoolean();
+
+  /**
+   * Instantiates a new Directory scanner.
+   *
+   * @param parallelism the number of folders that are listed at the same time
+   */
+  public DirectoryScanner(int parallelism) {
+    pool = new ForkJoinPool(parallelism);
+  }
+
+  /**
+   * List the images and sub folders directly inside a folder, without waiting for the result.
+   * Listings that are still pending when the scan is cancelled fail with a CancellationException.
+   *
+   * @param directory the folder to list
+   * @return tree nodes of the images and sub folders, whose own children load when expanded
+   */
+  public CompletableFuture<ArrayList<TreeItem<File>>> list(File directory) {
+    return list(directory, FolderStamp.UNKNOWN, stamp -> {});
+  }
+
+  /**
+   * List a folder again if it changed since it was last listed, without waiting for the result.
+   *
+   * @param directory the folder to list
+   * @param listed the stamp of folder when it was last listed, {@link FolderStamp#UNKNOWN} to
+   *     list it anyway
+   * @param onStamp called with the stamp of folder, taken right before it is listed
+   * @return tree nodes of the images and sub folders, null if the folder did not change
+   */
+  public CompletableFuture<ArrayList<TreeItem<File>>> list(
+      File directory, long listed, LongConsumer onStamp) {
+    AtomicBoolean listCancelled = cancelled;
+    return CompletableFuture.supplyAsync(
+        () -> {
+          if (listCancelled.get()) {
+            throw new CancellationException("Scan cancelled.");
+          }
+          long stamp = FolderStamp.of(directory.toPath());
+          if (stamp != FolderStamp.UNKNOWN && stamp == listed) {
+            return null;
+          }
+          onStamp.accept(stamp);
+          ArrayList<TreeItem<File>> children = new ArrayList<>();
+          listFolder(
+              directory.toPath(),
+              (file, attrs) -> {
+                if (attrs.isDirectory()) {
+                  children.add(new LazyFileTreeItem(file.toFile(), true, this));
+                } else if (FileManager.isImage(file.getFileName().toString())) {
+                  children.add(new LazyFileTreeItem(file.toFile(), false, this));
+                }
+                return !listCancelled.get();
+              });
+          if (listCancelled.get()) {
+            throw new CancellationException("Scan cancelled.");
+          }
+          return children;
+        },
+        pool);
+  }
+
+  /** Cancel the folder listings in progress. Later ones are not affected. */
+  public synchronized void cancel() {
+    cancelled.set(true);
+    cancelled = new AtomicBoolean();
+  }
+
+  /**
+   * List every entry directly inside a folder, reading the attributes of all entries in one pass.
+   *
+   * @param directory the folder to list
+   * @param visitor called with each entry and its attributes, returns false to stop listing
+   */
+  static void listFolder(Path directory, BiPredicate<Path, BasicFileAttributes> visitor) {
+    try {
+      Files.walkFileTree(
+          directory,
+          EnumSet.noneOf(FileVisitOption.class),
+          1,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              boolean next = visitor.test(file, attrs);
+              return next ? FileVisitResult.CONTINUE : FileVisitResult.TERMINATE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      System.out.println("File error, please try again.");
+    }
+  }
+}
@@ -0,0 +1,130 @@
+package controller;
+
+import javafx.application.Platform;
+import javafx.scene.control.TreeItem;
+import model.FileManager;
+
+import java.io.File;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+import java.util.function.Function;
+
+/**
+ * Runs file operations such as renames and moves on worker threads, so a slow disk doesn't freeze
+ * the UI. Operations on the same tree node run one after another, each getting the file the
+ * previous one left behind, while operations on different nodes run at the same time. Each
+ * operation holds the image lock of its file, which batches of tag changes hold as well. Virtual
+ * threads are used when the Java version has them.
+ *
+ * <p>Operations are submitted and their results handled on the JavaFX application thread.
+ */
+class FileOperationQueue {
+  private ExecutorService workers = newExecutor();
+  // the last operation of every node with operations that are pending or running.
+  private HashMap<TreeItem<File>, CompletableFuture<File>> tails = new HashMap<>();
+  private HashMap<TreeItem<File>, Integer> pending = new HashMap<>();
+  private Runnable onPendingChange;
+  private BiConsumer<TreeItem<File>, Throwable> onFailure = (item, error) -> {};
+
+  /**
+   * Instantiates a new File operation queue.
+   *
+   * @param onPendingChange called when a node gets or loses its pending operations
+   */
+  FileOperationQueue(Runnable onPendingChange) {
+    this.onPendingChange = onPendingChange;
+  }
+
+  /**
+   * Set what happens when an operation fails.
+   *
+   * @param onFailure called with the node and the error of a failed operation
+   */
+  void setOnFailure(BiConsumer<TreeItem<File>, Throwable> onFailure) {
+    this.onFailure = onFailure;
+  }
+
+  /**
+   * Run an operation on the file of a node after the operations submitted for it before.
+   *
+   * @param item the tree node
+   * @param operation gets the current file and returns the file after the operation
+   * @param onDone called with the new file if the operation succeeds
+   */
+  void submit(TreeItem<File> item, Function<File, File> operation, Consumer<File> onDone) {
+    CompletableFuture<File> previous =
+        tails.getOrDefault(item, CompletableFuture.completedFuture(item.getValue()));
+    CompletableFuture<File> result =
+        previous.thenApplyAsync(
+            file -> {
+              // batches change images holding the same lock.
+              Lock lock = FileManager.getImageLock(file.getPath());
+              lock.lock();
+              try {
+                return operation.apply(file);
+              } finally {
+                lock.unlock();
+              }
+            },
+            workers);
+    // a failed operation leaves the file as it was, so the next one starts from there.
+    CompletableFuture<File> tail =
+        result.handle((file, error) -> error == null ? file : previous.join());
+    tails.put(item, tail);
+    if (pending.merge(item, 1, Integer::sum) == 1) {
+      onPendingChange.run();
+    }
+
+    result.whenComplete(
+        (file, error) ->
+            Platform.runLater(
+                () -> {
+                  tails.remove(item, tail);
+                  if (error == null) {
+                    onDone.accept(file);
+                  } else {
+                    onFailure.accept(item, error.getCause() != null ? error.getCause() : error);
+                  }
+                  if (pending.merge(item, -1, Integer::sum) == 0) {
+                    pending.remove(item);
+                    onPendingChange.run();
+                  }
+                }));
+  }
+
+  /**
+   * Check if a node has operations that are pending or running.
+   *
+   * @param item the tree node
+   * @return true if it has, else false
+   */
+  boolean isPending(TreeItem<File> item) {
+    return pending.containsKey(item);
+  }
+
+  /**
+   * Make an executor with one virtual thread per operation if the Java version has them, else a
+   * pool of daemon threads.
+   *
+   * @return the executor
+   */
+  private static ExecutorService newExecutor() {
+    try {
+      return (ExecutorService)
+          Executors.class.getMethod("newVirtualThreadPerTaskExecutor").invoke(null);
+    } catch (ReflectiveOperationException e) {
+      return Executors.newFixedThreadPool(
+          Math.max(2, Runtime.getRuntime().availableProcessors()),
+          runnable -> {
+            Thread thread = new Thread(runnable, "file-operation");
+            thread.setDaemon(true);
+            return thread;
+          });
+    }
+  }
+}
@@ -0,0 +1,58 @@
+package controller;
+
+import javafx.scene.control.TreeItem;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.HashMap;
+
+/**
+ * Builds the tree shown after filtering: only the matching images and the folders leading to them.
+ * Works purely on paths from the tag index, so no folder is listed again.
+ */
+final class FilteredTree {
+  private FilteredTree() {}
+
+  /**
+   * Build a tree that only holds the given images and the folders leading to them. Images outside
+   * the root are skipped.
+   *
+   * @param directory root of the tree
+   * @param images paths of images to be shown
+   * @return root of said directory and the folders/images that lead to the given images
+   */
+  static TreeItem<File> build(File directory, ArrayList<String> images) {
+    TreeItem<File> root = new TreeItem<>(directory);
+    HashMap<String, TreeItem<File>> folders = new HashMap<>();
+    folders.put(directory.getPath(), root);
+
+    String prefix = directory.getPath() + File.separator;
+    for (String image : images) {
+      if (image.startsWith(prefix)) {
+        File file = new File(image);
+        getFolderNode(file.getParentFile(), folders).getChildren().add(new TreeItem<>(file));
+      }
+    }
+
+    return root;
+  }
+
+  /**
+   * Get the tree node of a folder, creating it and its missing parents if needed. The folder is
+   * under the root, so the parents end at the root node.
+   *
+   * @param folder the folder
+   * @param folders tree nodes of folders created so far
+   * @return tree node of the folder
+   */
+  private static TreeItem<File> getFolderNode(
+      File folder, HashMap<String, TreeItem<File>> folders) {
+    TreeItem<File> node = folders.get(folder.getPath());
+    if (node == null) {
+      node = new TreeItem<>(folder);
+      getFolderNode(folder.getParentFile(), folders).getChildren().add(node);
+      folders.put(folder.getPath(), node);
+    }
+    return node;
+  }
+}
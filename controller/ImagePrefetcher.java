@@ -0,0 +1,83 @@
+package controller;
+
+import javafx.scene.control.TreeItem;
+import javafx.scene.image.Image;
+import model.FileManager;
+import view.ImageCache;
+import view.UserInterface;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Decodes the images next to the selected tree node in the background, at the size the viewer
+ * shows them, and puts them into the shared image cache. Prefetches for an old selection are
+ * cancelled when the selection moves.
+ */
+public class ImagePrefetcher {
+  private int distance;
+  private ExecutorService workers;
+  private List<Future<?>> pending = new ArrayList<>();
+
+  /**
+   * Instantiates a new Image prefetcher.
+   *
+   * @param distance the number of images before and after the selection to prefetch
+   */
+  public ImagePrefetcher(int distance) {
+    this.distance = distance;
+    workers =
+        Executors.newFixedThreadPool(
+            2,
+            runnable -> {
+              Thread thread = new Thread(runnable, "image-prefetch");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            });
+  }
+
+  /**
+   * Prefetch the images around a newly selected tree node. Called on the JavaFX thread.
+   *
+   * @param item the selected tree node
+   */
+  public void prefetch(TreeItem<File> item) {
+    for (Future<?> future : pending) {
+      future.cancel(false);
+    }
+    pending.clear();
+    if (item == null || item.getParent() == null) {
+      return;
+    }
+
+    List<TreeItem<File>> siblings = item.getParent().getChildren();
+    int index = siblings.indexOf(item);
+    ImageCache cache = UserInterface.getImageCache();
+    // nearest first, alternating next and previous.
+    for (int step = 1; step <= distance; step++) {
+      for (int i : new int[] {index + step, index - step}) {
+        if (i < 0 || i >= siblings.size()) {
+          continue;
+        }
+        File file = siblings.get(i).getValue();
+        if (file == null || !FileManager.isImage(file.getName())) {
+          continue;
+        }
+        String path = file.getPath();
+        if (!cache.contains(path)) {
+          pending.add(
+              workers.submit(
+                  () -> {
+                    Image image = UserInterface.loadImage(path);
+                    cache.put(path, image);
+                  }));
+        }
+      }
+    }
+  }
+}
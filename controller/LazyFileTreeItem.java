@@ -0,0 +1,180 @@
+package controller;
+
+import javafx.application.Platform;
+import javafx.scene.control.TreeItem;
+import model.FolderStamp;
+
+import java.io.File;
+import java.util.LinkedHashMap;
+import java.util.List;
+
+/**
+ * Tree node of a folder or image. A folder lists its children only the first time it is expanded,
+ * in the background, and shows a placeholder node (with no file) until they are loaded.
+ */
+public class LazyFileTreeItem extends TreeItem<File> {
+  private final boolean directory;
+  private final DirectoryScanner scanner;
+  private boolean loaded = false;
+  private boolean loading = false;
+  private long modified = FolderStamp.UNKNOWN;
+
+  /**
+   * Instantiates a new Lazy file tree item.
+   *
+   * @param file the folder or image
+   * @param directory true if the file is a folder, known from the listing of its parent
+   * @param scanner lists the folder when it is expanded
+   */
+  public LazyFileTreeItem(File file, boolean directory, DirectoryScanner scanner) {
+    super(file);
+    this.directory = directory;
+    this.scanner = scanner;
+    if (directory) {
+      expandedProperty()
+          .addListener(
+              (observable, wasExpanded, isExpanded) -> {
+                if (isExpanded) {
+                  load();
+                }
+              });
+    }
+  }
+
+  /**
+   * An image is always a leaf. A folder is a leaf only once it is listed and turns out to have no
+   * images or sub folders, so no folder is read just to draw the tree.
+   *
+   * @return true if the node can't be expanded, else false
+   */
+  @Override
+  public boolean isLeaf() {
+    return !directory || (loaded && getChildren().isEmpty());
+  }
+
+  /**
+   * Check if the children of this folder are listed.
+   *
+   * @return true if listed, else false
+   */
+  public boolean isLoaded() {
+    return loaded;
+  }
+
+  /**
+   * Check if this node is a folder.
+   *
+   * @return true if a folder, false if an image
+   */
+  public boolean isDirectory() {
+    return directory;
+  }
+
+  /**
+   * Gets the stamp of this folder from when its children were listed.
+   *
+   * @return the stamp, {@link FolderStamp#UNKNOWN} if not listed or not known
+   */
+  long getModified() {
+    return modified;
+  }
+
+  /**
+   * Show children listed earlier, e.g. in the last session, without listing the folder.
+   *
+   * @param children the children
+   * @param modified the stamp of this folder from when the children were listed
+   */
+  void restore(List<TreeItem<File>> children, long modified) {
+    loaded = true;
+    this.modified = modified;
+    getChildren().setAll(children);
+  }
+
+  /**
+   * List the folder again in the background if it changed since it was listed, and patch the
+   * children with the difference. Entries that are still there keep their nodes, so expanded sub
+   * folders stay expanded and selected images stay selected.
+   */
+  void revalidate() {
+    if (!loaded || loading) {
+      return;
+    }
+    loading = true;
+    long[] stamp = {FolderStamp.UNKNOWN};
+    scanner
+        .list(getValue(), modified, listed -> stamp[0] = listed)
+        .whenComplete(
+            (children, e) ->
+                Platform.runLater(
+                    () -> {
+                      loading = false;
+                      if (e == null && children != null) {
+                        modified = stamp[0];
+                        patch(children);
+                      }
+                    }));
+  }
+
+  /** List the children in the background, showing a placeholder until they arrive. */
+  private void load() {
+    if (loaded || loading) {
+      return;
+    }
+    loading = true;
+    getChildren().clear();
+    getChildren().add(new TreeItem<>());
+
+    long[] stamp = {FolderStamp.UNKNOWN};
+    scanner
+        .list(getValue(), FolderStamp.UNKNOWN, listed -> stamp[0] = listed)
+        .whenComplete(
+            (children, e) ->
+                Platform.runLater(
+                    () -> {
+                      loading = false;
+                      if (e != null) {
+                        // cancelled, expanding again lists the folder again.
+                        getChildren().clear();
+                        setExpanded(false);
+                      } else {
+                        loaded = true;
+                        modified = stamp[0];
+                        getChildren().setAll(children);
+                      }
+                    }));
+  }
+
+  /**
+   * Remove the children that are no longer listed and add the new ones at the end.
+   *
+   * @param listed the children as listed now
+   */
+  private void patch(List<TreeItem<File>> listed) {
+    LinkedHashMap<File, TreeItem<File>> added = new LinkedHashMap<>();
+    for (TreeItem<File> child : listed) {
+      added.put(child.getValue(), child);
+    }
+    getChildren()
+        .removeIf(
+            child -> {
+              TreeItem<File> same = added.get(child.getValue());
+              if (same == null || isDirectory(same) != isDirectory(child)) {
+                return true;
+              }
+              added.remove(child.getValue());
+              return false;
+            });
+    getChildren().addAll(added.values());
+  }
+
+  /**
+   * Check if a tree node is a folder. Nodes added by other means than listing are images.
+   *
+   * @param node the tree node
+   * @return true if a folder, else false
+   */
+  private static boolean isDirectory(TreeItem<File> node) {
+    return node instanceof LazyFileTreeItem && ((LazyFileTreeItem) node).directory;
+  }
+}
@@ -0,0 +1,65 @@
+package controller;
+
+import javafx.collections.ObservableListBase;
+import model.LogIndex;
+
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * The lines of log.txt between two line numbers, newest first, as a list a ListView can show.
+ * Lines are only read when the ListView asks for them, a page at a time, and the most recently
+ * used pages are kept.
+ */
+class LogLines extends ObservableListBase<String> {
+  private static final int PAGE_SIZE = 256;
+  private static final int MAX_PAGES = 16;
+
+  private LogIndex logIndex;
+  private int from;
+  private int to;
+  private LinkedHashMap<Integer, ArrayList<String>> pages =
+      new LinkedHashMap<Integer, ArrayList<String>>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<Integer, ArrayList<String>> eldest) {
+          return size() > MAX_PAGES;
+        }
+      };
+
+  /**
+   * Instantiates new Log lines.
+   *
+   * @param logIndex the index of log.txt
+   * @param from the first line number, inclusive
+   * @param to the last line number, exclusive
+   */
+  LogLines(LogIndex logIndex, int from, int to) {
+    this.logIndex = logIndex;
+    this.from = from;
+    this.to = Math.max(from, to);
+  }
+
+  @Override
+  public String get(int index) {
+    if (index < 0 || index >= size()) {
+      throw new IndexOutOfBoundsException("No log line " + index);
+    }
+    int page = index / PAGE_SIZE;
+    ArrayList<String> lines = pages.get(page);
+    if (lines == null) {
+      lines = new ArrayList<>();
+      int end = Math.min(size(), (page + 1) * PAGE_SIZE);
+      for (int i = page * PAGE_SIZE; i < end; i++) {
+        lines.add(logIndex.getLine(to - 1 - i));
+      }
+      pages.put(page, lines);
+    }
+    return lines.get(index % PAGE_SIZE);
+  }
+
+  @Override
+  public int size() {
+    return to - from;
+  }
+}
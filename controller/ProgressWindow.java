@@ -0,0 +1,72 @@
+package controller;
+
+import javafx.application.Platform;
+import javafx.scene.Scene;
+import javafx.scene.control.Label;
+import javafx.scene.control.ProgressBar;
+import javafx.scene.layout.VBox;
+import javafx.stage.Stage;
+
+/**
+ * Small window that shows how many images a background operation has done. Updates can come from
+ * any thread and are passed to the UI thread at most every 50 images, so it isn't flooded.
+ */
+class ProgressWindow {
+  private static final int UPDATE_EVERY = 50;
+
+  private Stage window = new Stage();
+  private ProgressBar progressBar;
+  private Label progressText;
+  private int total;
+
+  /**
+   * Open a new progress window.
+   *
+   * @param owner the owner window
+   * @param title the title of window
+   * @param total the number of images, 0 if it is not known in advance
+   */
+  ProgressWindow(Stage owner, String title, int total) {
+    this.total = total;
+    progressBar = new ProgressBar(total > 0 ? 0 : ProgressBar.INDETERMINATE_PROGRESS);
+    progressBar.setPrefWidth(300);
+    progressText = new Label(describe(0));
+    window.initOwner(owner);
+    window.setScene(new Scene(new VBox(8, progressBar, progressText)));
+    window.setTitle(title);
+    window.show();
+  }
+
+  /**
+   * Show the number of images done so far.
+   *
+   * @param done the number of images done
+   */
+  void update(int done) {
+    if (done % UPDATE_EVERY != 0 && done != total) {
+      return;
+    }
+    Platform.runLater(
+        () -> {
+          if (total > 0) {
+            progressBar.setProgress((double) done / total);
+          }
+          progressText.setText(describe(done));
+        });
+  }
+
+  /** Close the window. */
+  void close() {
+    window.close();
+  }
+
+  /**
+   * Describe the progress.
+   *
+   * @param done the number of images done
+   * @return e.g. "10 / 200" or "10 images"
+   */
+  private String describe(int done) {
+    return total > 0 ? done + " / " + total : done + " images";
+  }
+}
@@ -1,29 +1,87 @@
 package controller;
 
+import javafx.application.Platform;
+import javafx.scene.control.SelectionMode;
 import javafx.scene.control.TextField;
 import javafx.scene.control.TreeCell;
 import javafx.scene.control.TreeItem;
 import javafx.scene.control.TreeView;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.util.Callback;
 import model.FileManager;
+import model.TagIndex;
+import model.TagQuery;
+import model.TagStore;
+import model.ThumbnailStore;
+import view.ImageCache;
 import view.UserInterface;
 
+import java.io.ByteArrayInputStream;
 import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
 import java.util.ArrayList;
-import java.util.Objects;
+import java.util.LinkedHashMap;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
 
 /** The Tree manager. */
 public class TreeManager {
   private static TreeView<File> treeView = new TreeView<>();
+  private static TagIndex tagIndex;
+  private static DirectoryScanner scanner =
+      new DirectoryScanner(Runtime.getRuntime().availableProcessors());
+  private static TreeWatcher watcher =
+      new TreeWatcher(TreeManager::applyChanges, TreeManager::reloadTreeLater);
+  private static boolean filtered = false;
+  private static ImagePrefetcher prefetcher = new ImagePrefetcher(2);
+  private static FileOperationQueue operations = new FileOperationQueue(treeView::refresh);
+  private static TreeSnapshot snapshot;
+  // opens the tag store, tag index and watcher of loaded folders, one folder after another.
+  private static ExecutorService loader =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "folder-loader");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static Future<?> loading;
+  // decoded thumbnails shown in the tree, 16 KB each.
+  private static ImageCache thumbnailImages = new ImageCache(16L << 20);
+  private static ExecutorService thumbnailDecoder =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "thumbnail-decode");
+            thread.setDaemon(true);
+            return thread;
+          });
+  // the root of the unfiltered tree, saved in the snapshot also while a filter is shown.
+  private static TreeItem<File> browseRoot;
 
   /**
    * Instantiates a new Tree manager.
    *
    * @param bp the bp
    * @param abs_path the abs path
+   * @param tagIndex the tag index of loaded folder
+   * @param thumbnails the thumbnail store shown next to images
+   * @param snapshot the snapshot of the tree from the last session
    */
-  public TreeManager(BorderPane bp, TextField abs_path) {
+  public TreeManager(
+      BorderPane bp,
+      TextField abs_path,
+      TagIndex tagIndex,
+      ThumbnailStore thumbnails,
+      TreeSnapshot snapshot) {
+    TreeManager.tagIndex = tagIndex;
+    TreeManager.snapshot = snapshot;
+    FileManager.setTagIndex(tagIndex);
+
     /*
      * Change the displayed name of tree nodes
      * https://stackoverflow.com/questions/44210453/how-to-display-only-the-filename-in-a-javafx-treeview
@@ -33,17 +91,79 @@ public class TreeManager {
 
           public TreeCell<File> call(TreeView<File> tv) {
             return new TreeCell<File>() {
+              // the image whose thumbnail is the graphic of this cell.
+              private File shown;
 
               @Override
               protected void updateItem(File item, boolean empty) {
                 super.updateItem(item, empty);
 
-                setText((empty || item == null) ? "" : item.getName());
+                if (empty) {
+                  setText("");
+                } else {
+                  /* a node without file is the placeholder of a folder that is being listed. */
+                  setText(item == null ? "Loading..." : item.getName());
+                  if (item != null && operations.isPending(getTreeItem())) {
+                    setText(item.getName() + " (saving...)");
+                  }
+                }
+
+                /* Show the thumbnail of an image, read and decoded in the background if new. */
+                if (empty || item == null || !FileManager.isImage(item.getName())) {
+                  shown = null;
+                  setGraphic(null);
+                  return;
+                }
+                if (item.equals(shown)) {
+                  return;
+                }
+                shown = null;
+                setGraphic(null);
+                Image cached = thumbnailImages.get(item.getPath());
+                if (cached != null) {
+                  showThumbnail(item, cached);
+                  return;
+                }
+                thumbnails
+                    .getThumbnail(item.getPath())
+                    .thenApplyAsync(bytes -> decodeThumbnail(item, bytes), thumbnailDecoder)
+                    .thenAccept(
+                        image -> {
+                          if (image != null) {
+                            Platform.runLater(() -> showThumbnail(item, image));
+                          }
+                        });
+              }
+
+              /**
+               * Show a thumbnail if this cell still displays the image it belongs to.
+               *
+               * @param item the image
+               * @param image the decoded thumbnail
+               */
+              private void showThumbnail(File item, Image image) {
+                if (item.equals(getItem())) {
+                  ImageView thumbnail = new ImageView(image);
+                  thumbnail.setFitWidth(ThumbnailStore.SIZE / 2);
+                  thumbnail.setFitHeight(ThumbnailStore.SIZE / 2);
+                  thumbnail.setPreserveRatio(true);
+                  setGraphic(thumbnail);
+                  shown = item;
+                }
               }
             };
           }
         });
 
+    /* Several images can be selected to be tagged at once. */
+    treeView.getSelectionModel().setSelectionMode(SelectionMode.MULTIPLE);
+
+    /* Decode the images next to the selection before they are opened. */
+    treeView
+        .getSelectionModel()
+        .selectedItemProperty()
+        .addListener((observable, oldItem, newItem) -> prefetcher.prefetch(newItem));
+
     /* Display image when a tree node is double clicked
      https://docs.oracle.com/javase/8/javafx/api/javafx/scene/image/ImageView.html
     */
@@ -51,6 +171,9 @@ public class TreeManager {
         mouseEvent -> {
           if (mouseEvent.getClickCount() == 2) {
             TreeItem<File> item = treeView.getSelectionModel().getSelectedItem();
+            if (item == null || item.getValue() == null) {
+              return;
+            }
             File img = item.getValue();
             String image_path = img.toString();
             abs_path.setText(image_path);
@@ -61,6 +184,43 @@ public class TreeManager {
         });
   }
 
+  /**
+   * Decode a stored thumbnail and keep it for the cells that show the image later.
+   *
+   * @param item the image
+   * @param bytes the encoded thumbnail, null if there is none
+   * @return the thumbnail, null if there is none
+   */
+  private static Image decodeThumbnail(File item, byte[] bytes) {
+    if (bytes == null) {
+      return null;
+    }
+    Image image = new Image(new ByteArrayInputStream(bytes));
+    if (image.isError()) {
+      return null;
+    }
+    thumbnailImages.put(item.getPath(), image);
+    return image;
+  }
+
+  /**
+   * Gets the queue that runs file operations off the UI thread.
+   *
+   * @return the file operation queue
+   */
+  static FileOperationQueue getOperations() {
+    return operations;
+  }
+
+  /**
+   * Gets the tag index of the loaded folder.
+   *
+   * @return the tag index
+   */
+  static TagIndex getTagIndex() {
+    return tagIndex;
+  }
+
   /**
    * Gets tree.
    *
@@ -72,93 +232,248 @@ public class TreeManager {
 
   /** Reload tree of files in same directory. */
   public static void reloadTree() {
-    treeView.setRoot(getNodesForDirectory(treeView.getRoot().getValue()));
-    treeView.getRoot().setExpanded(true);
+    scanner.cancel();
+    setRoot(new LazyFileTreeItem(treeView.getRoot().getValue(), true, scanner), false);
   }
 
   /**
-   * Reload tree after update actions are performed.
+   * Reload tree after update actions are performed. Only the root folder is listed right away, sub
+   * folders are listed in the background when they are expanded. If the snapshot of the last
+   * session is of this folder, the tree is shown from it and the folders that changed since are
+   * listed again in the background. The tag store, tag index and watcher of the folder are opened
+   * in the background after those of the folder loaded before, whose loading is cancelled.
    *
    * @param path the path
    */
   public static void reloadTree(File path) {
-    treeView.setRoot(getNodesForDirectory(path));
-    treeView.getRoot().setExpanded(true);
+    scanner.cancel();
+    ArrayList<LazyFileTreeItem> restored = new ArrayList<>();
+    LazyFileTreeItem root = snapshot == null ? null : snapshot.restore(path, scanner, restored);
+    setRoot(root != null ? root : new LazyFileTreeItem(path, true, scanner), false);
+    for (LazyFileTreeItem folder : restored) {
+      folder.revalidate();
+    }
+    if (loading != null) {
+      loading.cancel(true);
+    }
+    loading =
+        loader.submit(
+            () -> {
+              openTagStore(path);
+              tagIndex.load(path);
+              if (!Thread.currentThread().isInterrupted()) {
+                watcher.watch(path);
+              }
+            });
+  }
+
+  /** Open the folder of the last session again, shown from its snapshot. */
+  public static void reopenLastFolder() {
+    File root = snapshot == null ? null : snapshot.getRoot();
+    if (root != null && root.isDirectory()) {
+      reloadTree(root);
+    }
+  }
+
+  /** Save the snapshot of the unfiltered tree, to be shown at once on the next start. */
+  public static void saveSnapshot() {
+    if (snapshot != null && browseRoot instanceof LazyFileTreeItem) {
+      snapshot.write((LazyFileTreeItem) browseRoot);
+    }
+  }
+
+  /**
+   * Read the tags of a folder from its tag store if it has one, else from the image names.
+   *
+   * @param path the loaded folder
+   */
+  private static void openTagStore(File path) {
+    try {
+      TagStore store = TagStore.exists(path) ? new TagStore(path) : null;
+      if (store != null && store.isKeyedByPath()) {
+        System.out.println(
+            "Tag store of " + path + " knows images by path, moves outside the app lose tags.");
+      }
+      FileManager.setTagStore(store);
+    } catch (IOException e) {
+      FileManager.setTagStore(null);
+      System.out.println("Tag store of " + path + " can't be opened, tags are read from names.");
+    }
+  }
+
+  /** Cancel the folder listings in progress, folders that were not listed yet can be reopened. */
+  public static void cancelScan() {
+    scanner.cancel();
   }
 
   /**
    * Filter files in tree and reload it.
    *
    * @param tags the tags to be filtered
+   * @return false if the tags of the loaded folder are still being read, else true
    */
-  public static void reloadTreeFiltered(ArrayList<String> tags) {
-    treeView.setRoot(getNodesForDirectoryFiltered(treeView.getRoot().getValue(), tags));
-    treeView.getRoot().setExpanded(true);
+  public static boolean reloadTreeFiltered(ArrayList<String> tags) {
+    File directory = treeView.getRoot().getValue();
+    if (!isIndexed(directory)) {
+      return false;
+    }
+    setRoot(FilteredTree.build(directory, tagIndex.getImages(tags)), true);
+    return true;
   }
 
   /**
-   * Build a tree of images from selected folder
-   * https://stackoverflow.com/questions/35070310/javafx-representing-directories
+   * Show only the images that match a tag query.
    *
-   * @param directory generate file tree from this directory
-   * @return root of said directory and its internal files/folders
+   * @param query the parsed tag query
+   * @return false if the tags of the loaded folder are still being read, else true
    */
-  private static TreeItem<File> getNodesForDirectory(File directory) {
-    TreeItem<File> root = new TreeItem<>(directory);
-    File[] files = directory.listFiles();
+  public static boolean reloadTreeFiltered(TagQuery query) {
+    File directory = treeView.getRoot().getValue();
+    if (!isIndexed(directory)) {
+      return false;
+    }
+    setRoot(FilteredTree.build(directory, query.filter(tagIndex.getImages())), true);
+    return true;
+  }
 
-    if (files != null) {
-      for (File file : files) {
-        String name = file.getName();
-        if (file.isDirectory() && Objects.requireNonNull(file.listFiles()).length != 0) {
-          root.getChildren().add(getNodesForDirectory(file));
-        } else {
-          if (name.endsWith("bmp")
-              || name.endsWith("jpg")
-              || name.endsWith("jpeg")
-              || name.endsWith("gif")
-              || name.endsWith("png")) {
-            root.getChildren().add(new TreeItem<>(file));
-          }
-        }
-      }
-    } else {
-      System.out.println("File error, please try again.");
+  /**
+   * Check if the tag index, and the tag store if there is one, belong to a folder. Both are opened
+   * in the background, so right after a folder is loaded they may still be of the one before.
+   *
+   * @param directory the loaded folder
+   * @return true if the tags of the folder can be filtered, else false
+   */
+  private static boolean isIndexed(File directory) {
+    TagStore store = FileManager.getTagStore();
+    return directory.getPath().equals(tagIndex.getRoot())
+        && (store == null || store.getRoot().equals(directory));
+  }
+
+  /**
+   * Show a new root in the tree.
+   *
+   * @param root the root of tree
+   * @param isFiltered true if the tree only shows images that match a filter
+   */
+  private static void setRoot(TreeItem<File> root, boolean isFiltered) {
+    filtered = isFiltered;
+    if (!isFiltered) {
+      browseRoot = root;
     }
+    treeView.setRoot(root);
+    root.setExpanded(true);
+  }
 
-    return root;
+  /** Reload tree from the JavaFX thread, used when the watcher lost track of changes. */
+  private static void reloadTreeLater() {
+    Platform.runLater(TreeManager::reloadTree);
   }
 
-  private static TreeItem<File> getNodesForDirectoryFiltered(
-      File directory, ArrayList<String> tags) {
-    TreeItem<File> root = new TreeItem<>(directory);
-    File[] files = directory.listFiles();
+  /**
+   * Apply files created or deleted outside of a full reload to the tree. Runs on the watcher
+   * thread, and then patches the existing tree nodes so expanded folders stay expanded. Folders
+   * that were not listed yet are skipped, they show the change when they are expanded.
+   *
+   * @param changed paths that were created or deleted
+   */
+  private static void applyChanges(LinkedHashSet<Path> changed) {
+    // null means the path no longer exists (or is not shown) and should be removed.
+    LinkedHashMap<Path, TreeItem<File>> nodes = new LinkedHashMap<>();
+    for (Path path : changed) {
+      File file = path.toFile();
+      TreeItem<File> node = null;
+      if (file.isDirectory()) {
+        node = new LazyFileTreeItem(file, true, scanner);
+      } else if (file.exists() && FileManager.isImage(file.getName())) {
+        node = new TreeItem<>(file);
+        tagIndex.addImage(file.getPath());
+      } else {
+        tagIndex.removeImage(file.getPath());
+      }
+      nodes.put(path, node);
+    }
 
-    if (files != null) {
-      for (File file : files) {
-        String name = file.getName();
-        if (file.isDirectory() && Objects.requireNonNull(file.list()).length != 0) {
-          TreeItem<File> nodes = getNodesForDirectoryFiltered(file, tags);
-          /* Hide sub folder if no pictures that satisfy the condition are in the folder.*/
-          if (nodes.getChildren().size() != 0) {
-              root.getChildren().add(nodes);
-          }
-        } else {
-          if (name.endsWith("bmp")
-              || name.endsWith("jpg")
-              || name.endsWith("jpeg")
-              || name.endsWith("gif")
-              || name.endsWith("png"))
-            if (FileManager.containsTag(name, tags)) {
-              root.getChildren().add(new TreeItem<>(file));
+    Platform.runLater(
+        () -> {
+          for (Map.Entry<Path, TreeItem<File>> entry : nodes.entrySet()) {
+            Path path = entry.getKey();
+            TreeItem<File> node = entry.getValue();
+            TreeItem<File> folder = findNode(path.getParent(), node != null && !filtered);
+            if (folder == null) {
+              continue;
+            }
+            TreeItem<File> existing = findChild(folder, path);
+            if (node == null && existing != null) {
+              folder.getChildren().remove(existing);
+            } else if (node != null && existing == null && !filtered) {
+              folder.getChildren().add(node);
             }
+          }
+        });
+  }
+
+  /**
+   * Find the tree node of a folder under the root.
+   *
+   * @param folder the folder
+   * @param create create missing folder nodes if true
+   * @return the tree node, null if the folder is not in the tree
+   */
+  private static TreeItem<File> findNode(Path folder, boolean create) {
+    TreeItem<File> node = treeView.getRoot();
+    if (node == null || node.getValue() == null || folder == null) {
+      return null;
+    }
+    Path path = node.getValue().toPath();
+    if (!folder.startsWith(path)) {
+      return null;
+    }
+    for (Path name : path.relativize(folder)) {
+      if (name.toString().equals("")) {
+        continue;
+      }
+      if (!isLoaded(node)) {
+        return null;
+      }
+      path = path.resolve(name);
+      TreeItem<File> child = findChild(node, path);
+      if (child == null) {
+        if (!create) {
+          return null;
         }
+        File file = path.toFile();
+        child = filtered ? new TreeItem<>(file) : new LazyFileTreeItem(file, true, scanner);
+        node.getChildren().add(child);
       }
-    } else {
-      System.out.println("File error, please try again.");
+      node = child;
     }
+    return isLoaded(node) ? node : null;
+  }
 
-    return root;
+  /**
+   * Check if the children of a tree node are known.
+   *
+   * @param node the tree node
+   * @return false if the node is a folder that was not listed yet, else true
+   */
+  private static boolean isLoaded(TreeItem<File> node) {
+    return !(node instanceof LazyFileTreeItem) || ((LazyFileTreeItem) node).isLoaded();
+  }
+
+  /**
+   * Find the child node that shows a path.
+   *
+   * @param node the parent node
+   * @param path the path of child
+   * @return the child node, null if there is none
+   */
+  private static TreeItem<File> findChild(TreeItem<File> node, Path path) {
+    for (TreeItem<File> child : node.getChildren()) {
+      if (child.getValue() != null && child.getValue().toPath().equals(path)) {
+        return child;
+      }
+    }
+    return null;
   }
 
   /**
@@ -171,4 +486,21 @@ public class TreeManager {
     ti.setValue(null);
     ti.setValue(file);
   }
+
+  /**
+   * Move tree item to the folder of its new file, without reloading the tree.
+   *
+   * @param ti item of tree (old image file)
+   * @param file new image file, possibly in another folder
+   */
+  void moveTreeItem(TreeItem<File> ti, File file) {
+    if (ti.getParent() != null) {
+      ti.getParent().getChildren().remove(ti);
+    }
+    updateTreeItem(ti, file);
+    TreeItem<File> folder = findNode(file.getParentFile().toPath(), true);
+    if (folder != null) {
+      folder.getChildren().add(ti);
+    }
+  }
 }
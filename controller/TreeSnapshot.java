@@ -0,0 +1,218 @@
+package controller;
+
+import javafx.scene.control.TreeItem;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Binary snapshot of the folders that were listed in the tree, saved when the app closes so the
+ * same folder shows at once on the next start. For every listed folder it holds its stamp from
+ * when it was listed, whether it was expanded, and the names of its images and sub folders. The
+ * tags of images are part of their names (or of the tag store), so they come back with the names.
+ *
+ * <p>A restored tree is only as new as the snapshot. Every restored folder is then checked in the
+ * background, and only folders whose stamp changed are listed again and patched.
+ */
+public class TreeSnapshot {
+  private static final int MAGIC = 0x54524531;
+
+  private File file;
+  private File root;
+  private HashMap<String, Folder> folders = new HashMap<>();
+
+  /**
+   * Instantiates a new Tree snapshot and reads the saved one, if any.
+   *
+   * @param path the path of snapshot file
+   */
+  public TreeSnapshot(String path) {
+    file = new File(path);
+    if (file.exists()) {
+      read();
+    }
+  }
+
+  /**
+   * Gets the root folder of the saved tree.
+   *
+   * @return the root folder, null if there is no snapshot
+   */
+  public File getRoot() {
+    return root;
+  }
+
+  /**
+   * Build the tree of a folder from the snapshot, if the snapshot is of that folder. The snapshot
+   * is only used once, since the tree is newer afterwards.
+   *
+   * @param directory the root folder to show
+   * @param scanner lists the folders that were not listed in the snapshot when expanded
+   * @param restored every folder node that got its children from the snapshot is added here
+   * @return the root node, null if the snapshot is of another folder
+   */
+  LazyFileTreeItem restore(
+      File directory, DirectoryScanner scanner, List<LazyFileTreeItem> restored) {
+    if (root == null || !root.equals(directory)) {
+      return null;
+    }
+    LazyFileTreeItem node = new LazyFileTreeItem(directory, true, scanner);
+    restore(node, scanner, restored);
+    folders.clear();
+    root = null;
+    return node;
+  }
+
+  /**
+   * Save the listed folders of a tree, replacing the file at once so a crash keeps the old one.
+   *
+   * @param tree the root node of tree
+   */
+  void write(LazyFileTreeItem tree) {
+    ArrayList<LazyFileTreeItem> listed = new ArrayList<>();
+    collect(tree, listed);
+    File written = new File(file.getPath() + ".tmp");
+    try {
+      try (DataOutputStream output =
+          new DataOutputStream(new BufferedOutputStream(new FileOutputStream(written)))) {
+        output.writeInt(MAGIC);
+        output.writeUTF(tree.getValue().getPath());
+        output.writeInt(listed.size());
+        for (LazyFileTreeItem folder : listed) {
+          output.writeUTF(folder.getValue().getPath());
+          output.writeLong(folder.getModified());
+          output.writeBoolean(folder.isExpanded());
+          ArrayList<TreeItem<File>> children = new ArrayList<>();
+          for (TreeItem<File> child : folder.getChildren()) {
+            if (child.getValue() != null) {
+              children.add(child);
+            }
+          }
+          output.writeInt(children.size());
+          for (TreeItem<File> child : children) {
+            output.writeBoolean(
+                child instanceof LazyFileTreeItem && ((LazyFileTreeItem) child).isDirectory());
+            output.writeUTF(child.getValue().getName());
+          }
+        }
+      }
+      Files.move(
+          written.toPath(),
+          file.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+    } catch (IOException e) {
+      System.out.println("Tree snapshot is not successfully saved.");
+    }
+  }
+
+  /**
+   * Add a folder and all listed folders under it, parents first.
+   *
+   * @param folder the folder node
+   * @param listed the listed folders
+   */
+  private static void collect(LazyFileTreeItem folder, List<LazyFileTreeItem> listed) {
+    if (!folder.isLoaded()) {
+      return;
+    }
+    listed.add(folder);
+    for (TreeItem<File> child : folder.getChildren()) {
+      if (child instanceof LazyFileTreeItem && ((LazyFileTreeItem) child).isDirectory()) {
+        collect((LazyFileTreeItem) child, listed);
+      }
+    }
+  }
+
+  /**
+   * Give a folder node its children from the snapshot, and the same for its sub folders.
+   *
+   * @param node the folder node
+   * @param scanner lists the folders that are not in the snapshot when expanded
+   * @param restored every folder node that got its children from the snapshot is added here
+   */
+  private void restore(
+      LazyFileTreeItem node, DirectoryScanner scanner, List<LazyFileTreeItem> restored) {
+    Folder folder = folders.get(node.getValue().getPath());
+    if (folder == null) {
+      return;
+    }
+    ArrayList<TreeItem<File>> children = new ArrayList<>(folder.names.length);
+    for (int i = 0; i < folder.names.length; i++) {
+      File child = new File(node.getValue(), folder.names[i]);
+      LazyFileTreeItem item = new LazyFileTreeItem(child, folder.directories[i], scanner);
+      if (folder.directories[i]) {
+        restore(item, scanner, restored);
+      }
+      children.add(item);
+    }
+    node.restore(children, folder.modified);
+    restored.add(node);
+    // expanding a listed folder doesn't list it again.
+    node.setExpanded(folder.expanded);
+  }
+
+  /** Read the saved snapshot, an unreadable one is ignored. */
+  private void read() {
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      if (input.readInt() != MAGIC) {
+        throw new IOException(file + " is not a tree snapshot.");
+      }
+      File snapshotRoot = new File(input.readUTF());
+      int count = input.readInt();
+      for (int f = 0; f < count; f++) {
+        String path = input.readUTF();
+        long modified = input.readLong();
+        boolean expanded = input.readBoolean();
+        int children = input.readInt();
+        if (children < 0) {
+          throw new IOException(file + " is damaged.");
+        }
+        Folder folder = new Folder(modified, expanded, children);
+        for (int i = 0; i < folder.names.length; i++) {
+          folder.directories[i] = input.readBoolean();
+          folder.names[i] = input.readUTF();
+        }
+        folders.put(path, folder);
+      }
+      root = snapshotRoot;
+    } catch (IOException e) {
+      folders.clear();
+      System.out.println("Tree snapshot can't be read, the folder is listed again.");
+    }
+  }
+
+  /** The stamp, expanded state and children of one listed folder. */
+  private static class Folder {
+    private final long modified;
+    private final boolean expanded;
+    private final String[] names;
+    private final boolean[] directories;
+
+    /**
+     * Instantiates a new Folder.
+     *
+     * @param modified the stamp of folder when it was listed
+     * @param expanded true if the folder was expanded
+     * @param count the number of children
+     */
+    Folder(long modified, boolean expanded, int count) {
+      this.modified = modified;
+      this.expanded = expanded;
+      names = new String[count];
+      directories = new boolean[count];
+    }
+  }
+}
@@ -0,0 +1,172 @@
+package controller;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.ClosedWatchServiceException;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardWatchEventKinds;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.LinkedHashSet;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+
+/**
+ * Watches the loaded folder and all of its sub folders. Changes are collected over a short window
+ * and reported together, so a burst of changes causes one update of the tree.
+ */
+public class TreeWatcher {
+  private static final long WINDOW_MILLIS = 200;
+
+  private WatchService watchService;
+  private Map<WatchKey, Path> keys = new ConcurrentHashMap<>();
+  private Consumer<LinkedHashSet<Path>> onChange;
+  private Runnable onOverflow;
+
+  /**
+   * Instantiates a new Tree watcher.
+   *
+   * @param onChange called on the watcher thread with every path created or deleted in a window
+   * @param onOverflow called on the watcher thread when events were lost and the folder has to be
+   *     scanned again
+   */
+  public TreeWatcher(Consumer<LinkedHashSet<Path>> onChange, Runnable onOverflow) {
+    this.onChange = onChange;
+    this.onOverflow = onOverflow;
+  }
+
+  /**
+   * Start watching a folder and its sub folders. Stops watching the previous folder.
+   *
+   * @param root the loaded folder
+   */
+  public synchronized void watch(File root) {
+    close();
+    try {
+      WatchService service = FileSystems.getDefault().newWatchService();
+      watchService = service;
+      register(service, root.toPath());
+
+      Thread thread = new Thread(() -> run(service), "tree-watcher");
+      thread.setDaemon(true);
+      thread.start();
+    } catch (IOException e) {
+      System.out.println("Watching folder failed, changes made outside the app won't show.");
+    }
+  }
+
+  /** Stop watching. */
+  public synchronized void close() {
+    if (watchService != null) {
+      try {
+        watchService.close();
+      } catch (IOException e) {
+        System.out.println("Closing folder watcher failed.");
+      }
+      watchService = null;
+      keys.clear();
+    }
+  }
+
+  /**
+   * Register a folder and all of its sub folders.
+   *
+   * @param service the watch service
+   * @param directory the folder
+   * @throws IOException if the folder can't be read
+   */
+  private void register(WatchService service, Path directory) throws IOException {
+    Files.walkFileTree(
+        directory,
+        new SimpleFileVisitor<Path>() {
+          @Override
+          public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs)
+              throws IOException {
+            WatchKey key =
+                dir.register(
+                    service,
+                    StandardWatchEventKinds.ENTRY_CREATE,
+                    StandardWatchEventKinds.ENTRY_DELETE);
+            keys.put(key, dir);
+            return FileVisitResult.CONTINUE;
+          }
+
+          @Override
+          public FileVisitResult visitFileFailed(Path file, IOException e) {
+            return FileVisitResult.CONTINUE;
+          }
+        });
+  }
+
+  /**
+   * Wait for changes and report them window by window until the service is closed.
+   *
+   * @param service the watch service
+   */
+  private void run(WatchService service) {
+    try {
+      while (true) {
+        WatchKey key = service.take();
+        long deadline = System.currentTimeMillis() + WINDOW_MILLIS;
+        LinkedHashSet<Path> changed = new LinkedHashSet<>();
+        boolean overflow = false;
+
+        while (key != null) {
+          overflow |= collect(service, key, changed);
+          long remaining = deadline - System.currentTimeMillis();
+          key = remaining > 0 ? service.poll(remaining, TimeUnit.MILLISECONDS) : service.poll();
+        }
+
+        if (overflow) {
+          onOverflow.run();
+        } else if (!changed.isEmpty()) {
+          onChange.accept(changed);
+        }
+      }
+    } catch (InterruptedException | ClosedWatchServiceException e) {
+      // watcher closed, a new folder is loaded or the app exits.
+    }
+  }
+
+  /**
+   * Collect changed paths of one watch key, registering newly created folders.
+   *
+   * @param service the watch service
+   * @param key the signalled key
+   * @param changed changed paths are added to this set
+   * @return true if events were lost, else false
+   */
+  private boolean collect(WatchService service, WatchKey key, LinkedHashSet<Path> changed) {
+    boolean overflow = false;
+    Path directory = keys.get(key);
+
+    for (WatchEvent<?> event : key.pollEvents()) {
+      if (event.kind() == StandardWatchEventKinds.OVERFLOW || directory == null) {
+        overflow = true;
+        continue;
+      }
+      Path child = directory.resolve((Path) event.context());
+      changed.add(child);
+      if (event.kind() == StandardWatchEventKinds.ENTRY_CREATE && Files.isDirectory(child)) {
+        try {
+          register(service, child);
+        } catch (IOException e) {
+          System.out.println("Watching new folder failed.");
+        }
+      }
+    }
+
+    if (!key.reset()) {
+      keys.remove(key);
+    }
+    return overflow;
+  }
+}
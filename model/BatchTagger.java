@@ -0,0 +1,383 @@
+package model;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
+import java.util.function.BiConsumer;
+import java.util.function.BiFunction;
+import java.util.function.IntConsumer;
+import java.util.function.UnaryOperator;
+
+/**
+ * Adds or removes a tag on many images at once. The renames run on a pool of background workers,
+ * and the history and log entries of each directory are written together once all its images are
+ * renamed, instead of one write per image. If the tags are kept in a tag store, the images get
+ * their new tags in the store instead of being renamed. Each image is changed holding its image
+ * lock, like the single changes made from the tree, so the two never change one image at once.
+ */
+public class BatchTagger {
+  private ExecutorService workers;
+  private LogManager logManager;
+
+  /**
+   * Instantiates a new Batch tagger.
+   *
+   * @param logManager the log manager that records the renames
+   * @param threads the number of images renamed at the same time
+   */
+  public BatchTagger(LogManager logManager, int threads) {
+    this.logManager = logManager;
+    workers =
+        Executors.newFixedThreadPool(
+            threads,
+            runnable -> {
+              Thread thread = new Thread(runnable, "batch-tagger");
+              thread.setDaemon(true);
+              return thread;
+            });
+  }
+
+  /**
+   * Gets the log manager that records the renames.
+   *
+   * @return the log manager
+   */
+  LogManager getLogManager() {
+    return logManager;
+  }
+
+  /**
+   * Add a tag to or remove it from images. Images that already have (or don't have) the tag are
+   * left alone, and an image is never renamed over an existing file.
+   *
+   * @param imagePaths the paths of images
+   * @param tag the tag
+   * @param add true to add the tag, false to remove it
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the new path of every renamed image, by its old path
+   */
+  public CompletableFuture<Map<String, String>> tag(
+      List<String> imagePaths, String tag, boolean add, IntConsumer progress) {
+    UnaryOperator<String> rewrite =
+        path -> {
+          if (!add) {
+            return FileManager.removeTagFromPath(path, tag);
+          }
+          return TagParser.hasTag(path, tag) ? path : FileManager.addTagToPath(path, tag);
+        };
+    return rename(imagePaths, rewrite, (oldPath, newPath) -> {}, true, progress)
+        .thenApply(Result::getRenamed);
+  }
+
+  /**
+   * Write the tags in the tag store into the names of the images, e.g. before the store is turned
+   * off. The store keeps the tags, so the images keep the same tags either way.
+   *
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the new path of every renamed image, by its old path
+   */
+  public CompletableFuture<Map<String, String>> exportTags(IntConsumer progress) {
+    TagStore store = FileManager.getTagStore();
+    if (store == null) {
+      return CompletableFuture.completedFuture(new ConcurrentHashMap<>());
+    }
+    return run(store.getImages(), BatchTagger::export, progress)
+        .thenApply(
+            result -> {
+              int count = result.getRenamed().size();
+              logManager.addEntry("Tags written into the names of " + count + " images");
+              return result.getRenamed();
+            });
+  }
+
+  /**
+   * Change the tags of images in parallel and record their history, one write per directory.
+   *
+   * @param imagePaths the paths of images
+   * @param rewrite gives the new path of an image, with its tags in its name, from its current one;
+   *     the same path to leave it alone
+   * @param beforeRename called with the old and new path right before an image is renamed
+   * @param logEach true to log every rename, false to leave logging to the caller
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the changed images and the images that can't be changed
+   */
+  CompletableFuture<Result> rename(
+      List<String> imagePaths,
+      UnaryOperator<String> rewrite,
+      BiConsumer<String, String> beforeRename,
+      boolean logEach,
+      IntConsumer progress) {
+    return run(
+        imagePaths,
+        (path, journal) -> change(path, rewrite, beforeRename, logEach, journal),
+        progress);
+  }
+
+  /**
+   * Change images in parallel and record their history, one write per directory.
+   *
+   * @param imagePaths the paths of images
+   * @param change changes one image, given its path and the operation journal, see {@link #change}
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the changed images and the images that can't be changed
+   */
+  private CompletableFuture<Result> run(
+      List<String> imagePaths,
+      BiFunction<String, OperationJournal, OperationJournal.Intent> change,
+      IntConsumer progress) {
+    OperationJournal journal = FileManager.getOperationJournal();
+    Map<String, String> renamed = new ConcurrentHashMap<>();
+    List<String> failed = Collections.synchronizedList(new ArrayList<>());
+    AtomicInteger done = new AtomicInteger();
+
+    LinkedHashMap<File, ArrayList<String>> directories = new LinkedHashMap<>();
+    for (String path : imagePaths) {
+      directories.computeIfAbsent(new File(path).getParentFile(), d -> new ArrayList<>()).add(path);
+    }
+
+    ArrayList<CompletableFuture<Void>> commits = new ArrayList<>();
+    for (Map.Entry<File, ArrayList<String>> directory : directories.entrySet()) {
+      ArrayList<CompletableFuture<OperationJournal.Intent>> changes = new ArrayList<>();
+      for (String path : directory.getValue()) {
+        changes.add(
+            CompletableFuture.supplyAsync(
+                () -> {
+                  OperationJournal.Intent intent = null;
+                  try {
+                    intent = change.apply(path, journal);
+                  } catch (RuntimeException e) {
+                    // any error only fails this image, the others of its directory are committed.
+                    failed.add(path);
+                  }
+                  try {
+                    progress.accept(done.incrementAndGet());
+                  } catch (RuntimeException e) {
+                    // the image is changed already, so its intent is still committed.
+                    System.out.println("Error reporting progress in BatchTagger.run.");
+                  }
+                  return intent;
+                },
+                workers));
+      }
+      commits.add(
+          CompletableFuture.allOf(changes.toArray(new CompletableFuture<?>[0]))
+              .thenRunAsync(
+                  () -> commit(directory.getKey(), changes, renamed, journal), workers));
+    }
+    return CompletableFuture.allOf(commits.toArray(new CompletableFuture<?>[0]))
+        .thenApply(v -> new Result(renamed, failed));
+  }
+
+  /**
+   * Change the tags of one image, in the tag store if there is one, else by renaming it. The
+   * change is written to the operation journal before it is made.
+   *
+   * @param path the path of image
+   * @param rewrite gives the new path of image, with its tags in its name
+   * @param beforeRename called with the old and new path right before the image is renamed
+   * @param logEach true to log the change
+   * @param journal the operation journal
+   * @return the intent of the change, null if the image needs no change
+   * @throws UncheckedIOException if the change can't be journaled or made
+   * @throws IllegalStateException if the tag store was turned off meanwhile
+   */
+  private OperationJournal.Intent change(
+      String path,
+      UnaryOperator<String> rewrite,
+      BiConsumer<String, String> beforeRename,
+      boolean logEach,
+      OperationJournal journal) {
+    Lock lock = FileManager.getImageLock(path);
+    lock.lock();
+    try {
+      return changeLocked(path, rewrite, beforeRename, logEach, journal);
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Change the tags of one image while holding its lock, see {@link #change}.
+   *
+   * @param path the path of image
+   * @param rewrite gives the new path of image, with its tags in its name
+   * @param beforeRename called with the old and new path right before the image is renamed
+   * @param logEach true to log the change
+   * @param journal the operation journal
+   * @return the intent of the change, null if the image needs no change
+   */
+  private OperationJournal.Intent changeLocked(
+      String path,
+      UnaryOperator<String> rewrite,
+      BiConsumer<String, String> beforeRename,
+      boolean logEach,
+      OperationJournal journal) {
+    if (!new File(path).exists()) {
+      // e.g. renamed by a single change that held the lock first.
+      throw new UncheckedIOException(new IOException(path + " no longer exists"));
+    }
+    String taggedPath = FileManager.taggedPath(path);
+    String newTaggedPath = rewrite.apply(taggedPath);
+    if (newTaggedPath.equals(taggedPath)) {
+      return null;
+    }
+    boolean inStore = FileManager.getTagStore() != null;
+    String newPath = inStore ? path : newTaggedPath;
+    String logLine = logEach ? logManager.formatInfo(taggedPath, newTaggedPath) : "";
+    OperationJournal.Intent intent =
+        journal.begin(path, newPath, taggedPath, newTaggedPath, logLine);
+    boolean changed = false;
+    try {
+      if (inStore) {
+        FileManager.retagImage(path, newTaggedPath);
+      } else {
+        beforeRename.accept(path, newPath);
+        rename(path, newPath);
+      }
+      changed = true;
+      return intent;
+    } finally {
+      if (!changed) {
+        // the image is left as it was.
+        journal.finish(intent);
+      }
+    }
+  }
+
+  /**
+   * Rename one image so its name has the tags it has in the tag store.
+   *
+   * @param path the path of image
+   * @param journal the operation journal
+   * @return the intent of the rename, null if the image needs no rename
+   * @throws UncheckedIOException if the rename can't be journaled or made
+   */
+  private static OperationJournal.Intent export(String path, OperationJournal journal) {
+    Lock lock = FileManager.getImageLock(path);
+    lock.lock();
+    try {
+      String taggedPath = FileManager.taggedPath(path);
+      if (taggedPath.equals(path)) {
+        return null;
+      }
+      OperationJournal.Intent intent =
+          journal.begin(path, taggedPath, taggedPath, taggedPath, "");
+      try {
+        rename(path, taggedPath);
+      } catch (UncheckedIOException e) {
+        journal.finish(intent);
+        throw e;
+      }
+      return intent;
+    } finally {
+      lock.unlock();
+    }
+  }
+
+  /**
+   * Rename an image without replacing another file.
+   *
+   * @param path the path of image
+   * @param newPath the new path of image
+   * @throws UncheckedIOException if the image can't be renamed, e.g. because the new path exists
+   */
+  private static void rename(String path, String newPath) {
+    if (!FileManager.renameImage(path, newPath)) {
+      throw new UncheckedIOException(new IOException("Can't rename " + path + " to " + newPath));
+    }
+  }
+
+  /**
+   * Write the history and log entries of the changed images in one directory, then finish their
+   * intents in the operation journal.
+   *
+   * @param directory the directory of images
+   * @param changes the intents of the changed images in this directory, null for unchanged ones
+   * @param renamed new paths of all changed images, by old path
+   * @param journal the operation journal
+   */
+  private void commit(
+      File directory,
+      ArrayList<CompletableFuture<OperationJournal.Intent>> changes,
+      Map<String, String> renamed,
+      OperationJournal journal) {
+    ArrayList<OperationJournal.Intent> intents = new ArrayList<>();
+    for (CompletableFuture<OperationJournal.Intent> future : changes) {
+      if (future.join() != null) {
+        intents.add(future.join());
+      }
+    }
+    try {
+      ArrayList<String[]> names = new ArrayList<>();
+      ArrayList<String> lines = new ArrayList<>();
+      for (OperationJournal.Intent intent : intents) {
+        renamed.put(intent.oldPath, intent.newPath);
+        // the history and log show the names with the tags, also if the tags are in the store.
+        if (!intent.oldTaggedPath.equals(intent.newTaggedPath)) {
+          names.add(
+              new String[] {
+                StringManipulator.convertPathToName(intent.oldTaggedPath),
+                StringManipulator.convertPathToName(intent.newTaggedPath)
+              });
+        }
+        if (!intent.logLine.isEmpty()) {
+          lines.add(intent.logLine);
+        }
+      }
+      if (!names.isEmpty()) {
+        HistoryJournal.open(directory).addNames(names);
+      }
+      logManager.addLines(lines);
+    } finally {
+      for (OperationJournal.Intent intent : intents) {
+        journal.finish(intent);
+      }
+    }
+  }
+
+  /** The images a batch changed, and the images it could not change. */
+  public static final class Result {
+    private final Map<String, String> renamed;
+    private final List<String> failed;
+
+    /**
+     * Instantiates a new Result.
+     *
+     * @param renamed the new path of every changed image, by its old path
+     * @param failed the paths of images that can't be changed
+     */
+    Result(Map<String, String> renamed, List<String> failed) {
+      this.renamed = renamed;
+      this.failed = failed;
+    }
+
+    /**
+     * Gets the changed images.
+     *
+     * @return the new path of every changed image, by its old path
+     */
+    public Map<String, String> getRenamed() {
+      return renamed;
+    }
+
+    /**
+     * Gets the images that can't be changed, e.g. because an image with the new name exists.
+     *
+     * @return the paths of images
+     */
+    public List<String> getFailed() {
+      return failed;
+    }
+  }
+}
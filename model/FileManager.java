@@ -1,19 +1,32 @@
 package model;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
+import java.io.UncheckedIOException;
 import java.nio.file.Files;
-import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.nio.file.StandardCopyOption;
 import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collections;
+import java.util.concurrent.locks.Lock;
+import java.util.concurrent.locks.ReentrantLock;
 
 /** The type File manager. */
 public class FileManager {
+  private static TagIndex tagIndex;
+  private static volatile TagStore tagStore;
+  private static volatile OperationJournal journal = OperationJournal.NONE;
+  // locks that make the changes of one image run one after another, picked by its path.
+  private static final ReentrantLock[] imageLocks = new ReentrantLock[64];
   private String imagePath;
 
+  static {
+    for (int i = 0; i < imageLocks.length; i++) {
+      imageLocks[i] = new ReentrantLock();
+    }
+  }
+
   /**
    * Instantiates a new File manager.
    *
@@ -23,6 +36,81 @@ public class FileManager {
     this.imagePath = imagePath;
   }
 
+  /**
+   * Gets the lock that changes of an image hold while they read its tags and rename it, so single
+   * changes and batches on the same image don't overwrite each other. Hold only one at a time.
+   *
+   * @param imagePath the path of image
+   * @return the lock of image, shared with a few other images
+   */
+  public static Lock getImageLock(String imagePath) {
+    int hash = imagePath.hashCode();
+    return imageLocks[(hash ^ (hash >>> 16)) & (imageLocks.length - 1)];
+  }
+
+  /**
+   * Set the tag index that is kept up to date whenever an image is moved or renamed.
+   *
+   * @param index the tag index of loaded folder
+   */
+  public static void setTagIndex(TagIndex index) {
+    tagIndex = index;
+  }
+
+  /**
+   * Set the sidecar store that the tags of images are kept in, instead of in their names. The store
+   * that was set before is closed.
+   *
+   * @param store the tag store of loaded folder, null to keep tags in the image names
+   */
+  public static synchronized void setTagStore(TagStore store) {
+    if (tagStore != null && tagStore != store) {
+      tagStore.close();
+    }
+    tagStore = store;
+  }
+
+  /**
+   * Gets the sidecar store that the tags of images are kept in.
+   *
+   * @return the tag store, null if the tags are in the image names
+   */
+  public static TagStore getTagStore() {
+    return tagStore;
+  }
+
+  /**
+   * Set the journal that every rename or tag change is written to before it happens.
+   *
+   * @param operationJournal the operation journal, null to not journal changes
+   */
+  public static void setOperationJournal(OperationJournal operationJournal) {
+    journal = operationJournal == null ? OperationJournal.NONE : operationJournal;
+  }
+
+  /**
+   * Gets the journal that every rename or tag change is written to before it happens.
+   *
+   * @return the operation journal
+   */
+  static OperationJournal getOperationJournal() {
+    return journal;
+  }
+
+  /**
+   * Check if a file is an image by its name.
+   *
+   * @param name the name of file
+   * @return true if the file is an image, else false.
+   */
+  public static boolean isImage(String name) {
+    return name.endsWith("bmp")
+        || name.endsWith("jpg")
+        || name.endsWith("jpeg")
+        || name.endsWith("gif")
+        || name.endsWith("png");
+  }
+
   /**
    * Takes in a directory of image and returns all the tags that the image have.
    *
@@ -30,13 +118,27 @@ public class FileManager {
    * @return an array of image tags in that folder.
    */
   static ArrayList<String> getImageTags(String imagePath) {
-    ArrayList<String> tags = new ArrayList<>();
-    String imageName = StringManipulator.convertPathToName(imagePath);
-    String tag = StringManipulator.getFirstTag(imageName);
-    while (!tag.equals("")) {
-      tags.add(tag);
-      imageName = imageName.substring(imageName.indexOf(" @") + 2);
-      tag = StringManipulator.getFirstTag(imageName);
+    TagStore store = tagStore;
+    ArrayList<String> stored = store == null ? null : store.getTags(imagePath);
+    return stored != null ? stored : parseTags(imagePath);
+  }
+
+  /**
+   * Get the tags in the name of an image.
+   *
+   * @param imagePath the path of image
+   * @return the tags in its name
+   */
+  private static ArrayList<String> parseTags(String imagePath) {
+    int[] bounds = new int[16];
+    int count = TagParser.parse(imagePath, bounds);
+    if (count * 2 > bounds.length) {
+      bounds = new int[count * 2];
+      TagParser.parse(imagePath, bounds);
+    }
+    ArrayList<String> tags = new ArrayList<>(count);
+    for (int i = 0; i < count; i++) {
+      tags.add(imagePath.substring(bounds[i * 2], bounds[i * 2 + 1]));
     }
     return tags;
   }
@@ -49,12 +151,135 @@ public class FileManager {
    * @return true if the image contains tag, else false.
    */
   public static boolean containsTag(String imagePath, ArrayList<String> tags) {
-    ArrayList<String> imageTags = getImageTags(imagePath);
-    for (String tag : tags) {
-      if (!imageTags.contains(tag)) {
-        return false;
-      }
+    return TagParser.hasAllTags(taggedPath(imagePath), tags);
+  }
+
+  /**
+   * Check if an image has a tag, without parsing all of its tags.
+   *
+   * @param imagePath the path of image
+   * @param tag the tag
+   * @return true if the image has the tag, else false
+   */
+  public static boolean hasTag(String imagePath, String tag) {
+    return TagParser.hasTag(taggedPath(imagePath), tag);
+  }
+
+  /**
+   * Get the tags of an image as a set of tag ids.
+   *
+   * @param imagePath the path of image
+   * @param registry the registry that assigns ids to tags
+   * @return a bitset with the id of every registered tag of the image set
+   */
+  public static BitSet getImageTagSet(String imagePath, TagRegistry registry) {
+    BitSet ids = new BitSet();
+    TagParser.addTagIds(taggedPath(imagePath), registry, ids);
+    return ids;
+  }
+
+  /**
+   * Get the path an image has with its tags in its name. That is the image's own path, unless its
+   * tags are in the tag store. Tag lookups and the name history use this path, so they work the
+   * same whether the tags are in the names or in the store.
+   *
+   * @param imagePath the path of image
+   * @return the path with the tags of image in its name
+   */
+  static String taggedPath(String imagePath) {
+    TagStore store = tagStore;
+    ArrayList<String> stored = store == null ? null : store.getTags(imagePath);
+    return stored == null ? imagePath : TagParser.withTags(imagePath, stored);
+  }
+
+  /**
+   * Give an image the tags in the name of a tagged path, in the tag store, keeping the tag index up
+   * to date.
+   *
+   * @param imagePath the path of image
+   * @param taggedPath the path with the new tags of image in its name
+   * @throws IllegalStateException if there is no tag store
+   * @throws UncheckedIOException if the tag store can't be written
+   */
+  static void retagImage(String imagePath, String taggedPath) {
+    TagStore store = tagStore;
+    if (store == null) {
+      throw new IllegalStateException("The tags are kept in the image names.");
+    }
+    if (tagIndex != null) {
+      tagIndex.removeImage(imagePath);
+    }
+    store.setTags(imagePath, parseTags(taggedPath));
+    if (tagIndex != null) {
+      tagIndex.addImage(imagePath);
     }
+  }
+
+  /**
+   * Get the path an image has after a tag is added to its name.
+   *
+   * @param imagePath the path of image
+   * @param tag the tag to add
+   * @return the new path
+   */
+  static String addTagToPath(String imagePath, String tag) {
+    return imagePath.substring(0, imagePath.lastIndexOf("."))
+        + " @"
+        + tag
+        + imagePath.substring(imagePath.lastIndexOf("."));
+  }
+
+  /**
+   * Get the path an image has after a tag is removed from its name. Only the whole tag is removed,
+   * so removing "sun" keeps "sunset".
+   *
+   * @param imagePath the path of image
+   * @param tag the tag to remove
+   * @return the new path, the same path if the image doesn't have the tag
+   */
+  static String removeTagFromPath(String imagePath, String tag) {
+    int start = TagParser.indexOf(imagePath, tag);
+    if (start == -1) {
+      return imagePath;
+    }
+    return imagePath.substring(0, start - 2) + imagePath.substring(start + tag.length());
+  }
+
+  /**
+   * Get the path an image has after a tag in its name is replaced by another tag, in the same
+   * place. If the image already has the other tag, the old tag is only removed.
+   *
+   * @param imagePath the path of image
+   * @param oldTag the tag to replace
+   * @param newTag the tag to put in its place, null to only remove the old tag
+   * @return the new path, the same path if the image doesn't have the old tag
+   */
+  static String replaceTagInPath(String imagePath, String oldTag, String newTag) {
+    int start = TagParser.indexOf(imagePath, oldTag);
+    if (start == -1) {
+      return imagePath;
+    }
+    String rest = imagePath.substring(start + oldTag.length());
+    if (newTag == null || TagParser.hasTag(imagePath, newTag)) {
+      return imagePath.substring(0, start - 2) + rest;
+    }
+    return imagePath.substring(0, start) + newTag + rest;
+  }
+
+  /**
+   * Rename an image without replacing another file, keeping the tag index up to date.
+   *
+   * @param oldPath the old path of image
+   * @param newPath the new path of image
+   * @return true if the image is renamed, else false
+   */
+  static boolean renameImage(String oldPath, String newPath) {
+    try {
+      Files.move(Paths.get(oldPath), Paths.get(newPath));
+    } catch (IOException e) {
+      return false;
+    }
+    updateMovedImage(oldPath, newPath);
     return true;
   }
 
@@ -63,33 +288,29 @@ public class FileManager {
    *
    * @param newPath The new path/name of image.
    * @return The image file.
+   * @throws UncheckedIOException if the image can't be moved
    */
   public File moveImage(String newPath) {
     try {
       Files.move(Paths.get(imagePath), Paths.get(newPath), StandardCopyOption.REPLACE_EXISTING);
-      this.imagePath = newPath;
     } catch (IOException e) {
-      System.out.println("File IO error at model.FileManager moveImage.");
+      throw new UncheckedIOException("Can't move " + imagePath + " to " + newPath + ".", e);
     }
+    updateMovedImage(imagePath, newPath);
+    this.imagePath = newPath;
     return new File(newPath);
   }
 
-  public File moveImage(String newPath) {
-      imagePath = newPath;
-  }
-
   /**
    * Change image name.
    *
    * @param newName The new name
    * @param logManager the log manager
    * @return the file
+   * @throws UncheckedIOException if the image can't be renamed
    */
   public File changeImageName(String newName, LogManager logManager) {
-    String newPath = StringManipulator.changePathName(imagePath, newName);
-    addNameToHistory(newPath);
-    logManager.addInfo(imagePath, newPath);
-    return moveImage(newPath);
+    return renameAndRecord(StringManipulator.changePathName(imagePath, newName), logManager);
   }
 
   /**
@@ -98,16 +319,10 @@ public class FileManager {
    * @param tag the tag to add
    * @param logManager the LM instance.
    * @return the image file
+   * @throws UncheckedIOException if the image can't be renamed
    */
   public File addTagToImage(String tag, LogManager logManager) {
-    String newPath =
-        imagePath.substring(0, imagePath.lastIndexOf("."))
-            + " @"
-            + tag
-            + imagePath.substring(imagePath.lastIndexOf("."));
-    addNameToHistory(newPath);
-    logManager.addInfo(imagePath, newPath);
-    return moveImage(newPath);
+    return changeTags(addTagToPath(taggedPath(imagePath), tag), logManager);
   }
 
   /**
@@ -116,13 +331,103 @@ public class FileManager {
    * @param tag the tag to add
    * @param logManager the LM instance.
    * @return the image file
+   * @throws UncheckedIOException if the image can't be renamed
    */
   public File deleteTagToImage(String tag, LogManager logManager) {
-    // replace tag with an empty string
-    String newPath = imagePath.replaceFirst(" @" + tag, "");
-    addNameToHistory(newPath);
-    logManager.addInfo(imagePath, newPath);
-    return moveImage(newPath);
+    return changeTags(removeTagFromPath(taggedPath(imagePath), tag), logManager);
+  }
+
+  /**
+   * Rename this image, then record the rename in its history and the log. The rename is journaled
+   * first, and nothing is recorded if it fails.
+   *
+   * @param newPath the new path of image
+   * @param logManager the log manager
+   * @return the image file
+   * @throws UncheckedIOException if the image can't be renamed
+   */
+  private File renameAndRecord(String newPath, LogManager logManager) {
+    TagStore store = tagStore;
+    ArrayList<String> stored = store == null ? null : store.getTags(imagePath);
+    String oldTaggedPath = taggedPath(imagePath);
+    String newTaggedPath = stored == null ? newPath : TagParser.withTags(newPath, stored);
+    OperationJournal operationJournal = journal;
+    OperationJournal.Intent intent =
+        operationJournal.begin(
+            imagePath,
+            newPath,
+            oldTaggedPath,
+            newTaggedPath,
+            logManager.formatInfo(oldTaggedPath, newTaggedPath));
+    try {
+      File file = moveImage(newPath);
+      record(intent, logManager);
+      return file;
+    } finally {
+      operationJournal.finish(intent);
+    }
+  }
+
+  /**
+   * Give this image new tags, in the tag store if there is one, else by renaming it, and record the
+   * change in its history and the log.
+   *
+   * @param newTaggedPath the path with the new tags of image in its name
+   * @param logManager the log manager
+   * @return the image file
+   * @throws UncheckedIOException if the image can't be renamed or the tag store can't be written
+   */
+  private File changeTags(String newTaggedPath, LogManager logManager) {
+    if (tagStore == null) {
+      return renameAndRecord(newTaggedPath, logManager);
+    }
+    String oldTaggedPath = taggedPath(imagePath);
+    OperationJournal operationJournal = journal;
+    OperationJournal.Intent intent =
+        operationJournal.begin(
+            imagePath,
+            imagePath,
+            oldTaggedPath,
+            newTaggedPath,
+            logManager.formatInfo(oldTaggedPath, newTaggedPath));
+    try {
+      retagImage(imagePath, newTaggedPath);
+      record(intent, logManager);
+      return new File(imagePath);
+    } finally {
+      operationJournal.finish(intent);
+    }
+  }
+
+  /**
+   * Write the history and log entries of a change.
+   *
+   * @param intent the intent of change
+   * @param logManager the log manager
+   */
+  private static void record(OperationJournal.Intent intent, LogManager logManager) {
+    addNameToHistory(intent.oldTaggedPath, intent.newTaggedPath);
+    logManager.addLines(Collections.singletonList(intent.logLine));
+  }
+
+  /**
+   * Keep the tag store and tag index up to date after an image is renamed or moved.
+   *
+   * @param oldPath the old path of image
+   * @param newPath the new path of image
+   */
+  private static void updateMovedImage(String oldPath, String newPath) {
+    // the index looks up the tags of both paths, so the store has to move in between.
+    if (tagIndex != null) {
+      tagIndex.removeImage(oldPath);
+    }
+    TagStore store = tagStore;
+    if (store != null) {
+      store.moveImage(oldPath, newPath);
+    }
+    if (tagIndex != null) {
+      tagIndex.addImage(newPath);
+    }
   }
 
   /**
@@ -139,88 +444,23 @@ public class FileManager {
    *
    * @return the array list of image history
    */
-  // a list of lists of history names of each image.
+  // the names of this image, from its current name back to its first name.
   public ArrayList<String> getImageHistory() {
-    String imageName = StringManipulator.convertPathToName(imagePath);
-    Path path = Paths.get(imagePath.substring(0, imagePath.lastIndexOf("/") + 1) + "history.txt");
-    ArrayList<String> imageHistory = new ArrayList<>();
-    try (BufferedReader fileInput = Files.newBufferedReader(path)) {
-      String line = fileInput.readLine();
-      while (line != null) {
-        if (line.equals(imageName)) {
-          while (!line.equals("")) {
-            imageHistory.add(line);
-            line = fileInput.readLine();
-          }
-          return imageHistory;
-        }
-        line = fileInput.readLine();
-      }
-    } catch (IOException | NullPointerException e) {
-      System.out.println("Get history not working.");
-    }
-    return imageHistory;
+    String imageName = StringManipulator.convertPathToName(taggedPath(imagePath));
+    return HistoryJournal.open(new File(imagePath).getParentFile()).getHistory(imageName);
   }
 
   /**
-   * Add name to history.txt.
+   * Add name to the history journal of this image's directory.
    *
-   * @param newPath the new log_path of history.txt
+   * @param oldPath the old path of this image
+   * @param newPath the new path of this image
    */
   // add a file's name to history.
-  private void addNameToHistory(String newPath) {
-    String historyPath = imagePath.substring(0, imagePath.lastIndexOf("/") + 1) + "history.txt";
-    File file = new File(historyPath);
-
-    // create a history.txt if it doesn't already exist in this directory.
-    if (!file.exists()) {
-      FileWriter fileWriter;
-      try {
-        fileWriter = new FileWriter(file);
-        fileWriter.close();
-      } catch (Throwable e) {
-        System.out.println("IOError in HM.addNameToHistory.");
-      }
-    }
-
-    Path path = Paths.get(historyPath);
-    ArrayList<String> imageHistory = new ArrayList<>();
-    boolean flag = false;
-    try (BufferedReader fileInput = Files.newBufferedReader(path)) {
-      String line = fileInput.readLine();
-      String newName = StringManipulator.convertPathToName(newPath);
-      // Add the newName in front of the line that matches oldName.
-      while (line != null) {
-        if (line.equals(StringManipulator.convertPathToName(imagePath))) {
-          if (!flag) {
-            imageHistory.add(newName);
-            flag = true;
-          }
-        }
-        imageHistory.add(line);
-        line = fileInput.readLine();
-      }
-      // If no oldName found, add it at the very back of History.
-      if (!flag) {
-        imageHistory.add(StringManipulator.convertPathToName(newPath));
-        imageHistory.add(StringManipulator.convertPathToName(imagePath));
-        imageHistory.add("");
-      }
-    } catch (IOException | NullPointerException e) {
-      System.out.println("End of history.txt");
-    }
-
-    // Write history back into history.txt.
-    File file1 = new File(historyPath);
-    FileWriter fileWriter;
-    try {
-      fileWriter = new FileWriter(file1);
-      for (String info : imageHistory) {
-        fileWriter.write(info + "\n");
-      }
-      fileWriter.close();
-    } catch (Throwable e) {
-      System.out.println("End of imageHistory array at HistoryManager.");
-    }
+  private static void addNameToHistory(String oldPath, String newPath) {
+    HistoryJournal.open(new File(newPath).getParentFile())
+        .addName(
+            StringManipulator.convertPathToName(oldPath),
+            StringManipulator.convertPathToName(newPath));
   }
 }
@@ -0,0 +1,35 @@
+package model;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+
+/**
+ * The stamp of a folder, its modification time, which changes when an entry is added, removed or
+ * renamed. A folder whose stamp is unchanged need not be listed again. A time in the last few
+ * seconds is not trusted, since a change in the same tick of a coarse file system clock would not
+ * move it.
+ */
+public final class FolderStamp {
+  /** Stamp of a folder whose changes can't be detected, so it is always listed again. */
+  public static final long UNKNOWN = -1;
+
+  private static final long SETTLE_MILLIS = 2000;
+
+  private FolderStamp() {}
+
+  /**
+   * Get the stamp of a folder.
+   *
+   * @param directory the folder
+   * @return the stamp, {@link #UNKNOWN} if it can't be read or is too recent
+   */
+  public static long of(Path directory) {
+    try {
+      long modified = Files.getLastModifiedTime(directory).toMillis();
+      return System.currentTimeMillis() - modified < SETTLE_MILLIS ? UNKNOWN : modified;
+    } catch (IOException e) {
+      return UNKNOWN;
+    }
+  }
+}
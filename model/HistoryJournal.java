@@ -0,0 +1,346 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.lang.ref.WeakReference;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Name history of the images in one directory, kept in an append-only journal called
+ * history.journal. Each record is length-prefixed, so a record cut off by a crash is detected and
+ * dropped. The rename chains are rebuilt in memory when the journal is opened, and the journal is
+ * compacted into one record per chain once enough renames have piled up. An existing history.txt
+ * is migrated the first time its directory is opened.
+ *
+ * <p>Every image with a history has a stable id, its position in the chain list, and every name
+ * it ever had maps to that id, so finding or extending the history of a name is a hash lookup.
+ * Chains are never dropped and are compacted in id order, so ids stay the same across sessions.
+ *
+ * <p>Only the journals of the most recently used directories are kept in memory. Others are read
+ * again when next opened, unless they are still in use, which keeps one journal per directory.
+ */
+public class HistoryJournal {
+  private static final byte RENAME = 'R';
+  private static final byte CHAIN = 'C';
+  private static final int COMPACT_THRESHOLD = 1024;
+  private static final int MAX_OPEN = 64;
+  // every journal that is still reachable, so a directory never gets two of them.
+  private static Map<String, WeakReference<HistoryJournal>> journals = new HashMap<>();
+  // the recently used journals, kept reachable until they are the eldest of too many.
+  private static Map<String, HistoryJournal> recent =
+      new LinkedHashMap<String, HistoryJournal>(16, 0.75f, true) {
+        @Override
+        protected boolean removeEldestEntry(Map.Entry<String, HistoryJournal> eldest) {
+          return size() > MAX_OPEN;
+        }
+      };
+
+  private File journal;
+  // chains of names from oldest to newest, by image id.
+  private ArrayList<ArrayList<String>> chains = new ArrayList<>();
+  // image id of every name, the image that had a name last wins.
+  private HashMap<String, Integer> ids = new HashMap<>();
+  private int renames = 0;
+
+  /**
+   * Opens the journal of a directory, reading it or migrating history.txt if needed.
+   *
+   * @param directory the directory of images
+   */
+  HistoryJournal(File directory) {
+    journal = new File(directory, "history.journal");
+    File historyTxt = new File(directory, "history.txt");
+    if (journal.exists()) {
+      readJournal();
+    } else if (historyTxt.exists()) {
+      migrate(historyTxt);
+    }
+  }
+
+  /**
+   * Get the journal of a directory, opening it if it is not in memory.
+   *
+   * @param directory the directory of images
+   * @return the history journal
+   */
+  public static synchronized HistoryJournal open(File directory) {
+    String path = directory.getAbsolutePath();
+    WeakReference<HistoryJournal> reference = journals.get(path);
+    HistoryJournal journal = reference == null ? null : reference.get();
+    if (journal == null) {
+      if (journals.size() >= MAX_OPEN * 2) {
+        journals.values().removeIf(unused -> unused.get() == null);
+      }
+      journal = new HistoryJournal(directory);
+      journals.put(path, new WeakReference<>(journal));
+    }
+    recent.put(path, journal);
+    return journal;
+  }
+
+  /** Drop the journals kept in memory, they are read again when next opened. */
+  static synchronized void closeAll() {
+    journals.clear();
+    recent.clear();
+  }
+
+  /**
+   * Get all names of an image, from its current name back to its first name.
+   *
+   * @param name the current name of image
+   * @return the names, empty if the image was never renamed
+   */
+  public synchronized ArrayList<String> getHistory(String name) {
+    ArrayList<String> history = new ArrayList<>();
+    int id = getImageId(name);
+    if (id != -1) {
+      history.addAll(chains.get(id));
+      Collections.reverse(history);
+    }
+    return history;
+  }
+
+  /**
+   * Get the id of the image that currently has a name.
+   *
+   * @param name the current name of image
+   * @return the image id, -1 if no image with this name has a history
+   */
+  public synchronized int getImageId(String name) {
+    Integer id = ids.get(name);
+    if (id == null) {
+      return -1;
+    }
+    // a name that was given up by its image belongs to no history now.
+    ArrayList<String> chain = chains.get(id);
+    return chain.get(chain.size() - 1).equals(name) ? id : -1;
+  }
+
+  /**
+   * Record that an image got a new name.
+   *
+   * @param oldName the old name of image
+   * @param newName the new name of image
+   */
+  public synchronized void addName(String oldName, String newName) {
+    addNames(Collections.singletonList(new String[] {oldName, newName}));
+  }
+
+  /**
+   * Record that many images got new names, with one write to the journal.
+   *
+   * @param names pairs of old and new name
+   */
+  public synchronized void addNames(List<String[]> names) {
+    for (String[] rename : names) {
+      applyRename(rename[0], rename[1]);
+    }
+
+    try (DataOutputStream output =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)))) {
+      for (String[] rename : names) {
+        writeRecord(output, RENAME, rename[0], rename[1]);
+      }
+    } catch (IOException e) {
+      System.out.println("IOError in HistoryJournal.addNames.");
+      return;
+    }
+
+    renames += names.size();
+    if (renames > COMPACT_THRESHOLD && renames > chains.size()) {
+      compact();
+    }
+  }
+
+  /** Wait until the disk has every record written to the journal so far. */
+  synchronized void sync() {
+    if (!journal.exists()) {
+      return;
+    }
+    try (FileChannel channel = FileChannel.open(journal.toPath(), StandardOpenOption.WRITE)) {
+      channel.force(true);
+    } catch (IOException e) {
+      System.out.println("IOError in HistoryJournal.sync.");
+    }
+  }
+
+  /** Rewrite the journal as one record per chain. */
+  public synchronized void compact() {
+    File compacted = new File(journal.getPath() + ".tmp");
+    try (FileOutputStream file = new FileOutputStream(compacted);
+        DataOutputStream output = new DataOutputStream(new BufferedOutputStream(file))) {
+      for (ArrayList<String> chain : chains) {
+        writeRecord(output, CHAIN, chain.toArray(new String[0]));
+      }
+      // on disk before it replaces the journal, so a crash can't leave an empty journal.
+      output.flush();
+      file.getChannel().force(true);
+    } catch (IOException e) {
+      System.out.println("Compacting history failed.");
+      return;
+    }
+    try {
+      Files.move(
+          compacted.toPath(),
+          journal.toPath(),
+          StandardCopyOption.REPLACE_EXISTING,
+          StandardCopyOption.ATOMIC_MOVE);
+      renames = 0;
+    } catch (IOException e) {
+      System.out.println("Compacting history failed.");
+    }
+  }
+
+  /**
+   * Write one length-prefixed record.
+   *
+   * @param output the journal
+   * @param type RENAME with old and new name, or CHAIN with all names from oldest to newest
+   * @param names the names in this record
+   * @throws IOException if the journal can't be written
+   */
+  private static void writeRecord(DataOutputStream output, byte type, String... names)
+      throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream record = new DataOutputStream(bytes);
+    record.writeByte(type);
+    record.writeInt(names.length);
+    for (String name : names) {
+      record.writeUTF(name);
+    }
+    output.writeInt(bytes.size());
+    bytes.writeTo(output);
+  }
+
+  /** Replay the journal into chains, cutting off a record that was not completely written. */
+  private void readJournal() {
+    long valid = 0;
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+      while (true) {
+        int length = input.readInt();
+        byte[] bytes = new byte[length];
+        input.readFully(bytes);
+        DataInputStream record = new DataInputStream(new ByteArrayInputStream(bytes));
+        byte type = record.readByte();
+        String[] names = new String[record.readInt()];
+        for (int i = 0; i < names.length; i++) {
+          names[i] = record.readUTF();
+        }
+
+        if (type == RENAME) {
+          applyRename(names[0], names[1]);
+          renames++;
+        } else {
+          ArrayList<String> chain = new ArrayList<>();
+          Collections.addAll(chain, names);
+          addChain(chain);
+        }
+        valid += 4 + length;
+      }
+    } catch (EOFException e) {
+      // end of journal, or a record cut off by a crash.
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Error reading history journal, dropping unreadable records.");
+    }
+
+    if (valid < journal.length()) {
+      try (RandomAccessFile file = new RandomAccessFile(journal, "rw")) {
+        file.setLength(valid);
+      } catch (IOException e) {
+        System.out.println("Error repairing history journal.");
+      }
+    }
+  }
+
+  /**
+   * Read the chains of an old history.txt (names from newest to oldest, each chain ended by an
+   * empty line), write them as a new journal and keep history.txt as history.txt.bak.
+   *
+   * @param historyTxt the old history file
+   */
+  private void migrate(File historyTxt) {
+    try (BufferedReader fileInput = Files.newBufferedReader(historyTxt.toPath())) {
+      ArrayList<String> chain = new ArrayList<>();
+      String line = fileInput.readLine();
+      while (line != null) {
+        if (line.equals("")) {
+          addChain(chain);
+          chain = new ArrayList<>();
+        } else {
+          chain.add(0, line);
+        }
+        line = fileInput.readLine();
+      }
+      addChain(chain);
+    } catch (IOException e) {
+      System.out.println("Error reading history.txt.");
+      return;
+    }
+
+    compact();
+    try {
+      Files.move(
+          historyTxt.toPath(),
+          new File(historyTxt.getPath() + ".bak").toPath(),
+          StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      System.out.println("history.txt is migrated but could not be renamed.");
+    }
+  }
+
+  /**
+   * Extend the chain of the image that has the old name, or start a new chain.
+   *
+   * @param oldName the old name of image
+   * @param newName the new name of image
+   */
+  private void applyRename(String oldName, String newName) {
+    int id = getImageId(oldName);
+    if (id == -1) {
+      ArrayList<String> chain = new ArrayList<>();
+      chain.add(oldName);
+      id = addChain(chain);
+    }
+    chains.get(id).add(newName);
+    ids.put(newName, id);
+  }
+
+  /**
+   * Give a chain the next image id, unless it is empty.
+   *
+   * @param chain names from oldest to newest
+   * @return the image id, -1 if the chain is empty
+   */
+  private int addChain(ArrayList<String> chain) {
+    if (chain.isEmpty()) {
+      return -1;
+    }
+    int id = chains.size();
+    chains.add(chain);
+    for (String name : chain) {
+      ids.put(name, id);
+    }
+    return id;
+  }
+}
@@ -2,6 +2,8 @@ package model;
 
 import java.io.*;
 import java.util.ArrayList;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
 
 /** Manage informations recorded in a txt file in home directory. */
 abstract class InfoManager {
@@ -9,21 +11,31 @@ abstract class InfoManager {
   ArrayList<String> infos = new ArrayList<>();
 
   private String path;
+  private CompletableFuture<Void> loading = CompletableFuture.completedFuture(null);
 
   /**
-   * Instantiates a new Info manager. Reads all the information recorded in txt file into arraylist
-   * infos.
+   * Instantiates a new Info manager. The information recorded in txt file is read by {@link
+   * #loadLater}, if the subclass needs it.
    *
    * @param path the path of txt file that records info
    */
   InfoManager(String path) {
     this.path = path;
+  }
+
+  /**
+   * Read all the information recorded in txt file.
+   *
+   * @return the lines of txt file, empty if it doesn't exist
+   */
+  private ArrayList<String> readLines() {
+    ArrayList<String> lines = new ArrayList<>();
     File file = new File(this.path);
     if (file.exists() && !file.isDirectory()) {
       try (BufferedReader fileInput = new BufferedReader(new FileReader(file))) {
         String line = fileInput.readLine();
         while (line != null) {
-          infos.add(line);
+          lines.add(line);
           line = fileInput.readLine();
         }
       } catch (IOException e) {
@@ -32,6 +44,50 @@ abstract class InfoManager {
     } else {
       System.out.println("Not stored yet.");
     }
+    return lines;
+  }
+
+  /**
+   * Read the txt file into arraylist infos in the background, then call {@link #loaded()} on the
+   * same thread. Called by subclasses at the end of their constructor, once their own fields are
+   * set. Methods that need the information wait for it with {@link #awaitLoaded()}.
+   *
+   * @param executor runs the reading, e.g. Runnable::run to read right away
+   */
+  void loadLater(Executor executor) {
+    loading =
+        CompletableFuture.runAsync(
+            () -> {
+              infos.addAll(readLines());
+              loaded();
+            },
+            executor);
+  }
+
+  /** Take in the information read by {@link #loadLater}, e.g. to index it. */
+  void loaded() {}
+
+  /** Wait until the information read by {@link #loadLater} is taken in. */
+  void awaitLoaded() {
+    loading.join();
+  }
+
+  /**
+   * Gets a future completed once the information read by {@link #loadLater} is taken in.
+   *
+   * @return the future, already completed if nothing is read in the background
+   */
+  public CompletableFuture<Void> whenLoaded() {
+    return loading;
+  }
+
+  /**
+   * Gets the path of txt file that records info.
+   *
+   * @return the path
+   */
+  String getPath() {
+    return path;
   }
 
   /** Add a new piece of information into arraylist. */
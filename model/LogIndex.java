@@ -0,0 +1,240 @@
+package model;
+
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.Arrays;
+import java.util.Objects;
+import java.util.zip.GZIPInputStream;
+
+/**
+ * Read-only view of log.txt for browsing. The file is memory mapped and the start of every line is
+ * found in one pass, after which any line can be read without reading the others. Log entries are
+ * appended oldest first, so a time range is found by binary search over the entry dates.
+ *
+ * <p>The index is kept while the app runs and only looks at the lines appended since, when it is
+ * refreshed. A line that is still being written is indexed once it is complete. Rotated segments
+ * are decompressed into memory and indexed the same way, when they are asked for.
+ */
+public class LogIndex {
+  // null for a rotated segment, which never changes.
+  private File file;
+  // the identity of the indexed log.txt, which changes when it is rotated.
+  private Object fileKey;
+  private ByteBuffer buffer;
+  // start and end of every line, two numbers per line.
+  private int[] offsets = new int[1024];
+  private int lines = 0;
+  // the offset after the last indexed line.
+  private int scanned = 0;
+
+  /**
+   * Instantiates a new Log index. Maps the log file and finds the start of every line.
+   *
+   * @param logPath the path of log.txt
+   * @throws IOException if the log can't be read
+   */
+  public LogIndex(String logPath) throws IOException {
+    file = new File(logPath);
+    refresh();
+  }
+
+  /**
+   * Instantiates a new Log index of lines in memory.
+   *
+   * @param content the lines
+   */
+  private LogIndex(ByteBuffer content) {
+    buffer = content;
+    int[] found = scan(content, 0, content.limit());
+    addLines(found);
+    if (scanned < content.limit()) {
+      // a segment is complete, also without a line break at its end.
+      addLines(new int[] {1, scanned, content.limit()});
+    }
+  }
+
+  /**
+   * Index a rotated segment of the log.
+   *
+   * @param segment the gzip compressed segment
+   * @return the index of segment
+   * @throws IOException if the segment can't be read
+   */
+  public static LogIndex readSegment(File segment) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (InputStream input = new GZIPInputStream(new FileInputStream(segment))) {
+      byte[] chunk = new byte[8192];
+      int read = input.read(chunk);
+      while (read != -1) {
+        bytes.write(chunk, 0, read);
+        read = input.read(chunk);
+      }
+    }
+    return new LogIndex(ByteBuffer.wrap(bytes.toByteArray()));
+  }
+
+  /**
+   * Index the lines appended to log.txt since it was last indexed, or all of it again if it was
+   * rotated meanwhile. The new lines are found without holding the lock of this index, so lines
+   * can still be read from it meanwhile.
+   *
+   * @throws IOException if the log can't be read
+   */
+  public void refresh() throws IOException {
+    if (file == null) {
+      return;
+    }
+    if (!file.exists()) {
+      synchronized (this) {
+        buffer = null;
+        lines = 0;
+        scanned = 0;
+      }
+      return;
+    }
+    Object key = Files.readAttributes(file.toPath(), BasicFileAttributes.class).fileKey();
+    ByteBuffer mapped;
+    try (RandomAccessFile input = new RandomAccessFile(file, "r")) {
+      long length = Math.min(input.length(), Integer.MAX_VALUE);
+      mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, 0, length);
+    }
+    int from;
+    synchronized (this) {
+      boolean rotated = mapped.limit() < scanned || !Objects.equals(key, fileKey);
+      from = rotated ? 0 : scanned;
+    }
+    int[] found = scan(mapped, from, mapped.limit());
+
+    synchronized (this) {
+      if (from == 0) {
+        lines = 0;
+      }
+      fileKey = key;
+      buffer = mapped;
+      addLines(found);
+    }
+  }
+
+  /**
+   * Gets the number of lines.
+   *
+   * @return the number of lines
+   */
+  public synchronized int size() {
+    return lines;
+  }
+
+  /**
+   * Read one line.
+   *
+   * @param index the line number, 0 is the oldest entry
+   * @return the line
+   */
+  public synchronized String getLine(int index) {
+    int start = offsets[index * 2];
+    int end = offsets[index * 2 + 1];
+    byte[] bytes = new byte[end - start];
+    ByteBuffer view = buffer.duplicate();
+    view.position(start);
+    view.get(bytes);
+    return new String(bytes, StandardCharsets.UTF_8);
+  }
+
+  /**
+   * Find the first line made at or after a date.
+   *
+   * @param date a date in the log format "yyyy-MM-dd HH:mm:ss", or a prefix of it
+   * @return the line number, size() if there is none
+   */
+  public synchronized int lowerBound(String date) {
+    int low = 0;
+    int high = lines;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      if (LogManager.getDate(getLine(middle)).compareTo(date) < 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Find the first line made after a date. A date prefix such as "2018-03-01" includes the whole
+   * day.
+   *
+   * @param date a date in the log format "yyyy-MM-dd HH:mm:ss", or a prefix of it
+   * @return the line number, size() if there is none
+   */
+  public synchronized int upperBound(String date) {
+    int low = 0;
+    int high = lines;
+    while (low < high) {
+      int middle = (low + high) >>> 1;
+      String lineDate = LogManager.getDate(getLine(middle));
+      String prefix = lineDate.substring(0, Math.min(date.length(), lineDate.length()));
+      if (prefix.compareTo(date) <= 0) {
+        low = middle + 1;
+      } else {
+        high = middle;
+      }
+    }
+    return low;
+  }
+
+  /**
+   * Find the complete lines in part of a buffer.
+   *
+   * @param content the buffer
+   * @param from the offset to start at, the start of a line
+   * @param to the offset to stop at
+   * @return the number of lines found, then the start and end of every line
+   */
+  private static int[] scan(ByteBuffer content, int from, int to) {
+    int[] found = new int[1 + 256];
+    int count = 0;
+    int start = from;
+    for (int i = from; i < to; i++) {
+      if (content.get(i) == '\n') {
+        if (2 + count * 2 + 1 > found.length) {
+          found = Arrays.copyOf(found, found.length * 2);
+        }
+        found[1 + count * 2] = start;
+        found[2 + count * 2] = i;
+        count++;
+        start = i + 1;
+      }
+    }
+    found[0] = count;
+    return found;
+  }
+
+  /**
+   * Record where lines start and end.
+   *
+   * @param found the number of lines, then the start and end of every line, see {@link #scan}
+   */
+  private void addLines(int[] found) {
+    int count = found[0];
+    if ((lines + count) * 2 > offsets.length) {
+      offsets = Arrays.copyOf(offsets, Math.max(offsets.length * 2, (lines + count) * 2));
+    }
+    System.arraycopy(found, 1, offsets, lines * 2, count * 2);
+    lines += count;
+    if (count > 0) {
+      scanned = found[count * 2] + 1;
+    } else if (lines == 0) {
+      scanned = 0;
+    }
+  }
+}
@@ -1,23 +1,43 @@
 package model;
 
-import java.text.SimpleDateFormat;
+import java.io.File;
+import java.io.IOException;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayDeque;
 import java.util.ArrayList;
-import java.util.Date;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
 
 /**
  * Manage logs recorded in a txt file called log.txt in home directory. Inherits from
- * model.InfoManager
+ * model.InfoManager. New entries are appended to log.txt as they happen, and only the newest
+ * entries are kept in memory, read from log.txt the first time they are asked for, so opening the
+ * log costs the same however long it grows.
  */
 public class LogManager extends InfoManager {
+  private static final DateTimeFormatter DATE_FORMAT =
+      DateTimeFormatter.ofPattern("yyyy-MM-dd HH:mm:ss");
+  private static final String CHANGED_AT = " Changed at: ";
+  private static final int TAIL_SIZE = 1000;
+  private static final long MAX_LOG_BYTES = 10L * 1024 * 1024;
+  private static final int MAX_SEGMENTS = 10;
+
+  // null until the newest entries are first asked for.
+  private ArrayDeque<String> tail;
+  private LogWriter logWriter;
+  // null until the log is first browsed.
+  private LogIndex index;
 
   /**
-   * Instantiates a new Log manager. Reads all the log recorded in txt file into arraylist
-   * infos. @param logPath the log path
+   * Instantiates a new Log manager, without reading the log entries recorded in txt file.
    *
    * @param logPath the log path
    */
   public LogManager(String logPath) {
     super(logPath);
+    logWriter = new LogWriter(logPath, MAX_LOG_BYTES, MAX_SEGMENTS);
   }
 
   /**
@@ -26,9 +46,18 @@ public class LogManager extends InfoManager {
    * @return formatted date and time
    */
   private static String getCurrentDate() {
-    Date date = new Date();
-    SimpleDateFormat simpleDateFormat = new SimpleDateFormat("yyyy-MM-dd HH:mm:ss");
-    return simpleDateFormat.format(date);
+    return LocalDateTime.now().format(DATE_FORMAT);
+  }
+
+  /**
+   * Get the date & time a log entry was made at.
+   *
+   * @param info the log entry
+   * @return formatted date and time, empty if the entry has none
+   */
+  static String getDate(String info) {
+    int index = info.lastIndexOf(CHANGED_AT);
+    return index == -1 ? "" : info.substring(index + CHANGED_AT.length());
   }
 
   public void addInfo() {}
@@ -40,18 +69,118 @@ public class LogManager extends InfoManager {
    * @param newPath newly changed path of the image.
    */
   void addInfo(String oriPath, String newPath) {
+    addInfos(Collections.singletonList(new String[] {oriPath, newPath}));
+  }
+
+  /**
+   * Add many changes into log with one write.
+   *
+   * @param paths pairs of original and newly changed path of images
+   */
+  void addInfos(List<String[]> paths) {
+    ArrayList<String> infos = new ArrayList<>();
+    for (String[] change : paths) {
+      infos.add(formatInfo(change[0], change[1]));
+    }
+    addLines(infos);
+  }
+
+  /**
+   * Get the log entry of a change made now, without adding it.
+   *
+   * @param oriPath original path of the image.
+   * @param newPath newly changed path of the image.
+   * @return the log entry
+   */
+  String formatInfo(String oriPath, String newPath) {
     String oriName = StringManipulator.convertPathToName(oriPath);
-    String newName = StringManipulator.convertPathToName(oriPath);
-    infos.add(0, oriName + "--->" + newName + " Changed at: " + getCurrentDate());
-    System.out.println(infos);
+    String newName = StringManipulator.convertPathToName(newPath);
+    return oriName + "--->" + newName + CHANGED_AT + getCurrentDate();
+  }
+
+  /**
+   * Add a change that is not the rename of one image into log, e.g. a summary of many renames.
+   *
+   * @param change the description of change
+   */
+  void addEntry(String change) {
+    addLines(Collections.singletonList(change + CHANGED_AT + getCurrentDate()));
   }
 
   /**
-   * Return the array list that records log.
+   * Add finished log entries into log with one write.
+   *
+   * @param infos the log entries, oldest first
+   */
+  synchronized void addLines(List<String> infos) {
+    if (infos.isEmpty()) {
+      return;
+    }
+    // appended under the lock, so entries are either read with the tail or added to it.
+    logWriter.append(infos);
+    if (tail == null) {
+      return;
+    }
+    for (String info : infos) {
+      tail.addFirst(info);
+      if (tail.size() > TAIL_SIZE) {
+        tail.removeLast();
+      }
+    }
+  }
+
+  /** Write the log to disk and wait until the disk has it. */
+  void sync() {
+    logWriter.sync();
+  }
+
+  /**
+   * Return the newest log entries, newest first. They are read from log.txt the first time.
    *
    * @return array list of log
    */
-  public ArrayList<String> getInfo() {
-    return infos;
+  public synchronized ArrayList<String> getInfo() {
+    if (tail == null) {
+      logWriter.flush();
+      tail = new ArrayDeque<>(LogWriter.readTail(getPath(), TAIL_SIZE));
+    }
+    return new ArrayList<>(tail);
+  }
+
+  /**
+   * Write buffered log entries into log.txt and index it for browsing. The index is kept, so only
+   * the entries appended since it was last opened are indexed. Takes as long as reading the new
+   * entries, so call it off the JavaFX thread.
+   *
+   * @return the index of log.txt
+   * @throws IOException if the log can't be read
+   */
+  public synchronized LogIndex openIndex() throws IOException {
+    logWriter.flush();
+    if (index == null) {
+      index = new LogIndex(getPath());
+    } else {
+      index.refresh();
+    }
+    return index;
+  }
+
+  /**
+   * Get the compressed segments rotated out of log.txt, to be read with {@link
+   * LogIndex#readSegment(File)}.
+   *
+   * @return the segments, newest first
+   */
+  public ArrayList<File> getSegments() {
+    ArrayList<File> segments =
+        new ArrayList<>(Arrays.asList(LogWriter.listSegments(new File(getPath()))));
+    Collections.reverse(segments);
+    return segments;
+  }
+
+  /** Writes buffered log entries into log.txt and closes it. */
+  @Override
+  public void writeInfo() {
+    logWriter.close();
   }
 }
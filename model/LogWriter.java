@@ -0,0 +1,291 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.OutputStreamWriter;
+import java.io.RandomAccessFile;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.time.LocalDateTime;
+import java.time.format.DateTimeFormatter;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Appends log entries to log.txt through a buffered writer that is flushed every second, so a
+ * crash loses at most the last second of the log. Once log.txt grows over a size limit it is
+ * rotated into a gzip compressed segment next to it, and only the newest segments are kept.
+ */
+public class LogWriter {
+  private static final DateTimeFormatter SEGMENT_FORMAT =
+      DateTimeFormatter.ofPattern("yyyyMMdd-HHmmss-SSS");
+  private static ScheduledExecutorService scheduler =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "log-writer");
+            thread.setDaemon(true);
+            return thread;
+          });
+  // compresses rotated segments, so flushes are not held up meanwhile.
+  private static ExecutorService compressor =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "log-compress");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private File file;
+  private long maxBytes;
+  private int maxSegments;
+  private long size;
+  private BufferedWriter writer;
+  private FileOutputStream stream;
+  private ScheduledFuture<?> flushing;
+
+  /**
+   * Instantiates a new Log writer. A log.txt written newest first by an earlier version is turned
+   * around once, so the file always reads from oldest to newest.
+   *
+   * @param logPath the path of log.txt
+   * @param maxBytes the size at which log.txt is rotated
+   * @param maxSegments the number of compressed segments to keep
+   */
+  public LogWriter(String logPath, long maxBytes, int maxSegments) {
+    this.file = new File(logPath);
+    this.maxBytes = maxBytes;
+    this.maxSegments = maxSegments;
+    migrateOrder();
+    open();
+    flushing = scheduler.scheduleWithFixedDelay(this::flush, 1, 1, TimeUnit.SECONDS);
+  }
+
+  /**
+   * Append an entry to the end of log.txt.
+   *
+   * @param line the log entry
+   */
+  public synchronized void append(String line) {
+    append(Collections.singletonList(line));
+  }
+
+  /**
+   * Append entries to the end of log.txt, next to each other.
+   *
+   * @param lines the log entries, oldest first
+   */
+  public synchronized void append(List<String> lines) {
+    if (writer == null) {
+      return;
+    }
+    try {
+      for (String line : lines) {
+        writer.write(line);
+        writer.write('\n');
+        size += line.getBytes(StandardCharsets.UTF_8).length + 1;
+      }
+      if (size > maxBytes) {
+        rotate();
+      }
+    } catch (IOException e) {
+      System.out.println("Log entry is not successfully saved.");
+    }
+  }
+
+  /** Write buffered entries to disk. */
+  public synchronized void flush() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.flush();
+    } catch (IOException e) {
+      System.out.println("Log is not successfully saved.");
+    }
+  }
+
+  /** Write buffered entries to disk and wait until the disk has them. */
+  public synchronized void sync() {
+    if (writer == null) {
+      return;
+    }
+    try {
+      writer.flush();
+      stream.getFD().sync();
+    } catch (IOException e) {
+      System.out.println("Log is not successfully saved.");
+    }
+  }
+
+  /** Flush and close log.txt, and stop flushing it every second. */
+  public synchronized void close() {
+    flushing.cancel(false);
+    flush();
+    try {
+      if (writer != null) {
+        writer.close();
+      }
+    } catch (IOException e) {
+      System.out.println("Log is not successfully closed.");
+    }
+    writer = null;
+  }
+
+  /**
+   * Read the last lines of a log file, without reading the rest of it.
+   *
+   * @param logPath the path of log file
+   * @param count the number of lines
+   * @return the last lines, newest first
+   */
+  public static ArrayList<String> readTail(String logPath, int count) {
+    ArrayList<String> lines = new ArrayList<>();
+    File log = new File(logPath);
+    if (!log.exists() || count <= 0) {
+      return lines;
+    }
+    try (RandomAccessFile input = new RandomAccessFile(log, "r")) {
+      long length = input.length();
+      long window = Math.min(length, (long) count * 128);
+      while (true) {
+        long start = length - window;
+        byte[] bytes = new byte[(int) window];
+        input.seek(start);
+        input.readFully(bytes);
+        List<String> read =
+            Arrays.asList(new String(bytes, StandardCharsets.UTF_8).split("\n", -1));
+        // the first line may be cut off unless the window reaches the start of file.
+        int first = start == 0 ? 0 : 1;
+        int last = read.get(read.size() - 1).equals("") ? read.size() - 1 : read.size();
+        if (last - first >= count || start == 0 || window >= Integer.MAX_VALUE / 2) {
+          lines.addAll(read.subList(Math.max(first, last - count), last));
+          Collections.reverse(lines);
+          return lines;
+        }
+        window = Math.min(length, window * 2);
+      }
+    } catch (IOException e) {
+      System.out.println("Error reading log.");
+      return lines;
+    }
+  }
+
+  /** Open log.txt for appending. */
+  private void open() {
+    try {
+      size = file.length();
+      stream = new FileOutputStream(file, true);
+      writer = new BufferedWriter(new OutputStreamWriter(stream, StandardCharsets.UTF_8));
+    } catch (IOException e) {
+      System.out.println("Log can't be opened, changes won't be logged.");
+    }
+  }
+
+  /**
+   * Move the full log.txt aside, start a new one and compress the old one in the background. If
+   * log.txt can't be moved, e.g. because a reader still maps it, it is opened again and rotated
+   * with a later entry.
+   */
+  private void rotate() {
+    File segment =
+        new File(file.getPath() + "." + LocalDateTime.now().format(SEGMENT_FORMAT));
+    try {
+      writer.close();
+      Files.move(file.toPath(), segment.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      System.out.println("Log can't be rotated yet.");
+      return;
+    } finally {
+      open();
+    }
+    compressor.execute(() -> compress(segment));
+  }
+
+  /**
+   * Compress a rotated segment and delete the oldest segments over the limit.
+   *
+   * @param segment the rotated segment
+   */
+  private void compress(File segment) {
+    File compressed = new File(segment.getPath() + ".gz");
+    try (InputStream input = new FileInputStream(segment);
+        OutputStream output = new GZIPOutputStream(new FileOutputStream(compressed))) {
+      byte[] buffer = new byte[8192];
+      int read = input.read(buffer);
+      while (read != -1) {
+        output.write(buffer, 0, read);
+        read = input.read(buffer);
+      }
+    } catch (IOException e) {
+      System.out.println("Compressing old log failed, it is kept uncompressed.");
+      return;
+    }
+    segment.delete();
+
+    File[] segments = listSegments(file);
+    for (int i = 0; i < segments.length - maxSegments; i++) {
+      segments[i].delete();
+    }
+  }
+
+  /**
+   * Get the compressed segments rotated out of a log file.
+   *
+   * @param log the log file
+   * @return the segments, oldest first
+   */
+  static File[] listSegments(File log) {
+    String prefix = log.getName() + ".";
+    File[] segments =
+        log.getAbsoluteFile()
+            .getParentFile()
+            .listFiles((dir, name) -> name.startsWith(prefix) && name.endsWith(".gz"));
+    if (segments == null) {
+      return new File[0];
+    }
+    // segment names end with their time, so name order is age order.
+    Arrays.sort(segments);
+    return segments;
+  }
+
+  /** Turn around a log.txt that an earlier version wrote newest first. */
+  private void migrateOrder() {
+    if (!file.exists()) {
+      return;
+    }
+    try {
+      String first;
+      try (BufferedReader fileInput = Files.newBufferedReader(file.toPath())) {
+        first = LogManager.getDate(String.valueOf(fileInput.readLine()));
+      }
+      ArrayList<String> tail = readTail(file.getPath(), 1);
+      String last = tail.isEmpty() ? "" : LogManager.getDate(tail.get(0));
+      if (first.equals("") || last.equals("") || first.compareTo(last) <= 0) {
+        return;
+      }
+
+      List<String> lines = Files.readAllLines(file.toPath(), StandardCharsets.UTF_8);
+      Collections.reverse(lines);
+      File reversed = new File(file.getPath() + ".tmp");
+      Files.write(reversed.toPath(), lines, StandardCharsets.UTF_8);
+      Files.move(reversed.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+    } catch (IOException e) {
+      System.out.println("Error reading log.");
+    }
+  }
+}
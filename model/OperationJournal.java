@@ -0,0 +1,407 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+
+/**
+ * Write-ahead journal of the changes to images. Before an image is renamed (or its tags change in
+ * the tag store), the change, its history entry and its log entry are written to the journal as
+ * one intent record, and the change only starts once the record is on disk. Changes made at the
+ * same time share one sync: the first one to wait writes and syncs the records of all waiting
+ * changes (group commit), so a batch of renames costs a few syncs instead of one per image.
+ *
+ * <p>History and log entries are written after the change as before, without a sync of their own.
+ * A checkpoint syncs them and empties the journal, when the journal has grown and no change is
+ * running, and when the app closes. On the next start, the intents left in the journal are
+ * replayed: if the change happened, its missing history and log entries are added, otherwise the
+ * intent is rolled back by dropping it, since nothing else was written for it.
+ */
+public class OperationJournal {
+  /** A journal that writes nothing, used when no journal is set. */
+  static final OperationJournal NONE = new OperationJournal();
+
+  private static final long CHECKPOINT_BYTES = 1 << 20;
+
+  private File file;
+  private LogManager logManager;
+  private FileChannel channel;
+  private ByteArrayOutputStream pending = new ByteArrayOutputStream();
+  private long size = 0;
+  // records are numbered in the order they are appended.
+  private long appended = 0;
+  private long synced = 0;
+  private long failed = 0;
+  private boolean syncing = false;
+  private int running = 0;
+  private HashSet<File> directories = new HashSet<>();
+
+  /** Instantiates a journal that writes nothing. */
+  private OperationJournal() {}
+
+  /**
+   * Opens the journal, replaying the changes that were not finished when the app stopped.
+   *
+   * @param path the path of journal file
+   * @param logManager the log that the log entries of changes are added to
+   */
+  public OperationJournal(String path, LogManager logManager) {
+    this.file = new File(path);
+    this.logManager = logManager;
+    if (file.exists()) {
+      recover();
+    }
+    try {
+      channel =
+          FileChannel.open(
+              file.toPath(),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.WRITE,
+              StandardOpenOption.TRUNCATE_EXISTING);
+    } catch (IOException e) {
+      System.out.println("Operation journal can't be opened, changes are not journaled.");
+    }
+  }
+
+  /**
+   * Record the intent of a change and wait until it is on disk.
+   *
+   * @param oldPath the path of image before the change
+   * @param newPath the path of image after the change, the same path if only the tag store changes
+   * @param oldTaggedPath the path with the tags in the name before the change
+   * @param newTaggedPath the path with the tags in the name after the change
+   * @param logLine the log entry of change, empty if it is not logged
+   * @return the intent, to be finished once the history and log entries are written
+   * @throws UncheckedIOException if the intent can't be written
+   */
+  Intent begin(
+      String oldPath, String newPath, String oldTaggedPath, String newTaggedPath, String logLine) {
+    TagStore store = oldPath.equals(newPath) ? FileManager.getTagStore() : null;
+    Intent intent =
+        new Intent(
+            oldPath,
+            newPath,
+            oldTaggedPath,
+            newTaggedPath,
+            logLine,
+            store == null ? "" : store.getRoot().getPath());
+    if (channel == null) {
+      return intent;
+    }
+    long number;
+    synchronized (this) {
+      running++;
+      try {
+        number = append(intent.encode());
+      } catch (IOException e) {
+        running--;
+        throw new UncheckedIOException("Operation journal can't be written.", e);
+      }
+    }
+    try {
+      awaitSynced(number);
+    } catch (UncheckedIOException e) {
+      finish(intent);
+      throw e;
+    }
+    return intent;
+  }
+
+  /**
+   * Mark a change as done, after its history and log entries are written or it failed.
+   *
+   * @param intent the intent of change
+   */
+  synchronized void finish(Intent intent) {
+    if (channel == null) {
+      return;
+    }
+    directories.add(new File(intent.newPath).getParentFile());
+    running--;
+    if (running == 0 && size > CHECKPOINT_BYTES) {
+      checkpoint();
+    }
+  }
+
+  /** Sync the history and log, empty the journal and close it. */
+  public synchronized void close() {
+    if (channel == null) {
+      return;
+    }
+    checkpoint();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.out.println("Operation journal is not successfully closed.");
+    }
+    channel = null;
+  }
+
+  /**
+   * Add a record to the records waiting to be written.
+   *
+   * @param record the record
+   * @return the number of record
+   * @throws IOException never, the record is kept in memory
+   */
+  private long append(byte[] record) throws IOException {
+    DataOutputStream output = new DataOutputStream(pending);
+    output.writeInt(record.length);
+    output.write(record);
+    size += 4 + record.length;
+    return ++appended;
+  }
+
+  /**
+   * Wait until a record is on disk. If no other change is syncing, this one writes and syncs all
+   * waiting records, otherwise it waits for that sync and possibly leads the next one.
+   *
+   * @param number the number of record
+   * @throws UncheckedIOException if the record can't be written
+   */
+  private void awaitSynced(long number) {
+    byte[] batch;
+    long last;
+    synchronized (this) {
+      while (syncing && synced < number) {
+        try {
+          wait();
+        } catch (InterruptedException e) {
+          Thread.currentThread().interrupt();
+          throw new UncheckedIOException(new IOException("Interrupted while syncing."));
+        }
+      }
+      if (number <= failed) {
+        throw new UncheckedIOException(new IOException("Operation journal can't be written."));
+      }
+      if (synced >= number) {
+        return;
+      }
+      syncing = true;
+      batch = pending.toByteArray();
+      pending.reset();
+      last = appended;
+    }
+
+    boolean written = false;
+    try {
+      ByteBuffer buffer = ByteBuffer.wrap(batch);
+      while (buffer.hasRemaining()) {
+        channel.write(buffer);
+      }
+      channel.force(false);
+      written = true;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Operation journal can't be written.", e);
+    } finally {
+      synchronized (this) {
+        if (written) {
+          synced = last;
+        } else {
+          failed = last;
+          synced = last;
+        }
+        syncing = false;
+        notifyAll();
+      }
+    }
+  }
+
+  /**
+   * Sync the history and log entries of all changes so far, then empty the journal. Only called
+   * while no change is running, so every intent in the journal is finished.
+   */
+  private void checkpoint() {
+    logManager.sync();
+    for (File directory : directories) {
+      HistoryJournal.open(directory).sync();
+    }
+    directories.clear();
+    try {
+      channel.truncate(0);
+      channel.position(0);
+      channel.force(false);
+      size = 0;
+    } catch (IOException e) {
+      System.out.println("Operation journal is not successfully emptied.");
+    }
+  }
+
+  /**
+   * Replay the intents left in the journal: finish the changes that happened and drop the others.
+   */
+  private void recover() {
+    ArrayList<Intent> intents = new ArrayList<>();
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(file)))) {
+      while (true) {
+        byte[] record = new byte[input.readInt()];
+        input.readFully(record);
+        intents.add(Intent.decode(record));
+      }
+    } catch (EOFException e) {
+      // end of journal, or a record cut off by a crash, whose change never started.
+    } catch (IOException e) {
+      System.out.println("Error reading operation journal.");
+    }
+    if (intents.isEmpty()) {
+      return;
+    }
+
+    HashSet<String> logged =
+        new HashSet<>(LogWriter.readTail(logManager.getPath(), intents.size() + 100));
+    HashMap<String, TagStore> stores = new HashMap<>();
+    ArrayList<String> lines = new ArrayList<>();
+    int replayed = 0;
+    for (Intent intent : intents) {
+      if (!happened(intent, stores)) {
+        continue;
+      }
+      replayed++;
+      if (!intent.oldTaggedPath.equals(intent.newTaggedPath)) {
+        String oldName = StringManipulator.convertPathToName(intent.oldTaggedPath);
+        String newName = StringManipulator.convertPathToName(intent.newTaggedPath);
+        File directory = new File(intent.newPath).getParentFile();
+        HistoryJournal history = HistoryJournal.open(directory);
+        ArrayList<String> names = history.getHistory(newName);
+        if (names.size() < 2 || !names.get(1).equals(oldName)) {
+          history.addName(oldName, newName);
+        }
+        directories.add(directory);
+      }
+      if (!intent.logLine.isEmpty() && logged.add(intent.logLine)) {
+        lines.add(intent.logLine);
+      }
+    }
+    for (TagStore store : stores.values()) {
+      store.close();
+    }
+    logManager.addLines(lines);
+    logManager.sync();
+    for (File directory : directories) {
+      HistoryJournal.open(directory).sync();
+    }
+    directories.clear();
+    System.out.println(
+        "Replayed " + replayed + " and rolled back " + (intents.size() - replayed) + " changes.");
+  }
+
+  /**
+   * Check if the change of an intent happened before the app stopped.
+   *
+   * @param intent the intent
+   * @param stores the tag stores opened so far, by library root
+   * @return true if the image was renamed, or has the new tags in its tag store, else false
+   */
+  private static boolean happened(Intent intent, HashMap<String, TagStore> stores) {
+    if (!intent.oldPath.equals(intent.newPath)) {
+      return !new File(intent.oldPath).exists() && new File(intent.newPath).exists();
+    }
+    if (intent.storeRoot.isEmpty() || !new File(intent.newPath).exists()) {
+      return false;
+    }
+    TagStore store = stores.get(intent.storeRoot);
+    if (store == null) {
+      try {
+        store = new TagStore(new File(intent.storeRoot));
+      } catch (IOException e) {
+        return false;
+      }
+      stores.put(intent.storeRoot, store);
+    }
+    ArrayList<String> tags = store.getTags(intent.newPath);
+    return tags != null && TagParser.withTags(intent.newPath, tags).equals(intent.newTaggedPath);
+  }
+
+  /** The intent of one change: the paths before and after, and its log entry. */
+  static final class Intent {
+    /** The path of image before the change. */
+    final String oldPath;
+    /** The path of image after the change. */
+    final String newPath;
+    /** The path with the tags in the name before the change, which the history shows. */
+    final String oldTaggedPath;
+    /** The path with the tags in the name after the change, which the history shows. */
+    final String newTaggedPath;
+    /** The log entry, empty if the change is not logged. */
+    final String logLine;
+    /** The root of tag store that the change is made in, empty if the image is renamed. */
+    final String storeRoot;
+
+    /**
+     * Instantiates a new Intent.
+     *
+     * @param oldPath the path of image before the change
+     * @param newPath the path of image after the change
+     * @param oldTaggedPath the path with the tags in the name before the change
+     * @param newTaggedPath the path with the tags in the name after the change
+     * @param logLine the log entry, empty if the change is not logged
+     * @param storeRoot the root of tag store, empty if the image is renamed
+     */
+    Intent(
+        String oldPath,
+        String newPath,
+        String oldTaggedPath,
+        String newTaggedPath,
+        String logLine,
+        String storeRoot) {
+      this.oldPath = oldPath;
+      this.newPath = newPath;
+      this.oldTaggedPath = oldTaggedPath;
+      this.newTaggedPath = newTaggedPath;
+      this.logLine = logLine;
+      this.storeRoot = storeRoot;
+    }
+
+    /**
+     * Encode the intent as a record.
+     *
+     * @return the record
+     * @throws IOException never, the record is written to memory
+     */
+    byte[] encode() throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+      try (DataOutputStream output = new DataOutputStream(bytes)) {
+        output.writeUTF(oldPath);
+        output.writeUTF(newPath);
+        output.writeUTF(oldTaggedPath);
+        output.writeUTF(newTaggedPath);
+        output.writeUTF(logLine);
+        output.writeUTF(storeRoot);
+      }
+      return bytes.toByteArray();
+    }
+
+    /**
+     * Decode an intent from a record.
+     *
+     * @param record the record
+     * @return the intent
+     * @throws IOException if the record is damaged
+     */
+    static Intent decode(byte[] record) throws IOException {
+      try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(record))) {
+        return new Intent(
+            input.readUTF(),
+            input.readUTF(),
+            input.readUTF(),
+            input.readUTF(),
+            input.readUTF(),
+            input.readUTF());
+      }
+    }
+  }
+}
@@ -25,23 +25,4 @@ class StringManipulator {
         + newName
         + imagePath.substring(imagePath.lastIndexOf("."));
   }
-
-  /**
-   * Get the first tag of a given image name.
-   *
-   * @param imageName The image's name.
-   * @return first tag if there is any tag else an empty string.
-   */
-  static String getFirstTag(String imageName) {
-    if (imageName.contains(" @")) {
-      int start = imageName.indexOf(" @");
-      if (imageName.indexOf(" @", start + 2) != -1) {
-        return imageName.substring(start + 2, imageName.indexOf(" @", start + 2));
-      } else {
-        return imageName.substring(start + 2);
-      }
-    } else {
-      return "";
-    }
-  }
 }
@@ -0,0 +1,503 @@
+package model;
+
+import java.io.BufferedReader;
+import java.io.BufferedWriter;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.TreeSet;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Inverted index from each tag to the images under the loaded root that carry it. Built once per
+ * root and saved in a txt file next to tags.txt, so filtering never has to walk the folder again.
+ *
+ * <p>The saved index keeps the modification time of every folder it listed. On load, only the
+ * folders whose time changed since, e.g. because images were added or removed while the app was
+ * closed, are listed again. Changes are saved a few seconds after they are made, so a crash loses
+ * at most those.
+ */
+public class TagIndex {
+  private static final long WRITE_DELAY_SECONDS = 5;
+  private static final ScheduledExecutorService writer =
+      Executors.newSingleThreadScheduledExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "tag-index-writer");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private String indexPath;
+  private String root;
+  // the stamp of every indexed folder, by path.
+  private TreeMap<String, Long> folders = new TreeMap<>();
+  // changes not saved yet, and whether a write is scheduled for them.
+  private boolean dirty = false;
+  private boolean writeScheduled = false;
+  private final Object writeLock = new Object();
+  // the root whose index is being built, changes meanwhile are replayed once it is ready.
+  private String loading;
+  private ArrayList<String> touched = new ArrayList<>();
+  private TreeSet<String> images = new TreeSet<>();
+  private Map<String, TreeSet<String>> postings = new HashMap<>();
+
+  /**
+   * Instantiates a new Tag index.
+   *
+   * @param indexPath the path of txt file that stores the index
+   */
+  public TagIndex(String indexPath) {
+    this.indexPath = indexPath;
+  }
+
+  /**
+   * Load the index of a root folder. Reads the saved index if it belongs to this root and lists
+   * again the folders changed since, otherwise scans the folder once and saves the result. The
+   * index is built without holding its lock, so filtering is not blocked meanwhile, and has no
+   * root until it is ready. Stops early, leaving no root, if the thread is interrupted, e.g.
+   * because another folder was loaded.
+   *
+   * @param directory the loaded root folder
+   */
+  public void load(File directory) {
+    synchronized (this) {
+      root = null;
+      loading = directory.getPath();
+      images = new TreeSet<>();
+      postings = new HashMap<>();
+      folders = new TreeMap<>();
+      dirty = false;
+      touched.clear();
+    }
+    TreeSet<String> loadedImages = new TreeSet<>();
+    HashMap<String, TreeSet<String>> loadedPostings = new HashMap<>();
+    TreeMap<String, Long> loadedFolders = new TreeMap<>();
+    boolean changed;
+    if (readIndex(directory.getPath(), loadedImages, loadedPostings, loadedFolders)) {
+      changed = revalidate(loadedImages, loadedPostings, loadedFolders);
+    } else {
+      loadedImages.clear();
+      loadedPostings.clear();
+      loadedFolders.clear();
+      index(directory.toPath(), loadedImages, loadedPostings, loadedFolders);
+      changed = true;
+    }
+
+    synchronized (this) {
+      if (Thread.currentThread().isInterrupted() || !directory.getPath().equals(loading)) {
+        return;
+      }
+      root = loading;
+      loading = null;
+      images = loadedImages;
+      postings = loadedPostings;
+      folders = loadedFolders;
+      // images changed while the index was built are looked at again.
+      for (String image : touched) {
+        forget(image, images, postings);
+        if (new File(image).exists()) {
+          addImage(image);
+        }
+      }
+      changed |= !touched.isEmpty();
+      touched.clear();
+    }
+    if (changed) {
+      markDirty();
+      writeIndex();
+    }
+  }
+
+  /**
+   * Index all images in a folder and its subfolders, recording the stamp of each folder right
+   * before it is listed. Stops early if the thread is interrupted.
+   *
+   * @param directory the folder
+   * @param images the indexed images are added here
+   * @param postings the indexed images by tag are added here
+   * @param folders the stamps of indexed folders are added here
+   */
+  private static void index(
+      Path directory,
+      TreeSet<String> images,
+      Map<String, TreeSet<String>> postings,
+      Map<String, Long> folders) {
+    try {
+      Files.walkFileTree(
+          directory,
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+              if (Thread.currentThread().isInterrupted()) {
+                return FileVisitResult.TERMINATE;
+              }
+              folders.put(dir.toString(), FolderStamp.of(dir));
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              if (FileManager.isImage(file.getFileName().toString())) {
+                add(file.toString(), images, postings);
+              }
+              return FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    } catch (IOException e) {
+      System.out.println("Building tag index failed.");
+    }
+  }
+
+  /**
+   * List again the folders of a read index whose stamp changed since it was saved. Folders that
+   * are gone are dropped with their images, and new subfolders are indexed as a whole. Stops early
+   * if the thread is interrupted.
+   *
+   * @param images the indexed images
+   * @param postings the indexed images by tag
+   * @param folders the stamps of indexed folders
+   * @return true if any folder was listed again, else false
+   */
+  private static boolean revalidate(
+      TreeSet<String> images,
+      Map<String, TreeSet<String>> postings,
+      TreeMap<String, Long> folders) {
+    boolean changed = false;
+    for (Map.Entry<String, Long> entry : new ArrayList<>(folders.entrySet())) {
+      if (Thread.currentThread().isInterrupted()) {
+        break;
+      }
+      String folder = entry.getKey();
+      Path directory = Paths.get(folder);
+      long stamp = FolderStamp.of(directory);
+      if (stamp != FolderStamp.UNKNOWN && stamp == entry.getValue()) {
+        continue;
+      }
+      changed = true;
+      String prefix = folder + File.separator;
+      for (String image : new ArrayList<>(images.subSet(prefix, prefix + Character.MAX_VALUE))) {
+        if (new File(image).getParent().equals(folder)) {
+          forget(image, images, postings);
+        }
+      }
+      if (!Files.isDirectory(directory, LinkOption.NOFOLLOW_LINKS)) {
+        folders.remove(folder);
+        continue;
+      }
+      folders.put(folder, stamp);
+      try (DirectoryStream<Path> children = Files.newDirectoryStream(directory)) {
+        for (Path child : children) {
+          if (Files.isDirectory(child, LinkOption.NOFOLLOW_LINKS)) {
+            if (!folders.containsKey(child.toString())) {
+              index(child, images, postings, folders);
+            }
+          } else if (FileManager.isImage(child.getFileName().toString())) {
+            add(child.toString(), images, postings);
+          }
+        }
+      } catch (IOException e) {
+        // listed again on the next load.
+        folders.put(folder, FolderStamp.UNKNOWN);
+      }
+    }
+    return changed;
+  }
+
+  /**
+   * Gets the root folder this index belongs to.
+   *
+   * @return the root path, null if nothing is loaded
+   */
+  public synchronized String getRoot() {
+    return root;
+  }
+
+  /**
+   * Check if a folder is being indexed, in which case the index has no root yet.
+   *
+   * @return true while a folder is loading, else false
+   */
+  public synchronized boolean isLoading() {
+    return loading != null;
+  }
+
+  /**
+   * Get all indexed images, tagged or not, in path order.
+   *
+   * @return paths of all images
+   */
+  public synchronized ArrayList<String> getImages() {
+    return new ArrayList<>(images);
+  }
+
+  /**
+   * Get all tags that indexed images carry.
+   *
+   * @return the names of tags
+   */
+  public synchronized ArrayList<String> getTags() {
+    return new ArrayList<>(postings.keySet());
+  }
+
+  /**
+   * Get all images that contain every given tag, in path order.
+   *
+   * @param tags the tags to be filtered
+   * @return paths of matching images
+   */
+  public synchronized ArrayList<String> getImages(ArrayList<String> tags) {
+    TreeSet<String> smallest = images;
+    for (String tag : tags) {
+      TreeSet<String> posting = postings.get(tag);
+      if (posting == null) {
+        return new ArrayList<>();
+      }
+      if (posting.size() < smallest.size()) {
+        smallest = posting;
+      }
+    }
+
+    ArrayList<String> result = new ArrayList<>();
+    for (String image : smallest) {
+      boolean matches = true;
+      for (String tag : tags) {
+        if (!postings.get(tag).contains(image)) {
+          matches = false;
+          break;
+        }
+      }
+      if (matches) {
+        result.add(image);
+      }
+    }
+    return result;
+  }
+
+  /**
+   * Update the index after an image is renamed or moved.
+   *
+   * @param oldPath the old path of image
+   * @param newPath the new path of image
+   */
+  synchronized void moveImage(String oldPath, String newPath) {
+    removeImage(oldPath);
+    addImage(newPath);
+  }
+
+  /**
+   * Add an image and all of its tags into the index. Images outside the loaded root are ignored.
+   *
+   * @param imagePath the path of image
+   */
+  public synchronized void addImage(String imagePath) {
+    if (root == null) {
+      touch(imagePath);
+    } else if (imagePath.startsWith(root + File.separator)) {
+      add(imagePath, images, postings);
+      // a folder made by the app since the load is listed on the next one.
+      folders.putIfAbsent(new File(imagePath).getParent(), FolderStamp.UNKNOWN);
+      markDirty();
+    }
+  }
+
+  /**
+   * Add an image and all of its tags into an index that is being built.
+   *
+   * @param imagePath the path of image
+   * @param images the indexed images
+   * @param postings the indexed images by tag
+   */
+  private static void add(
+      String imagePath, TreeSet<String> images, Map<String, TreeSet<String>> postings) {
+    images.add(imagePath);
+    for (String tag : FileManager.getImageTags(imagePath)) {
+      postings.computeIfAbsent(tag, key -> new TreeSet<>()).add(imagePath);
+    }
+  }
+
+  /**
+   * Remember an image that changed while the index is built, to look at it again once it is ready.
+   *
+   * @param imagePath the path of image
+   */
+  private void touch(String imagePath) {
+    if (loading != null && imagePath.startsWith(loading + File.separator)) {
+      touched.add(imagePath);
+    }
+  }
+
+  /**
+   * Remove an image from an index under any tag, also tags it no longer has.
+   *
+   * @param imagePath the path of image
+   * @param images the indexed images
+   * @param postings the indexed images by tag
+   */
+  private static void forget(
+      String imagePath, TreeSet<String> images, Map<String, TreeSet<String>> postings) {
+    images.remove(imagePath);
+    postings.values().removeIf(posting -> posting.remove(imagePath) && posting.isEmpty());
+  }
+
+  /**
+   * Remove an image and all of its tags from the index.
+   *
+   * @param imagePath the path of image
+   */
+  public synchronized void removeImage(String imagePath) {
+    if (root == null) {
+      touch(imagePath);
+    }
+    if (!images.remove(imagePath)) {
+      return;
+    }
+    markDirty();
+    for (String tag : FileManager.getImageTags(imagePath)) {
+      TreeSet<String> posting = postings.get(tag);
+      if (posting != null) {
+        posting.remove(imagePath);
+        if (posting.isEmpty()) {
+          postings.remove(tag);
+        }
+      }
+    }
+  }
+
+  /** Remember that the index changed, and save it a few seconds later if no write is due yet. */
+  private synchronized void markDirty() {
+    dirty = true;
+    if (!writeScheduled) {
+      writeScheduled = true;
+      writer.schedule(this::writeIndex, WRITE_DELAY_SECONDS, TimeUnit.SECONDS);
+    }
+  }
+
+  /**
+   * Writes the index back into txt file if it changed since the last write. The index is copied
+   * under its lock and written without it, into a temporary file that then replaces the old one.
+   */
+  public void writeIndex() {
+    synchronized (writeLock) {
+      String writtenRoot;
+      ArrayList<Map.Entry<String, Long>> writtenFolders;
+      ArrayList<String> untagged = new ArrayList<>();
+      HashMap<String, ArrayList<String>> writtenPostings = new HashMap<>();
+      synchronized (this) {
+        writeScheduled = false;
+        if (root == null || !dirty) {
+          return;
+        }
+        dirty = false;
+        writtenRoot = root;
+        writtenFolders = new ArrayList<>(folders.entrySet());
+        HashSet<String> tagged = new HashSet<>();
+        for (Map.Entry<String, TreeSet<String>> entry : postings.entrySet()) {
+          writtenPostings.put(entry.getKey(), new ArrayList<>(entry.getValue()));
+          tagged.addAll(entry.getValue());
+        }
+        for (String image : images) {
+          if (!tagged.contains(image)) {
+            untagged.add(image);
+          }
+        }
+      }
+
+      Path path = Paths.get(indexPath);
+      Path temporary = Paths.get(indexPath + ".tmp");
+      try {
+        try (BufferedWriter fileWriter = Files.newBufferedWriter(temporary)) {
+          fileWriter.write(writtenRoot + "\n");
+          // "#stamp folder" per folder, untagged images, then one "@tag" block per tag.
+          for (Map.Entry<String, Long> folder : writtenFolders) {
+            fileWriter.write("#" + folder.getValue() + " " + folder.getKey() + "\n");
+          }
+          for (String image : untagged) {
+            fileWriter.write(image + "\n");
+          }
+          for (Map.Entry<String, ArrayList<String>> entry : writtenPostings.entrySet()) {
+            fileWriter.write("@" + entry.getKey() + "\n");
+            for (String image : entry.getValue()) {
+              fileWriter.write(image + "\n");
+            }
+          }
+        }
+        Files.move(
+            temporary,
+            path,
+            StandardCopyOption.REPLACE_EXISTING,
+            StandardCopyOption.ATOMIC_MOVE);
+      } catch (IOException e) {
+        System.out.println("Tag index is not successfully saved.");
+        markDirty();
+      }
+    }
+  }
+
+  /**
+   * Read the saved index if it was built for a root. An index saved without folder stamps is not
+   * read, since it can't tell which folders changed.
+   *
+   * @param directory the root path
+   * @param images the indexed images are added here
+   * @param postings the indexed images by tag are added here
+   * @param folders the stamps of indexed folders are added here
+   * @return true if the index is read, else false
+   */
+  private boolean readIndex(
+      String directory,
+      TreeSet<String> images,
+      Map<String, TreeSet<String>> postings,
+      Map<String, Long> folders) {
+    Path path = Paths.get(indexPath);
+    if (!Files.exists(path)) {
+      return false;
+    }
+    try (BufferedReader fileInput = Files.newBufferedReader(path)) {
+      String line = fileInput.readLine();
+      if (line == null || !line.equals(directory)) {
+        return false;
+      }
+      TreeSet<String> posting = null;
+      line = fileInput.readLine();
+      while (line != null) {
+        if (line.startsWith("#")) {
+          int space = line.indexOf(' ');
+          folders.put(line.substring(space + 1), Long.parseLong(line.substring(1, space)));
+        } else if (line.startsWith("@")) {
+          posting = new TreeSet<>();
+          postings.put(line.substring(1), posting);
+        } else if (!line.equals("")) {
+          images.add(line);
+          if (posting != null) {
+            posting.add(line);
+          }
+        }
+        line = fileInput.readLine();
+      }
+      return folders.containsKey(directory);
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Error reading tag index.");
+      return false;
+    }
+  }
+}
@@ -1,48 +1,94 @@
 package model;
 
+import java.io.File;
 import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.function.IntConsumer;
 
 /**
  * Manage currently existing tags and write to tags.txt when the app closes. Inherits from
- * model.InfoManager
+ * model.InfoManager. Tags are kept in a TagRegistry, so looking up, adding and deleting a tag
+ * takes constant time. tags.txt keeps one tag per line in id order.
  */
 public class TagManager extends InfoManager {
+  private TagRegistry registry = new TagRegistry();
+  private TagRefactoring refactoring;
 
   /**
-   * Instantiates a new Tag manager. Reads all the information recorded in txt file into arraylist
-   * infos. @param infoPath the info path
+   * Instantiates a new Tag manager. Reads all the tags recorded in txt file into the tag registry.
    *
    * @param infoPath the info path
    */
   public TagManager(String infoPath) {
+    this(infoPath, Runnable::run);
+  }
+
+  /**
+   * Instantiates a new Tag manager that reads the tags recorded in txt file in the background.
+   * Methods that need the tags wait until they are read.
+   *
+   * @param infoPath the info path
+   * @param executor reads the tags
+   */
+  public TagManager(String infoPath, Executor executor) {
     super(infoPath);
+    File tags = new File(infoPath).getAbsoluteFile();
+    File journal = new File(tags.getParentFile(), "tag_rename.journal");
+    refactoring = new TagRefactoring(journal, registry);
+    loadLater(executor);
+  }
+
+  /** Add the tags read from txt file into the tag registry. */
+  @Override
+  void loaded() {
+    registry.addAll(infos);
+    infos.clear();
   }
 
   /** For inheritance purposes. */
   void addInfo() {}
 
   /**
-   * Add a tag into tags.
+   * Add a tag into tags, unless it already exists.
    *
    * @param nameOfTag new tags that is being added.
    */
   public void addInfo(String nameOfTag) {
-    for (Object info : infos) {
-      if (info.equals(nameOfTag)) {
-        break;
-      }
-    }
-    infos.add(nameOfTag);
-    System.out.println(nameOfTag);
+    awaitLoaded();
+    registry.add(nameOfTag);
   }
 
   /**
-   * Gets all tags.
+   * Gets all tags, in the order they were added.
    *
    * @return the array list tags
    */
   public ArrayList<String> getInfo() {
-    return infos;
+    awaitLoaded();
+    return registry.getTags();
+  }
+
+  /**
+   * Check if a tag exists.
+   *
+   * @param nameOfTag the name of tag
+   * @return true if the tag exists, else false
+   */
+  public boolean contains(String nameOfTag) {
+    awaitLoaded();
+    return registry.contains(nameOfTag);
+  }
+
+  /**
+   * Gets the registry that assigns ids to tags.
+   *
+   * @return the tag registry
+   */
+  public TagRegistry getRegistry() {
+    awaitLoaded();
+    return registry;
   }
 
   /**
@@ -51,6 +97,80 @@ public class TagManager extends InfoManager {
    * @param nameOfTag the name of tag
    */
   public void deleteTag(String nameOfTag) {
-    infos.remove(nameOfTag);
+    awaitLoaded();
+    registry.remove(nameOfTag);
+  }
+
+  /**
+   * Rename a tag in the names of all images under the loaded folder, then in the tag set. Renaming
+   * to an existing tag merges the two tags. Can be resumed with resumeRenameTag if interrupted.
+   *
+   * @param oldTag the tag to rename
+   * @param newTag the new name of tag, null to delete the tag from all images
+   * @param tagIndex the tag index of the loaded folder
+   * @param batchTagger renames the images in the background
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the renamed images and the images that can't be renamed, which keep the old
+   *     tag until the rename is resumed; failed if the tags of the loaded folder are still being
+   *     read
+   */
+  public CompletableFuture<BatchTagger.Result> renameTag(
+      String oldTag,
+      String newTag,
+      TagIndex tagIndex,
+      BatchTagger batchTagger,
+      IntConsumer progress) {
+    awaitLoaded();
+    if (tagIndex.isLoading()) {
+      // the images of the folder are not known yet, so the tag can't be renamed in them.
+      CompletableFuture<BatchTagger.Result> refused = new CompletableFuture<>();
+      refused.completeExceptionally(
+          new IllegalStateException(
+              "The tags of this folder are still being read, please try again."));
+      return refused;
+    }
+    if (tagIndex.getRoot() == null) {
+      // no folder is loaded, so only the tag set changes.
+      registry.remove(oldTag);
+      if (newTag != null) {
+        registry.add(newTag);
+      }
+      return CompletableFuture.completedFuture(
+          new BatchTagger.Result(new HashMap<>(), new ArrayList<>()));
+    }
+    return refactoring.start(tagIndex.getRoot(), oldTag, newTag, tagIndex, batchTagger, progress);
+  }
+
+  /**
+   * Finish a tag rename that was interrupted, e.g. by closing the app.
+   *
+   * @param tagIndex the tag index of the loaded folder
+   * @param batchTagger renames the images in the background
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the renamed images and the images that can't be renamed, none if nothing
+   *     was interrupted
+   */
+  public CompletableFuture<BatchTagger.Result> resumeRenameTag(
+      TagIndex tagIndex, BatchTagger batchTagger, IntConsumer progress) {
+    awaitLoaded();
+    return refactoring.resume(tagIndex, batchTagger, progress);
+  }
+
+  /**
+   * Check if a tag rename was interrupted and has to be resumed.
+   *
+   * @return true if a tag rename is unfinished, else false
+   */
+  public boolean isRenameTagPending() {
+    return refactoring.isPending();
+  }
+
+  /** Writes all tags back into tags.txt, one per line in id order. */
+  @Override
+  public void writeInfo() {
+    awaitLoaded();
+    infos = registry.getTags();
+    super.writeInfo();
+    infos.clear();
   }
 }
@@ -0,0 +1,192 @@
+package model;
+
+import java.util.BitSet;
+import java.util.List;
+
+/**
+ * Finds the tags in the name of an image in one pass, without building strings. A tag starts after
+ * " @" and runs to the next " @" or the end of the name (the extension is not part of the name),
+ * and the tags end at the first empty one. Tags are reported as start and end offsets into the
+ * path, and can be compared in place against tag names.
+ */
+final class TagParser {
+  private static final int[] NO_BOUNDS = new int[0];
+
+  private TagParser() {}
+
+  /**
+   * Find the start and end of every tag in the name of an image.
+   *
+   * @param imagePath the path of image
+   * @param bounds filled with the start and end of each tag, two numbers per tag, as far as it fits
+   * @return the number of tags, which may be more than fit into bounds
+   */
+  static int parse(String imagePath, int[] bounds) {
+    int end = nameEnd(imagePath);
+    int count = 0;
+    int start = firstTag(imagePath, end);
+    while (start != -1) {
+      int tagEnd = tagEnd(imagePath, start, end);
+      if (count * 2 + 1 < bounds.length) {
+        bounds[count * 2] = start;
+        bounds[count * 2 + 1] = tagEnd;
+      }
+      count++;
+      start = nextTag(imagePath, tagEnd, end);
+    }
+    return count;
+  }
+
+  /**
+   * Count the tags in the name of an image.
+   *
+   * @param imagePath the path of image
+   * @return the number of tags
+   */
+  static int count(String imagePath) {
+    return parse(imagePath, NO_BOUNDS);
+  }
+
+  /**
+   * Find a tag in the name of an image.
+   *
+   * @param imagePath the path of image
+   * @param tag the tag
+   * @return the offset the tag starts at, after its " @", -1 if the image doesn't have the tag
+   */
+  static int indexOf(String imagePath, String tag) {
+    int end = nameEnd(imagePath);
+    int start = firstTag(imagePath, end);
+    while (start != -1) {
+      int tagEnd = tagEnd(imagePath, start, end);
+      if (tagEnd - start == tag.length() && imagePath.regionMatches(start, tag, 0, tag.length())) {
+        return start;
+      }
+      start = nextTag(imagePath, tagEnd, end);
+    }
+    return -1;
+  }
+
+  /**
+   * Check if an image has a tag.
+   *
+   * @param imagePath the path of image
+   * @param tag the tag
+   * @return true if the image has the tag, else false
+   */
+  static boolean hasTag(String imagePath, String tag) {
+    return indexOf(imagePath, tag) != -1;
+  }
+
+  /**
+   * Check if an image has all of the given tags.
+   *
+   * @param imagePath the path of image
+   * @param tags the tags
+   * @return true if the image has every tag, else false
+   */
+  static boolean hasAllTags(String imagePath, List<String> tags) {
+    for (int i = 0; i < tags.size(); i++) {
+      if (indexOf(imagePath, tags.get(i)) == -1) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Set the id of every registered tag of an image, looked up without building tag strings.
+   *
+   * @param imagePath the path of image
+   * @param registry the registry that assigns ids to tags
+   * @param ids the bitset the ids are set in
+   */
+  static void addTagIds(String imagePath, TagRegistry registry, BitSet ids) {
+    int end = nameEnd(imagePath);
+    int start = firstTag(imagePath, end);
+    while (start != -1) {
+      int tagEnd = tagEnd(imagePath, start, end);
+      int id = registry.getId(imagePath, start, tagEnd);
+      if (id != -1) {
+        ids.set(id);
+      }
+      start = nextTag(imagePath, tagEnd, end);
+    }
+  }
+
+  /**
+   * Get the path an image would have with other tags in its name, in place of its own tags.
+   *
+   * @param imagePath the path of image
+   * @param tags the tags
+   * @return the path with the given tags
+   */
+  static String withTags(String imagePath, List<String> tags) {
+    int end = nameEnd(imagePath);
+    int start = firstTag(imagePath, end);
+    int prefixEnd = start == -1 ? end : start - 2;
+    int suffixStart = end;
+    while (start != -1) {
+      suffixStart = tagEnd(imagePath, start, end);
+      start = nextTag(imagePath, suffixStart, end);
+    }
+    StringBuilder path = new StringBuilder(imagePath.length() + tags.size() * 8);
+    path.append(imagePath, 0, prefixEnd);
+    for (String tag : tags) {
+      path.append(" @").append(tag);
+    }
+    return path.append(imagePath, suffixStart, imagePath.length()).toString();
+  }
+
+  /**
+   * Get where the name of an image ends, which is before its extension.
+   *
+   * @param imagePath the path of image
+   * @return the offset of the last dot in the file name, or the length of path if there is none
+   */
+  private static int nameEnd(String imagePath) {
+    int dot = imagePath.lastIndexOf('.');
+    return dot > imagePath.lastIndexOf('/') ? dot : imagePath.length();
+  }
+
+  /**
+   * Find the first tag in the name of an image.
+   *
+   * @param imagePath the path of image
+   * @param end where the name ends
+   * @return the start of first tag, -1 if there is none
+   */
+  private static int firstTag(String imagePath, int end) {
+    return nextTag(imagePath, imagePath.lastIndexOf('/') + 1, end);
+  }
+
+  /**
+   * Find the tag after an offset.
+   *
+   * @param imagePath the path of image
+   * @param from the offset to search from, e.g. the end of the previous tag
+   * @param end where the name ends
+   * @return the start of next tag, -1 if there is none or it is empty
+   */
+  private static int nextTag(String imagePath, int from, int end) {
+    int marker = imagePath.indexOf(" @", from);
+    if (marker == -1 || marker + 2 > end) {
+      return -1;
+    }
+    int start = marker + 2;
+    return start == end || imagePath.startsWith(" @", start) ? -1 : start;
+  }
+
+  /**
+   * Find where a tag ends.
+   *
+   * @param imagePath the path of image
+   * @param start the start of tag
+   * @param end where the name ends
+   * @return the offset of the next " @", or the end of name
+   */
+  private static int tagEnd(String imagePath, int start, int end) {
+    int marker = imagePath.indexOf(" @", start);
+    return marker == -1 || marker > end ? end : marker;
+  }
+}
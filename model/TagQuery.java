@@ -0,0 +1,248 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.BitSet;
+import java.util.Collection;
+import java.util.function.Predicate;
+import java.util.stream.Collectors;
+
+/**
+ * A boolean query over image tags, such as {@code landscape AND (sunset OR dawn) AND NOT draft}.
+ * Operators are AND, OR and NOT (in any case) with parentheses, and {@code sun*} matches any tag
+ * that starts with "sun". A tag with spaces or the name of an operator can be put in double
+ * quotes. The query is parsed once into a predicate over the tag id set of an image, which is
+ * then evaluated for many images in parallel.
+ *
+ * <p>Images can carry tags that are not in tags.txt. Such tags are only found if the query is also
+ * given the tags of the indexed images, which it then looks up next to the registered ones.
+ */
+public class TagQuery {
+  private TagRegistry registry;
+  private Predicate<BitSet> evaluator;
+  private ArrayList<String> tokens = new ArrayList<>();
+  private int position = 0;
+
+  /**
+   * Parse a query. Tags that are not registered match no image.
+   *
+   * @param query the query text
+   * @param registry the registry that assigns ids to tags
+   * @throws IllegalArgumentException if the query is not well formed
+   */
+  public TagQuery(String query, TagRegistry registry) {
+    this.registry = registry;
+    tokenize(query);
+    if (tokens.isEmpty()) {
+      throw new IllegalArgumentException("The query is empty.");
+    }
+    evaluator = parseOr();
+    if (position < tokens.size()) {
+      throw new IllegalArgumentException("Unexpected \"" + tokens.get(position) + "\" in query.");
+    }
+  }
+
+  /**
+   * Parse a query over the registered tags and the tags the indexed images carry. Tags that are
+   * neither match no image.
+   *
+   * @param query the query text
+   * @param registry the registry that assigns ids to tags
+   * @param indexed the tags of the indexed images, e.g. from {@link TagIndex#getTags()}
+   * @throws IllegalArgumentException if the query is not well formed
+   */
+  public TagQuery(String query, TagRegistry registry, Collection<String> indexed) {
+    this(query, withTags(registry, indexed));
+  }
+
+  /**
+   * Get a registry with the tags of another one and more tags, unless it has them all already.
+   *
+   * @param registry the registry
+   * @param tags the tags that are added
+   * @return the registry itself, or a new one with the tags added
+   */
+  private static TagRegistry withTags(TagRegistry registry, Collection<String> tags) {
+    boolean missing = false;
+    for (String tag : tags) {
+      if (!registry.contains(tag)) {
+        missing = true;
+        break;
+      }
+    }
+    if (!missing) {
+      return registry;
+    }
+    TagRegistry all = new TagRegistry();
+    all.addAll(registry.getTags());
+    all.addAll(tags);
+    return all;
+  }
+
+  /**
+   * Check if an image with the given tags matches the query.
+   *
+   * @param imageTags the tag id set of image
+   * @return true if it matches, else false
+   */
+  public boolean matches(BitSet imageTags) {
+    return evaluator.test(imageTags);
+  }
+
+  /**
+   * Get all images that match the query, evaluated in parallel.
+   *
+   * @param imagePaths the paths of images
+   * @return the paths of matching images, in path order
+   */
+  public ArrayList<String> filter(Collection<String> imagePaths) {
+    // every worker thread reuses one bitset, so matching an image named with its tags allocates
+    // nothing.
+    ThreadLocal<BitSet> scratch = ThreadLocal.withInitial(BitSet::new);
+    return imagePaths
+        .parallelStream()
+        .filter(
+            path -> {
+              BitSet imageTags = scratch.get();
+              imageTags.clear();
+              TagParser.addTagIds(FileManager.taggedPath(path), registry, imageTags);
+              return matches(imageTags);
+            })
+        .sorted()
+        .collect(Collectors.toCollection(ArrayList::new));
+  }
+
+  /** or := and ("OR" and)* */
+  private Predicate<BitSet> parseOr() {
+    Predicate<BitSet> left = parseAnd();
+    while (accept("OR")) {
+      left = left.or(parseAnd());
+    }
+    return left;
+  }
+
+  /** and := not ("AND" not)* */
+  private Predicate<BitSet> parseAnd() {
+    Predicate<BitSet> left = parseNot();
+    while (accept("AND")) {
+      left = left.and(parseNot());
+    }
+    return left;
+  }
+
+  /** not := "NOT" not | "(" or ")" | tag | prefix* */
+  private Predicate<BitSet> parseNot() {
+    if (accept("NOT")) {
+      return parseNot().negate();
+    }
+    if (position >= tokens.size()) {
+      throw new IllegalArgumentException("The query ends too early.");
+    }
+    String token = tokens.get(position++);
+    if (token.equals("(")) {
+      Predicate<BitSet> inner = parseOr();
+      if (!accept(")")) {
+        throw new IllegalArgumentException("A \")\" is missing in query.");
+      }
+      return inner;
+    }
+    if (token.equals(")") || isOperator(token)) {
+      throw new IllegalArgumentException("Unexpected \"" + token + "\" in query.");
+    }
+    return compileTag(unquote(token));
+  }
+
+  /**
+   * Compile a tag or a tag prefix into a predicate.
+   *
+   * @param tag the tag, ending with * for a prefix
+   * @return the predicate
+   */
+  private Predicate<BitSet> compileTag(String tag) {
+    if (tag.endsWith("*")) {
+      String prefix = tag.substring(0, tag.length() - 1);
+      ArrayList<String> matching = new ArrayList<>();
+      for (String name : registry.getTags()) {
+        if (name.startsWith(prefix)) {
+          matching.add(name);
+        }
+      }
+      BitSet mask = registry.toBitSet(matching);
+      return imageTags -> imageTags.intersects(mask);
+    }
+    int id = registry.getId(tag);
+    return id == -1 ? imageTags -> false : imageTags -> imageTags.get(id);
+  }
+
+  /**
+   * Move past the next token if it is the given operator or parenthesis.
+   *
+   * @param expected the operator or parenthesis
+   * @return true if it was next, else false
+   */
+  private boolean accept(String expected) {
+    if (position < tokens.size() && tokens.get(position).equalsIgnoreCase(expected)) {
+      position++;
+      return true;
+    }
+    return false;
+  }
+
+  /**
+   * Check if a token is an operator.
+   *
+   * @param token the token
+   * @return true if it is AND, OR or NOT, else false
+   */
+  private static boolean isOperator(String token) {
+    return token.equalsIgnoreCase("AND")
+        || token.equalsIgnoreCase("OR")
+        || token.equalsIgnoreCase("NOT");
+  }
+
+  /**
+   * Remove the quotes around a quoted tag.
+   *
+   * @param token the token
+   * @return the tag
+   */
+  private static String unquote(String token) {
+    if (token.length() >= 2 && token.startsWith("\"") && token.endsWith("\"")) {
+      return token.substring(1, token.length() - 1);
+    }
+    return token;
+  }
+
+  /**
+   * Split a query into parentheses, quoted tags and words.
+   *
+   * @param query the query text
+   */
+  private void tokenize(String query) {
+    int i = 0;
+    while (i < query.length()) {
+      char c = query.charAt(i);
+      if (Character.isWhitespace(c)) {
+        i++;
+      } else if (c == '(' || c == ')') {
+        tokens.add(String.valueOf(c));
+        i++;
+      } else if (c == '"') {
+        int end = query.indexOf('"', i + 1);
+        if (end == -1) {
+          throw new IllegalArgumentException("A closing quote is missing in query.");
+        }
+        // a quoted operator is a tag, so keep the quotes until the token is parsed.
+        tokens.add(query.substring(i, end + 1));
+        i = end + 1;
+      } else {
+        int start = i;
+        while (i < query.length()
+            && !Character.isWhitespace(query.charAt(i))
+            && "()\"".indexOf(query.charAt(i)) == -1) {
+          i++;
+        }
+        tokens.add(query.substring(start, i));
+      }
+    }
+  }
+}
@@ -0,0 +1,407 @@
+package model;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.StandardCopyOption;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.function.Function;
+import java.util.function.IntConsumer;
+import java.util.function.Supplier;
+import java.util.stream.Collectors;
+import java.util.stream.Stream;
+
+/**
+ * Renames, merges or deletes a tag in the names of all images under a folder. The operation is
+ * written to a journal before any image is renamed, and every rename is recorded right before it
+ * happens. If the app is closed halfway, the journal is replayed on the next start: the history of
+ * images that were renamed is completed, and the images that still have the old tag are renamed.
+ *
+ * <p>The journal starts with the root folder, the old tag and the new tag, followed by a pair of
+ * old and new path per rename. It is deleted once every image is renamed. If some images can't be
+ * renamed, e.g. because an image with the new name exists, the journal and the old tag are kept,
+ * so the operation is finished when it is resumed.
+ *
+ * <p>Finding the images and replaying the journal can walk the whole folder, so both run in the
+ * background like the renames, and the caller only gets the future.
+ */
+class TagRefactoring {
+  private static final ExecutorService finder =
+      Executors.newSingleThreadExecutor(
+          runnable -> {
+            Thread thread = new Thread(runnable, "tag-rename");
+            thread.setDaemon(true);
+            return thread;
+          });
+
+  private File journal;
+  private TagRegistry registry;
+  private DataOutputStream output;
+  private boolean running = false;
+
+  /**
+   * Instantiates a new Tag refactoring.
+   *
+   * @param journal the journal file
+   * @param registry the registry the renamed tag is updated in once done
+   */
+  TagRefactoring(File journal, TagRegistry registry) {
+    this.journal = journal;
+    this.registry = registry;
+  }
+
+  /**
+   * Check if an operation was interrupted and has to be resumed.
+   *
+   * @return true if there is a journal, else false
+   */
+  boolean isPending() {
+    return journal.exists();
+  }
+
+  /**
+   * Start renaming a tag in all images under a folder.
+   *
+   * @param root the root folder
+   * @param oldTag the tag to rename
+   * @param newTag the new name of tag, which may be an existing tag, or null to delete the tag
+   * @param tagIndex the tag index, used to find images if it is of the same folder
+   * @param batchTagger renames the images
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the renamed images and the images that can't be renamed
+   */
+  synchronized CompletableFuture<BatchTagger.Result> start(
+      String root,
+      String oldTag,
+      String newTag,
+      TagIndex tagIndex,
+      BatchTagger batchTagger,
+      IntConsumer progress) {
+    if (running) {
+      return failed("A tag is being renamed already.");
+    }
+    if (isPending()) {
+      return failed("An unfinished tag rename has to be resumed first.");
+    }
+    running = true;
+    return inBackground(
+        () -> run(root, oldTag, newTag, new LinkedHashMap<>(), tagIndex, batchTagger, progress));
+  }
+
+  /**
+   * Finish an operation that was interrupted.
+   *
+   * @param tagIndex the tag index, used to find images if it is of the same folder
+   * @param batchTagger renames the images
+   * @param progress called from worker threads with the number of images done so far
+   * @return future of the renamed images and the images that can't be renamed, none if nothing
+   *     was interrupted
+   */
+  synchronized CompletableFuture<BatchTagger.Result> resume(
+      TagIndex tagIndex, BatchTagger batchTagger, IntConsumer progress) {
+    if (running || !isPending()) {
+      return CompletableFuture.completedFuture(none());
+    }
+    running = true;
+    return inBackground(() -> replay(tagIndex, batchTagger, progress));
+  }
+
+  /**
+   * Run an operation on the background thread, and allow the next one once it is done or failed.
+   *
+   * @param operation starts the operation and gives its future
+   * @return future of the renamed images and the images that can't be renamed
+   */
+  private CompletableFuture<BatchTagger.Result> inBackground(
+      Supplier<CompletableFuture<BatchTagger.Result>> operation) {
+    return CompletableFuture.supplyAsync(operation, finder)
+        .thenCompose(Function.identity())
+        .whenComplete((result, error) -> end());
+  }
+
+  /**
+   * Complete the renames recorded in the journal, then rename the images that still have the old
+   * tag.
+   *
+   * @param tagIndex the tag index
+   * @param batchTagger renames the images
+   * @param progress called with the number of images done so far
+   * @return future of the renamed images and the images that can't be renamed
+   */
+  private CompletableFuture<BatchTagger.Result> replay(
+      TagIndex tagIndex, BatchTagger batchTagger, IntConsumer progress) {
+    String root;
+    String oldTag;
+    String newTag;
+    LinkedHashMap<String, String> renamed = new LinkedHashMap<>();
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(journal)))) {
+      root = input.readUTF();
+      oldTag = input.readUTF();
+      boolean hasNewTag = input.readBoolean();
+      String tag = input.readUTF();
+      newTag = hasNewTag ? tag : null;
+      try {
+        while (true) {
+          String oldPath = input.readUTF();
+          String newPath = input.readUTF();
+          if (completeRename(oldPath, newPath, tagIndex)) {
+            renamed.put(oldPath, newPath);
+          }
+        }
+      } catch (EOFException e) {
+        // end of journal, or a record cut off by a crash.
+      }
+    } catch (IOException e) {
+      // the header was not completely written, so no image was renamed yet.
+      journal.delete();
+      return CompletableFuture.completedFuture(none());
+    }
+    // the renames read so far are complete now, so the journal starts over from its header.
+    return run(root, oldTag, newTag, renamed, tagIndex, batchTagger, progress);
+  }
+
+  /**
+   * Find all images that have the old tag, write a new journal with only the header, then rename
+   * the images, log a summary and update the registry.
+   *
+   * @param root the root folder
+   * @param oldTag the tag to rename
+   * @param newTag the new name of tag, null to delete it
+   * @param renamed the images renamed before an interruption, new path by old path
+   * @param tagIndex the tag index
+   * @param batchTagger renames the images
+   * @param progress called with the number of images done so far
+   * @return future of the renamed images and the images that can't be renamed
+   */
+  private CompletableFuture<BatchTagger.Result> run(
+      String root,
+      String oldTag,
+      String newTag,
+      Map<String, String> renamed,
+      TagIndex tagIndex,
+      BatchTagger batchTagger,
+      IntConsumer progress) {
+    ArrayList<String> images;
+    try {
+      images = findImages(root, oldTag, tagIndex);
+    } catch (IOException e) {
+      return failed("The folder " + root + " can't be read.");
+    }
+    try {
+      writeHeader(root, oldTag, newTag);
+      openOutput();
+    } catch (IOException e) {
+      return failed("The tag rename journal can't be written.");
+    }
+    return batchTagger
+        .rename(
+            images,
+            path -> FileManager.replaceTagInPath(path, oldTag, newTag),
+            this::record,
+            false,
+            progress)
+        .thenApply(result -> finish(root, oldTag, newTag, renamed, result, batchTagger));
+  }
+
+  /**
+   * Replace the journal with one that only has the header, so no rename is recorded yet.
+   *
+   * @param root the root folder
+   * @param oldTag the tag to rename
+   * @param newTag the new name of tag, null to delete it
+   * @throws IOException if the journal can't be written
+   */
+  private void writeHeader(String root, String oldTag, String newTag) throws IOException {
+    File header = new File(journal.getPath() + ".tmp");
+    try (DataOutputStream headerOutput =
+        new DataOutputStream(new BufferedOutputStream(new FileOutputStream(header)))) {
+      headerOutput.writeUTF(root);
+      headerOutput.writeUTF(oldTag);
+      headerOutput.writeBoolean(newTag != null);
+      headerOutput.writeUTF(newTag == null ? "" : newTag);
+    }
+    Files.move(
+        header.toPath(),
+        journal.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+  }
+
+  /**
+   * Log a summary and update the registry. The journal is deleted and the old tag removed only if
+   * every image was renamed, else both are kept so the operation can be resumed. The renames done
+   * so far are complete then, so the kept journal starts over from its header.
+   *
+   * @param root the root folder
+   * @param oldTag the renamed tag
+   * @param newTag the new name of tag, null if deleted
+   * @param resumed the images renamed before an interruption, new path by old path
+   * @param result the images renamed now and the images that can't be renamed
+   * @param batchTagger the batch tagger with the log manager
+   * @return all renamed images and the images that can't be renamed
+   */
+  private synchronized BatchTagger.Result finish(
+      String root,
+      String oldTag,
+      String newTag,
+      Map<String, String> resumed,
+      BatchTagger.Result result,
+      BatchTagger batchTagger) {
+    LinkedHashMap<String, String> renamed = new LinkedHashMap<>(resumed);
+    renamed.putAll(result.getRenamed());
+    List<String> failed = result.getFailed();
+    String change = "@" + oldTag + "--->" + (newTag == null ? "" : "@" + newTag);
+    String failures = failed.isEmpty() ? "" : ", " + failed.size() + " can't be renamed";
+    batchTagger.getLogManager().addEntry(change + " on " + renamed.size() + " images" + failures);
+    if (failed.isEmpty()) {
+      registry.remove(oldTag);
+    }
+    if (newTag != null) {
+      registry.add(newTag);
+    }
+    closeOutput();
+    if (failed.isEmpty()) {
+      journal.delete();
+    } else {
+      try {
+        writeHeader(root, oldTag, newTag);
+      } catch (IOException e) {
+        System.out.println("IOError in TagRefactoring.finish.");
+      }
+    }
+    return new BatchTagger.Result(renamed, failed);
+  }
+
+  /**
+   * Record a rename in the journal before it happens.
+   *
+   * @param oldPath the old path of image
+   * @param newPath the new path of image
+   */
+  private synchronized void record(String oldPath, String newPath) {
+    try {
+      output.writeUTF(oldPath);
+      output.writeUTF(newPath);
+      output.flush();
+    } catch (IOException e) {
+      System.out.println("IOError in TagRefactoring.record.");
+    }
+  }
+
+  /**
+   * Open the journal to record renames.
+   *
+   * @throws IOException if the journal can't be opened
+   */
+  private synchronized void openOutput() throws IOException {
+    output = new DataOutputStream(new FileOutputStream(journal, true));
+  }
+
+  /** Close the journal and allow the next operation, after an operation is done or failed. */
+  private synchronized void end() {
+    closeOutput();
+    running = false;
+  }
+
+  /** Close the journal once no more renames are recorded. */
+  private synchronized void closeOutput() {
+    if (output == null) {
+      return;
+    }
+    try {
+      output.close();
+    } catch (IOException e) {
+      System.out.println("IOError in TagRefactoring.closeOutput.");
+    }
+    output = null;
+  }
+
+  /**
+   * Make sure a rename recorded in the journal is in the history and tag index, if it happened.
+   *
+   * @param oldPath the old path of image
+   * @param newPath the new path of image
+   * @param tagIndex the tag index
+   * @return true if the image was renamed, else false
+   */
+  private static boolean completeRename(String oldPath, String newPath, TagIndex tagIndex) {
+    if (new File(oldPath).exists() || !new File(newPath).exists()) {
+      return false;
+    }
+    String oldName = StringManipulator.convertPathToName(oldPath);
+    String newName = StringManipulator.convertPathToName(newPath);
+    HistoryJournal history = HistoryJournal.open(new File(newPath).getParentFile());
+    ArrayList<String> names = history.getHistory(newName);
+    if (names.size() < 2 || !names.get(1).equals(oldName)) {
+      history.addName(oldName, newName);
+    }
+    tagIndex.moveImage(oldPath, newPath);
+    return true;
+  }
+
+  /**
+   * Find all images under a folder that have a tag.
+   *
+   * @param root the root folder
+   * @param tag the tag
+   * @param tagIndex the tag index, used if it is of the same folder
+   * @return the paths of images
+   * @throws IOException if the folder can't be read
+   */
+  private static ArrayList<String> findImages(String root, String tag, TagIndex tagIndex)
+      throws IOException {
+    if (root.equals(tagIndex.getRoot())) {
+      return tagIndex.getImages(new ArrayList<>(Collections.singletonList(tag)));
+    }
+    try (Stream<Path> paths = Files.walk(Paths.get(root))) {
+      return paths
+          .filter(Files::isRegularFile)
+          .map(Path::toString)
+          .filter(path -> FileManager.isImage(path))
+          .filter(path -> FileManager.hasTag(path, tag))
+          .collect(Collectors.toCollection(ArrayList::new));
+    } catch (UncheckedIOException e) {
+      // a folder that can't be read while walking.
+      throw e.getCause();
+    }
+  }
+
+  /**
+   * Get a result without any images.
+   *
+   * @return the result
+   */
+  private static BatchTagger.Result none() {
+    return new BatchTagger.Result(new LinkedHashMap<>(), new ArrayList<>());
+  }
+
+  /**
+   * Get a future that failed because of an error.
+   *
+   * @param message the error message
+   * @return the failed future
+   */
+  private static CompletableFuture<BatchTagger.Result> failed(String message) {
+    CompletableFuture<BatchTagger.Result> future = new CompletableFuture<>();
+    future.completeExceptionally(new IllegalStateException(message));
+    return future;
+  }
+}
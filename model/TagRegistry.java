@@ -0,0 +1,280 @@
+package model;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.BitSet;
+import java.util.Collection;
+
+/**
+ * Registry of all existing tags. Every tag gets a dense integer id in the order it was added, and
+ * ids and names map to each other in constant time. A deleted tag leaves a gap, so ids handed out
+ * earlier stay valid until the tags are read again.
+ *
+ * <p>Lookups don't lock: every change publishes a new immutable copy of the names and the lookup
+ * table, which readers, e.g. the threads of a filter, use as they find it. Tags change rarely and
+ * are few next to the images looked up, so copying them on a change costs little.
+ */
+public class TagRegistry {
+  private volatile Snapshot snapshot = new Snapshot(new String[0], new int[16], 0);
+
+  /** The tags at one point in time, never changed once published. */
+  private static final class Snapshot {
+    // the name of every id, null for deleted ones.
+    private final String[] names;
+    // open addressing table of id + 1 by the hash of name, for lookups by part of a string.
+    private final int[] table;
+    private final int count;
+
+    private Snapshot(String[] names, int[] table, int count) {
+      this.names = names;
+      this.table = table;
+      this.count = count;
+    }
+  }
+
+  /**
+   * Add a tag if it doesn't exist yet.
+   *
+   * @param name the name of tag
+   * @return the id of tag
+   */
+  public synchronized int add(String name) {
+    Snapshot current = snapshot;
+    int id = find(current.names, current.table, name, 0, name.length());
+    if (id != -1) {
+      return id;
+    }
+    id = current.names.length;
+    String[] names = Arrays.copyOf(current.names, id + 1);
+    names[id] = name;
+    int count = current.count + 1;
+    int[] table;
+    if (count * 2 > current.table.length) {
+      table = new int[current.table.length * 2];
+      for (int i = 0; i < names.length; i++) {
+        if (names[i] != null) {
+          insert(table, names, i);
+        }
+      }
+    } else {
+      table = current.table.clone();
+      insert(table, names, id);
+    }
+    snapshot = new Snapshot(names, table, count);
+    return id;
+  }
+
+  /**
+   * Add the tags that don't exist yet, publishing them together, e.g. when the saved tags are
+   * read.
+   *
+   * @param newNames the names of tags
+   */
+  public synchronized void addAll(Collection<String> newNames) {
+    Snapshot current = snapshot;
+    String[] names = Arrays.copyOf(current.names, current.names.length + newNames.size());
+    int[] table = current.table.clone();
+    int size = current.names.length;
+    int count = current.count;
+    for (String name : newNames) {
+      if (find(names, table, name, 0, name.length()) != -1) {
+        continue;
+      }
+      names[size] = name;
+      count++;
+      if (count * 2 > table.length) {
+        table = new int[table.length * 2];
+        for (int i = 0; i <= size; i++) {
+          if (names[i] != null) {
+            insert(table, names, i);
+          }
+        }
+      } else {
+        insert(table, names, size);
+      }
+      size++;
+    }
+    snapshot = new Snapshot(Arrays.copyOf(names, size), table, count);
+  }
+
+  /**
+   * Delete a tag. Its slot is filled by shifting back the entries after it that can move closer to
+   * their own slot, so lookups never have to skip deleted entries.
+   *
+   * @param name the name of tag
+   * @return true if the tag existed, else false
+   */
+  public synchronized boolean remove(String name) {
+    Snapshot current = snapshot;
+    int[] table = current.table.clone();
+    int mask = table.length - 1;
+    int slot = spread(name.hashCode()) & mask;
+    while (table[slot] != 0 && !name.equals(current.names[table[slot] - 1])) {
+      slot = (slot + 1) & mask;
+    }
+    if (table[slot] == 0) {
+      return false;
+    }
+    String[] names = current.names.clone();
+    names[table[slot] - 1] = null;
+
+    int next = slot;
+    while (true) {
+      next = (next + 1) & mask;
+      if (table[next] == 0) {
+        break;
+      }
+      int home = spread(names[table[next] - 1].hashCode()) & mask;
+      // an entry can fill the gap unless its own slot lies after the gap, up to where it is.
+      boolean stays = slot <= next ? slot < home && home <= next : slot < home || home <= next;
+      if (!stays) {
+        table[slot] = table[next];
+        slot = next;
+      }
+    }
+    table[slot] = 0;
+    snapshot = new Snapshot(names, table, current.count - 1);
+    return true;
+  }
+
+  /**
+   * Check if a tag exists.
+   *
+   * @param name the name of tag
+   * @return true if the tag exists, else false
+   */
+  public boolean contains(String name) {
+    return getId(name) != -1;
+  }
+
+  /**
+   * Get the id of a tag.
+   *
+   * @param name the name of tag
+   * @return the id, -1 if the tag doesn't exist
+   */
+  public int getId(String name) {
+    Snapshot current = snapshot;
+    return find(current.names, current.table, name, 0, name.length());
+  }
+
+  /**
+   * Get the id of a tag whose name is part of a string, e.g. a tag in a file name, without making
+   * a string of the name.
+   *
+   * @param source the string that contains the name
+   * @param start the start of name in source
+   * @param end the end of name in source
+   * @return the id, -1 if the tag doesn't exist
+   */
+  public int getId(String source, int start, int end) {
+    Snapshot current = snapshot;
+    return find(current.names, current.table, source, start, end);
+  }
+
+  /**
+   * Get the name of a tag.
+   *
+   * @param id the id of tag
+   * @return the name, null if there is no tag with this id
+   */
+  public String getName(int id) {
+    String[] names = snapshot.names;
+    return id >= 0 && id < names.length ? names[id] : null;
+  }
+
+  /**
+   * Get all tags in the order they were added.
+   *
+   * @return the names of tags
+   */
+  public ArrayList<String> getTags() {
+    Snapshot current = snapshot;
+    ArrayList<String> tags = new ArrayList<>(current.count);
+    for (String name : current.names) {
+      if (name != null) {
+        tags.add(name);
+      }
+    }
+    return tags;
+  }
+
+  /**
+   * Gets the number of tags.
+   *
+   * @return the number of tags
+   */
+  public int size() {
+    return snapshot.count;
+  }
+
+  /**
+   * Turn tag names into a set of tag ids. Names that are not registered are left out.
+   *
+   * @param tags the names of tags
+   * @return a bitset with the id of every registered tag set
+   */
+  public BitSet toBitSet(Collection<String> tags) {
+    Snapshot current = snapshot;
+    BitSet set = new BitSet(current.names.length);
+    for (String tag : tags) {
+      int id = find(current.names, current.table, tag, 0, tag.length());
+      if (id != -1) {
+        set.set(id);
+      }
+    }
+    return set;
+  }
+
+  /**
+   * Look up a tag whose name is part of a string.
+   *
+   * @param names the name of every id
+   * @param table the lookup table
+   * @param source the string that contains the name
+   * @param start the start of name in source
+   * @param end the end of name in source
+   * @return the id, -1 if the tag doesn't exist
+   */
+  private static int find(String[] names, int[] table, String source, int start, int end) {
+    int length = end - start;
+    int hash = 0;
+    for (int i = start; i < end; i++) {
+      hash = 31 * hash + source.charAt(i);
+    }
+    int mask = table.length - 1;
+    for (int slot = spread(hash) & mask; table[slot] != 0; slot = (slot + 1) & mask) {
+      String name = names[table[slot] - 1];
+      if (name.length() == length && source.regionMatches(start, name, 0, length)) {
+        return table[slot] - 1;
+      }
+    }
+    return -1;
+  }
+
+  /**
+   * Put a tag into a lookup table.
+   *
+   * @param table the lookup table
+   * @param names the name of every id
+   * @param id the id of tag
+   */
+  private static void insert(int[] table, String[] names, int id) {
+    int mask = table.length - 1;
+    int slot = spread(names[id].hashCode()) & mask;
+    while (table[slot] != 0) {
+      slot = (slot + 1) & mask;
+    }
+    table[slot] = id + 1;
+  }
+
+  /**
+   * Mix the high bits of a hash into the low bits, which pick the slot.
+   *
+   * @param hash the hash of name
+   * @return the mixed hash
+   */
+  private static int spread(int hash) {
+    return hash ^ (hash >>> 16);
+  }
+}
@@ -0,0 +1,434 @@
+package model;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+
+/**
+ * Tags of the images in one library, kept in a sidecar file instead of in the image names, so
+ * tagging an image doesn't rename it. Images are known by the identity of their file (the file key
+ * of the file system, e.g. device and inode), so an image keeps its tags when it is renamed or
+ * moved, also outside the app. Images without a record have the tags in their name.
+ *
+ * <p>Some file systems, e.g. NTFS or network shares, have no file keys. There images are known by
+ * their path instead, which the store follows when the app renames or moves them, but an image
+ * renamed or moved outside the app loses its stored tags. See {@link #isKeyedByPath()}.
+ *
+ * <p>The store is an append-only log of records in .tags.store in the library root, read and
+ * written through a memory map. A record holds the file key, the last known path and the tags of an
+ * image, and the last record of a file key wins. The header holds where the last complete record
+ * ends and is updated after a record is written, so a record cut off by a crash is ignored. The log
+ * is compacted when it is opened and most of its records are outdated.
+ */
+public class TagStore {
+  /** Name of the store file in the library root. */
+  public static final String FILE_NAME = ".tags.store";
+
+  private static final int MAGIC = 0x54475331;
+  private static final int HEADER = 8;
+  private static final int INITIAL_SIZE = 1 << 16;
+  private static final int COMPACT_THRESHOLD = 1024;
+  // prefix of the key of images on file systems without file keys.
+  private static final String PATH_KEY = "path:";
+
+  private File root;
+  private File file;
+  private boolean keyedByPath;
+  private FileChannel channel;
+  private MappedByteBuffer mapped;
+  private int end;
+  private int records = 0;
+  private HashMap<String, Entry> keys = new HashMap<>();
+  private HashMap<String, Entry> paths = new HashMap<>();
+
+  /**
+   * Opens the store of a library, creating it if there is none. Images that were moved since the
+   * store was last open are found by their file key, and images that no longer exist are dropped.
+   *
+   * @param root the library root
+   * @throws IOException if the store can't be read or written
+   */
+  public TagStore(File root) throws IOException {
+    this.root = root;
+    file = new File(root, FILE_NAME);
+    keyedByPath = Files.readAttributes(root.toPath(), BasicFileAttributes.class).fileKey() == null;
+    open();
+    ArrayList<Entry> moved = locate();
+    if (records - keys.size() >= COMPACT_THRESHOLD && records > keys.size() * 2) {
+      compact();
+    } else {
+      for (Entry entry : moved) {
+        append(entry);
+      }
+    }
+  }
+
+  /**
+   * Check if a library keeps its tags in a store.
+   *
+   * @param root the library root
+   * @return true if the library has a store file, else false
+   */
+  public static boolean exists(File root) {
+    return new File(root, FILE_NAME).exists();
+  }
+
+  /**
+   * Gets the library root of this store.
+   *
+   * @return the library root
+   */
+  public File getRoot() {
+    return root;
+  }
+
+  /**
+   * Check if the file system of the library has no file keys, so images are known by their path
+   * and lose their stored tags when they are renamed or moved outside the app.
+   *
+   * @return true if images are known by their path, else false
+   */
+  public boolean isKeyedByPath() {
+    return keyedByPath;
+  }
+
+  /**
+   * Get the stored tags of an image.
+   *
+   * @param imagePath the path of image
+   * @return the tags, null if the image has no record and its tags are in its name
+   */
+  public synchronized ArrayList<String> getTags(String imagePath) {
+    Entry entry = paths.get(imagePath);
+    return entry == null ? null : new ArrayList<>(Arrays.asList(entry.tags));
+  }
+
+  /**
+   * Get all images with a record.
+   *
+   * @return the paths of images
+   */
+  public synchronized ArrayList<String> getImages() {
+    return new ArrayList<>(paths.keySet());
+  }
+
+  /**
+   * Check if every image has the same tags in its name as in the store, e.g. after the tags were
+   * written into the names.
+   *
+   * @return true if the names match the store, else false
+   */
+  public synchronized boolean matchesNames() {
+    for (Entry entry : paths.values()) {
+      if (!TagParser.withTags(entry.path, Arrays.asList(entry.tags)).equals(entry.path)) {
+        return false;
+      }
+    }
+    return true;
+  }
+
+  /**
+   * Set the tags of an image.
+   *
+   * @param imagePath the path of image
+   * @param tags the tags
+   * @throws UncheckedIOException if the image or the store can't be read or written
+   */
+  public synchronized void setTags(String imagePath, List<String> tags) {
+    Entry entry = paths.get(imagePath);
+    if (entry == null) {
+      Path path = new File(imagePath).toPath();
+      try {
+        entry = new Entry(fileKey(path, Files.readAttributes(path, BasicFileAttributes.class)));
+      } catch (IOException e) {
+        throw new UncheckedIOException("Can't read " + imagePath + ".", e);
+      }
+      entry.path = imagePath;
+      keys.put(entry.key, entry);
+      paths.put(imagePath, entry);
+    }
+    entry.tags = tags.toArray(new String[0]);
+    append(entry);
+  }
+
+  /**
+   * Keep the tags of an image after it is renamed or moved.
+   *
+   * @param oldPath the old path of image
+   * @param newPath the new path of image
+   */
+  synchronized void moveImage(String oldPath, String newPath) {
+    Entry entry = paths.remove(oldPath);
+    if (entry == null) {
+      return;
+    }
+    entry.path = newPath;
+    paths.put(newPath, entry);
+    if (entry.key.startsWith(PATH_KEY)) {
+      // known by its path, so found at the new one when the store is opened again.
+      keys.remove(entry.key);
+      entry.key = PATH_KEY + newPath;
+      keys.put(entry.key, entry);
+    }
+    append(entry);
+  }
+
+  /** Write the store to disk and close it. */
+  public synchronized void close() {
+    if (channel == null) {
+      return;
+    }
+    mapped.force();
+    try {
+      channel.close();
+    } catch (IOException e) {
+      System.out.println("Tag store is not successfully closed.");
+    }
+    channel = null;
+  }
+
+  /** Close the store and delete its file, e.g. after its tags are written into the image names. */
+  public synchronized void delete() {
+    close();
+    if (!file.delete()) {
+      System.out.println("Tag store could not be deleted.");
+    }
+  }
+
+  /**
+   * Map the store file and read its records.
+   *
+   * @throws IOException if the file can't be read, or is not a tag store
+   */
+  private void open() throws IOException {
+    channel =
+        FileChannel.open(
+            file.toPath(),
+            StandardOpenOption.CREATE,
+            StandardOpenOption.READ,
+            StandardOpenOption.WRITE);
+    long size = channel.size();
+    if (size < HEADER) {
+      mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, INITIAL_SIZE);
+      mapped.putInt(0, MAGIC);
+      mapped.putInt(4, HEADER);
+      end = HEADER;
+      return;
+    }
+    mapped = channel.map(FileChannel.MapMode.READ_WRITE, 0, size);
+    end = mapped.getInt(4);
+    if (mapped.getInt(0) != MAGIC || end < HEADER || end > size) {
+      channel.close();
+      throw new IOException(file + " is not a tag store.");
+    }
+
+    int offset = HEADER;
+    while (offset < end) {
+      int length = mapped.getInt(offset);
+      byte[] record = new byte[length];
+      mapped.position(offset + 4);
+      mapped.get(record);
+      Entry entry = decode(record);
+      keys.put(entry.key, entry);
+      records++;
+      offset += 4 + length;
+    }
+  }
+
+  /**
+   * Find the current path of every image. An image is looked for at its last known path first,
+   * and the library is only walked if some images are not there.
+   *
+   * @return the images that were moved since the store was last open
+   * @throws IOException if the library can't be walked
+   */
+  private ArrayList<Entry> locate() throws IOException {
+    HashMap<String, Entry> missing = new HashMap<>();
+    for (Entry entry : keys.values()) {
+      Path path = new File(entry.path).toPath();
+      try {
+        BasicFileAttributes attrs = Files.readAttributes(path, BasicFileAttributes.class);
+        if (fileKey(path, attrs).equals(entry.key)) {
+          paths.put(entry.path, entry);
+          continue;
+        }
+      } catch (IOException e) {
+        // moved or deleted, looked for below.
+      }
+      missing.put(entry.key, entry);
+    }
+
+    ArrayList<Entry> moved = new ArrayList<>();
+    // images known by their path can't be found anywhere else.
+    if (!missing.isEmpty() && !keyedByPath) {
+      Files.walkFileTree(
+          root.toPath(),
+          new SimpleFileVisitor<Path>() {
+            @Override
+            public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+              Entry entry = missing.remove(fileKey(file, attrs));
+              if (entry != null) {
+                entry.path = file.toString();
+                paths.put(entry.path, entry);
+                moved.add(entry);
+              }
+              return missing.isEmpty() ? FileVisitResult.TERMINATE : FileVisitResult.CONTINUE;
+            }
+
+            @Override
+            public FileVisitResult visitFileFailed(Path file, IOException e) {
+              return FileVisitResult.CONTINUE;
+            }
+          });
+    }
+    // images that are gone are dropped with the next compaction.
+    keys.values().removeAll(missing.values());
+    return moved;
+  }
+
+  /**
+   * Rewrite the store with one record per image, replacing the old file at once.
+   *
+   * @throws IOException if the store can't be written
+   */
+  private void compact() throws IOException {
+    File compacted = new File(file.getPath() + ".tmp");
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    DataOutputStream output = new DataOutputStream(bytes);
+    output.writeInt(MAGIC);
+    output.writeInt(0);
+    for (Entry entry : keys.values()) {
+      byte[] record = encode(entry);
+      output.writeInt(record.length);
+      output.write(record);
+    }
+    byte[] content = bytes.toByteArray();
+    ByteBuffer.wrap(content).putInt(4, content.length);
+    Files.write(compacted.toPath(), content);
+
+    channel.close();
+    Files.move(
+        compacted.toPath(),
+        file.toPath(),
+        StandardCopyOption.REPLACE_EXISTING,
+        StandardCopyOption.ATOMIC_MOVE);
+    keys.clear();
+    paths.clear();
+    records = 0;
+    open();
+    for (Entry entry : keys.values()) {
+      paths.put(entry.path, entry);
+    }
+  }
+
+  /**
+   * Append the record of an image, growing the mapped file if needed.
+   *
+   * @param entry the image
+   * @throws UncheckedIOException if the store can't be written
+   */
+  private void append(Entry entry) {
+    try {
+      byte[] record = encode(entry);
+      int newEnd = end + 4 + record.length;
+      if (newEnd > mapped.capacity()) {
+        mapped =
+            channel.map(
+                FileChannel.MapMode.READ_WRITE, 0, Math.max(mapped.capacity() * 2L, newEnd));
+      }
+      mapped.putInt(end, record.length);
+      mapped.position(end + 4);
+      mapped.put(record);
+      // the record only counts once the header points past it.
+      mapped.putInt(4, newEnd);
+      end = newEnd;
+      records++;
+    } catch (IOException e) {
+      throw new UncheckedIOException("Tag store can't be written.", e);
+    }
+  }
+
+  /**
+   * Get the key that identifies a file across renames and moves.
+   *
+   * @param path the path of file
+   * @param attrs the attributes of file
+   * @return the file key, or the path on file systems without file keys
+   */
+  private static String fileKey(Path path, BasicFileAttributes attrs) {
+    return attrs.fileKey() != null ? attrs.fileKey().toString() : PATH_KEY + path;
+  }
+
+  /**
+   * Encode the record of an image.
+   *
+   * @param entry the image
+   * @return the record
+   * @throws IOException never, the record is written to memory
+   */
+  private static byte[] encode(Entry entry) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream();
+    try (DataOutputStream output = new DataOutputStream(bytes)) {
+      output.writeUTF(entry.key);
+      output.writeUTF(entry.path);
+      output.writeShort(entry.tags.length);
+      for (String tag : entry.tags) {
+        output.writeUTF(tag);
+      }
+    }
+    return bytes.toByteArray();
+  }
+
+  /**
+   * Decode the record of an image.
+   *
+   * @param record the record
+   * @return the image
+   * @throws IOException if the record is damaged
+   */
+  private static Entry decode(byte[] record) throws IOException {
+    try (DataInputStream input = new DataInputStream(new ByteArrayInputStream(record))) {
+      Entry entry = new Entry(input.readUTF());
+      entry.path = input.readUTF();
+      entry.tags = new String[input.readUnsignedShort()];
+      for (int i = 0; i < entry.tags.length; i++) {
+        entry.tags[i] = input.readUTF();
+      }
+      return entry;
+    }
+  }
+
+  /** The file key, last known path and tags of one image. */
+  private static class Entry {
+    private String key;
+    private String path;
+    private String[] tags = new String[0];
+
+    /**
+     * Instantiates a new Entry.
+     *
+     * @param key the file key of image
+     */
+    Entry(String key) {
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,298 @@
+package model;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Paths;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+
+/**
+ * Fixed-size thumbnails of images, generated by background workers. All thumbnails are appended to
+ * one pack file that is read through a memory map, and an index file records where each one
+ * starts. A thumbnail is found by image path, file size and last modified time, so an image that
+ * changed gets a new thumbnail and the old bytes are never rewritten.
+ */
+public class ThumbnailStore {
+  /** Width and height that every thumbnail fits in. */
+  public static final int SIZE = 64;
+
+  private FileChannel pack;
+  private DataOutputStream index;
+  private MappedByteBuffer mapped;
+  private Map<String, long[]> offsets = new HashMap<>();
+  private Map<String, CompletableFuture<byte[]>> pending = new ConcurrentHashMap<>();
+  private ExecutorService workers;
+  private ExecutorService lookups;
+
+  /**
+   * Instantiates a new Thumbnail store. Reads the index of thumbnails generated so far.
+   *
+   * @param storePath the path of pack file, the index is stored next to it with suffix .idx
+   */
+  public ThumbnailStore(String storePath) {
+    workers =
+        Executors.newFixedThreadPool(
+            Math.max(1, Runtime.getRuntime().availableProcessors() - 1),
+            runnable -> {
+              Thread thread = new Thread(runnable, "thumbnail-worker");
+              thread.setDaemon(true);
+              thread.setPriority(Thread.MIN_PRIORITY);
+              return thread;
+            });
+    lookups =
+        Executors.newSingleThreadExecutor(
+            runnable -> {
+              Thread thread = new Thread(runnable, "thumbnail-lookup");
+              thread.setDaemon(true);
+              return thread;
+            });
+
+    File indexFile = new File(storePath + ".idx");
+    try {
+      pack =
+          FileChannel.open(
+              Paths.get(storePath),
+              StandardOpenOption.CREATE,
+              StandardOpenOption.READ,
+              StandardOpenOption.WRITE);
+      long packSize = pack.size();
+      if (indexFile.exists()) {
+        readIndex(indexFile, packSize);
+      }
+      index = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(indexFile, true)));
+    } catch (IOException e) {
+      System.out.println("Thumbnail store can't be opened, thumbnails won't be kept.");
+    }
+  }
+
+  /**
+   * Get the thumbnail of an image. The image file is looked up in the background, a stored
+   * thumbnail is read right away, otherwise it is generated by a background worker and stored.
+   *
+   * @param imagePath the path of image
+   * @return the encoded thumbnail, completed with null if the image can't be read
+   */
+  public CompletableFuture<byte[]> getThumbnail(String imagePath) {
+    return CompletableFuture.supplyAsync(() -> lookup(imagePath), lookups)
+        .thenCompose(thumbnail -> thumbnail);
+  }
+
+  /**
+   * Find the stored thumbnail of an image, or start generating it.
+   *
+   * @param imagePath the path of image
+   * @return the encoded thumbnail, completed with null if the image can't be read
+   */
+  private CompletableFuture<byte[]> lookup(String imagePath) {
+    String key;
+    try {
+      BasicFileAttributes attrs =
+          Files.readAttributes(Paths.get(imagePath), BasicFileAttributes.class);
+      key = imagePath + "|" + attrs.size() + "|" + attrs.lastModifiedTime().toMillis();
+    } catch (IOException e) {
+      return CompletableFuture.completedFuture(null);
+    }
+
+    byte[] stored = read(key);
+    if (stored != null) {
+      return CompletableFuture.completedFuture(stored);
+    }
+    CompletableFuture<byte[]> thumbnail =
+        pending.computeIfAbsent(
+            key,
+            k ->
+                CompletableFuture.supplyAsync(
+                    () -> {
+                      byte[] generated = generate(imagePath);
+                      if (generated != null) {
+                        append(k, generated);
+                      }
+                      return generated;
+                    },
+                    workers));
+    thumbnail.whenComplete((generated, e) -> pending.remove(key, thumbnail));
+    return thumbnail;
+  }
+
+  /** Flush the index and close the store. */
+  public synchronized void close() {
+    lookups.shutdownNow();
+    workers.shutdownNow();
+    try {
+      if (index != null) {
+        index.close();
+      }
+      if (pack != null) {
+        pack.close();
+      }
+    } catch (IOException e) {
+      System.out.println("Thumbnail store is not successfully closed.");
+    }
+  }
+
+  /**
+   * Read a stored thumbnail from the memory mapped pack file.
+   *
+   * @param key the key of thumbnail
+   * @return the encoded thumbnail, null if it is not stored
+   */
+  private synchronized byte[] read(String key) {
+    long[] entry = offsets.get(key);
+    if (entry == null) {
+      return null;
+    }
+    long offset = entry[0];
+    int length = (int) entry[1];
+    byte[] thumbnail = new byte[length];
+    try {
+      if (offset + length <= Integer.MAX_VALUE) {
+        if (mapped == null || offset + length > mapped.capacity()) {
+          long mapSize = Math.min(pack.size(), Integer.MAX_VALUE);
+          mapped = pack.map(FileChannel.MapMode.READ_ONLY, 0, mapSize);
+        }
+        ByteBuffer view = mapped.duplicate();
+        view.position((int) offset);
+        view.get(thumbnail);
+      } else {
+        // beyond what one map can hold, read the bytes directly.
+        ByteBuffer buffer = ByteBuffer.wrap(thumbnail);
+        while (buffer.hasRemaining() && pack.read(buffer, offset + buffer.position()) >= 0) {
+          continue;
+        }
+      }
+      return thumbnail;
+    } catch (IOException e) {
+      System.out.println("Reading thumbnail failed.");
+      return null;
+    }
+  }
+
+  /**
+   * Append a thumbnail to the end of pack file and record it in the index.
+   *
+   * @param key the key of thumbnail
+   * @param thumbnail the encoded thumbnail
+   */
+  private synchronized void append(String key, byte[] thumbnail) {
+    if (index == null) {
+      return;
+    }
+    try {
+      long offset = pack.size();
+      ByteBuffer buffer = ByteBuffer.wrap(thumbnail);
+      while (buffer.hasRemaining()) {
+        pack.write(buffer, offset + buffer.position());
+      }
+      index.writeUTF(key);
+      index.writeLong(offset);
+      index.writeInt(thumbnail.length);
+      index.flush();
+      offsets.put(key, new long[] {offset, thumbnail.length});
+    } catch (IOException e) {
+      System.out.println("Saving thumbnail failed.");
+    }
+  }
+
+  /**
+   * Read the index file. Entries that point past the end of pack file (from an interrupted write)
+   * are dropped.
+   *
+   * @param indexFile the index file
+   * @param packSize the size of pack file
+   * @throws IOException if the index can't be read
+   */
+  private void readIndex(File indexFile, long packSize) throws IOException {
+    try (DataInputStream input =
+        new DataInputStream(new BufferedInputStream(new FileInputStream(indexFile)))) {
+      while (true) {
+        String key = input.readUTF();
+        long offset = input.readLong();
+        int length = input.readInt();
+        offsets.put(key, new long[] {offset, length});
+      }
+    } catch (EOFException e) {
+      // end of index.
+    }
+    Iterator<long[]> entries = offsets.values().iterator();
+    while (entries.hasNext()) {
+      long[] entry = entries.next();
+      if (entry[0] + entry[1] > packSize) {
+        entries.remove();
+      }
+    }
+  }
+
+  /**
+   * Decode an image and scale it down to a thumbnail. Large images are decoded with subsampling, so
+   * only about as many pixels as the thumbnail needs are read.
+   *
+   * @param imagePath the path of image
+   * @return the thumbnail encoded as jpg, null if the image can't be read
+   */
+  private static byte[] generate(String imagePath) {
+    try (ImageInputStream input = ImageIO.createImageInputStream(new File(imagePath))) {
+      Iterator<ImageReader> readers =
+          input == null ? null : ImageIO.getImageReaders(input);
+      if (readers == null || !readers.hasNext()) {
+        return null;
+      }
+      ImageReader reader = readers.next();
+      BufferedImage source;
+      try {
+        reader.setInput(input, true, true);
+        int width = reader.getWidth(0);
+        int height = reader.getHeight(0);
+        ImageReadParam param = reader.getDefaultReadParam();
+        int step = Math.max(1, Math.min(width, height) / (SIZE * 2));
+        param.setSourceSubsampling(step, step, 0, 0);
+        source = reader.read(0, param);
+      } finally {
+        reader.dispose();
+      }
+
+      double scale = Math.min(1.0, (double) SIZE / Math.max(source.getWidth(), source.getHeight()));
+      int width = Math.max(1, (int) Math.round(source.getWidth() * scale));
+      int height = Math.max(1, (int) Math.round(source.getHeight() * scale));
+      BufferedImage thumbnail = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+      Graphics2D graphics = thumbnail.createGraphics();
+      graphics.setRenderingHint(
+          RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+      graphics.drawImage(source, 0, 0, width, height, Color.WHITE, null);
+      graphics.dispose();
+
+      ByteArrayOutputStream output = new ByteArrayOutputStream();
+      ImageIO.write(thumbnail, "jpg", output);
+      return output.toByteArray();
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Generating thumbnail failed.");
+      return null;
+    }
+  }
+}
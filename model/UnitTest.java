@@ -1,16 +1,84 @@
 package model;
 
+import org.junit.jupiter.api.AfterEach;
 import org.junit.jupiter.api.Test;
+import org.junit.jupiter.api.io.TempDir;
 
+import java.io.DataOutputStream;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.locks.Lock;
+import java.util.function.UnaryOperator;
+import java.util.zip.GZIPOutputStream;
 
 import static org.junit.jupiter.api.Assertions.assertEquals;
+import static org.junit.jupiter.api.Assertions.assertFalse;
+import static org.junit.jupiter.api.Assertions.assertSame;
+import static org.junit.jupiter.api.Assertions.assertThrows;
 import static org.junit.jupiter.api.Assertions.assertTrue;
 
 class UnitTest {
+    // a new folder for every test, deleted after it.
+    @TempDir
+    Path root;
+    private final ArrayList<LogManager> logManagers = new ArrayList<>();
+
+    /** Put back the state shared by all tests, so no test depends on the ones before it. */
+    @AfterEach
+    void restoreShared() {
+        FileManager.setTagIndex(null);
+        FileManager.setTagStore(null);
+        FileManager.setOperationJournal(null);
+        HistoryJournal.closeAll();
+        for (LogManager logManager : logManagers) {
+            logManager.writeInfo();
+        }
+    }
+
+    /**
+     * Create empty files under the test folder, and their folders.
+     *
+     * @param names the paths of files, relative to the test folder
+     * @throws IOException if a file can't be created
+     */
+    private void createFiles(String... names) throws IOException {
+        for (String name : names) {
+            Path file = root.resolve(name);
+            Files.createDirectories(file.getParent());
+            Files.createFile(file);
+        }
+    }
+
+    /**
+     * Open a log in the test folder, closed after the test.
+     *
+     * @return the log manager
+     */
+    private LogManager openLog() {
+        LogManager logManager = new LogManager(root.resolve("log.txt").toString());
+        logManagers.add(logManager);
+        return logManager;
+    }
+
+    /**
+     * Get the path of a file in the test folder.
+     *
+     * @param name the path of file, relative to the test folder
+     * @return the absolute path
+     */
+    private String path(String name) {
+        return root.resolve(name).toString();
+    }
     @Test
     void testChangeImageName() {
         model.FileManager fileManager = new model.FileManager("/Users/yifanm/Desktop//group_0465/phase2/testImage/sunset.jpg");
@@ -81,4 +149,421 @@ class UnitTest {
         String[] info_list = info.toArray(new String[info.size()]);
         assertEquals("[]", Arrays.toString(info_list));
     }
+
+    @Test
+    void testTagIndex() throws IOException {
+        createFiles("sunset @landscape @lovely.jpg", "trip/beach @landscape.png", "trip/notes.txt");
+        TagIndex tagIndex = new TagIndex(path("tag_index.txt"));
+        tagIndex.load(root.toFile());
+
+        ArrayList<String> tags = new ArrayList<>();
+        tags.add("landscape");
+        assertEquals(2, tagIndex.getImages(tags).size());
+        tags.add("lovely");
+        assertEquals("[" + path("sunset @landscape @lovely.jpg") + "]", tagIndex.getImages(tags).toString());
+
+        tagIndex.moveImage(path("sunset @landscape @lovely.jpg"), path("sunset @landscape.jpg"));
+        assertTrue(tagIndex.getImages(tags).isEmpty());
+
+        // a saved index is read back, listing again only the folders changed since it was saved.
+        Files.delete(root.resolve("trip/beach @landscape.png"));
+        tagIndex.writeIndex();
+        TagIndex reloaded = new TagIndex(path("tag_index.txt"));
+        reloaded.load(root.toFile());
+        tags.remove("lovely");
+        assertEquals("[" + path("sunset @landscape @lovely.jpg") + "]", reloaded.getImages(tags).toString());
+    }
+
+    @Test
+    void testTagIndexListsChangedFolders() throws IOException {
+        createFiles("sunset @landscape.jpg", "trip/beach @landscape.png", "old/hill @landscape.jpg");
+        FileTime hourAgo = FileTime.fromMillis(System.currentTimeMillis() - 3600_000);
+        for (String folder : new String[] {"", "trip", "old"}) {
+            Files.setLastModifiedTime(root.resolve(folder), hourAgo);
+        }
+        TagIndex tagIndex = new TagIndex(path("tag_index.txt"));
+        tagIndex.load(root.toFile());
+        tagIndex.writeIndex();
+
+        // an unchanged folder is trusted, a changed one is listed again and a gone one dropped.
+        createFiles("trip/lake @landscape.png");
+        Files.setLastModifiedTime(root.resolve("trip"), hourAgo);
+        Files.delete(root.resolve("old/hill @landscape.jpg"));
+        Files.delete(root.resolve("old"));
+        createFiles("new/field @landscape.jpg");
+        TagIndex reloaded = new TagIndex(path("tag_index.txt"));
+        reloaded.load(root.toFile());
+        assertEquals(
+                Arrays.asList(path("new/field @landscape.jpg"), path("sunset @landscape.jpg"), path("trip/beach @landscape.png")),
+                reloaded.getImages(new ArrayList<>(Arrays.asList("landscape"))));
+    }
+
+    @Test
+    void testHistoryJournalKeepsOneJournalInUse() {
+        HistoryJournal journal = HistoryJournal.open(root.toFile());
+        for (int i = 0; i < 200; i++) {
+            HistoryJournal.open(root.resolve("d" + i).toFile());
+        }
+        assertSame(journal, HistoryJournal.open(root.toFile()));
+    }
+
+    @Test
+    void testHistoryJournal() throws IOException {
+        Files.write(root.resolve("history.txt"), Arrays.asList("sunset @landscape", "sunset", "", "beach @sea", "beach", ""));
+        HistoryJournal journal = new HistoryJournal(root.toFile());
+        assertTrue(Files.exists(root.resolve("history.txt.bak")));
+        assertEquals("[sunset @landscape, sunset]", journal.getHistory("sunset @landscape").toString());
+
+        journal.addName("beach @sea", "beach @sea @lovely");
+        journal.addName("forest", "forest @green");
+        assertEquals("[beach @sea @lovely, beach @sea, beach]", journal.getHistory("beach @sea @lovely").toString());
+        assertTrue(journal.getHistory("beach @sea").isEmpty());
+
+        // a record cut off by a crash is dropped when the journal is read again.
+        Files.write(root.resolve("history.journal"), new byte[] {0, 0, 0, 40, 'R'}, StandardOpenOption.APPEND);
+        HistoryJournal reopened = new HistoryJournal(root.toFile());
+        assertEquals("[forest @green, forest]", reopened.getHistory("forest @green").toString());
+        assertEquals(3, reopened.getHistory("beach @sea @lovely").size());
+        assertEquals(reopened.getImageId("beach @sea @lovely"), journal.getImageId("beach @sea @lovely"));
+
+        // a name that appears inside another chain is not mistaken for that image.
+        assertEquals(-1, reopened.getImageId("sunset"));
+        reopened.addName("sunset", "sunset @new");
+        assertEquals("[sunset @new, sunset]", reopened.getHistory("sunset @new").toString());
+        assertEquals("[sunset @landscape, sunset]", reopened.getHistory("sunset @landscape").toString());
+    }
+
+    @Test
+    void testLogManager() throws IOException {
+        Path log = root.resolve("log.txt");
+        // written newest first by an earlier version.
+        Files.write(log, Arrays.asList("b--->c Changed at: 2018-03-02 10:00:00", "a--->b Changed at: 2018-03-01 10:00:00"));
+        LogManager logManager = openLog();
+        assertEquals("a--->b Changed at: 2018-03-01 10:00:00", Files.readAllLines(log).get(0));
+
+        logManager.addInfo("/images/c.jpg", "/images/d.jpg");
+        assertTrue(logManager.getInfo().get(0).startsWith("c--->d Changed at: "));
+        assertEquals(3, logManager.getInfo().size());
+        logManager.writeInfo();
+        assertEquals("[" + logManager.getInfo().get(0) + ", b--->c Changed at: 2018-03-02 10:00:00]", LogWriter.readTail(log.toString(), 2).toString());
+    }
+
+    @Test
+    void testTagManagerLoadsLater() throws IOException {
+        Files.write(root.resolve("tags.txt"), Arrays.asList("sunset", "sea"));
+        CompletableFuture<Void> gate = new CompletableFuture<>();
+        TagManager tagManager = new TagManager(path("tags.txt"), task -> gate.thenRunAsync(task));
+        assertFalse(tagManager.whenLoaded().isDone());
+        gate.complete(null);
+        assertTrue(tagManager.contains("sea"));
+        tagManager.addInfo("sky");
+        assertEquals("[sunset, sea, sky]", tagManager.getInfo().toString());
+    }
+
+    @Test
+    void testLogIndex() throws IOException {
+        Files.write(root.resolve("log.txt"), Arrays.asList(
+                "a--->b Changed at: 2018-03-01 10:00:00",
+                "b--->c Changed at: 2018-03-02 09:00:00",
+                "c--->d Changed at: 2018-03-02 18:00:00",
+                "d--->e Changed at: 2018-03-03 10:00:00"));
+        LogIndex logIndex = new LogIndex(path("log.txt"));
+        assertEquals(4, logIndex.size());
+        assertEquals("c--->d Changed at: 2018-03-02 18:00:00", logIndex.getLine(2));
+        assertEquals(1, logIndex.lowerBound("2018-03-02"));
+        assertEquals(3, logIndex.upperBound("2018-03-02"));
+        assertEquals(2, logIndex.upperBound("2018-03-02 09:00:00"));
+
+        // appended lines are indexed on refresh, a line is indexed once it is complete.
+        Files.write(root.resolve("log.txt"), "e--->f Changed at: 2018-03-04 10:00:00\ng".getBytes(), StandardOpenOption.APPEND);
+        logIndex.refresh();
+        assertEquals(5, logIndex.size());
+        assertEquals("e--->f Changed at: 2018-03-04 10:00:00", logIndex.getLine(4));
+        Files.write(root.resolve("log.txt"), "--->h Changed at: 2018-03-05 10:00:00\n".getBytes(), StandardOpenOption.APPEND);
+        logIndex.refresh();
+        assertEquals("g--->h Changed at: 2018-03-05 10:00:00", logIndex.getLine(5));
+
+        try (OutputStream output = new GZIPOutputStream(Files.newOutputStream(root.resolve("log.txt.1.gz")))) {
+            output.write("x--->y Changed at: 2018-02-01 10:00:00\ny--->z Changed at: 2018-02-02 10:00:00".getBytes());
+        }
+        LogIndex segment = LogIndex.readSegment(root.resolve("log.txt.1.gz").toFile());
+        assertEquals(2, segment.size());
+        assertEquals(1, segment.lowerBound("2018-02-02"));
+    }
+
+    @Test
+    void testTagQuery() {
+        TagRegistry registry = new TagRegistry();
+        for (String tag : Arrays.asList("landscape", "sunset", "sunrise", "draft", "and")) {
+            registry.add(tag);
+        }
+        ArrayList<String> images = new ArrayList<>(Arrays.asList(
+                "/images/a @landscape @sunset.jpg",
+                "/images/b @landscape @sunrise @draft.jpg",
+                "/images/c @landscape.jpg",
+                "/images/d @and.jpg",
+                "/images/e.jpg"));
+
+        assertEquals("[/images/a @landscape @sunset.jpg]", new TagQuery("landscape AND sunset", registry).filter(images).toString());
+        assertEquals(2, new TagQuery("landscape and sun*", registry).filter(images).size());
+        assertEquals("[/images/a @landscape @sunset.jpg, /images/c @landscape.jpg]", new TagQuery("landscape AND NOT draft", registry).filter(images).toString());
+        assertEquals(2, new TagQuery("NOT (landscape OR unknown)", registry).filter(images).size());
+        assertEquals("[/images/d @and.jpg]", new TagQuery("\"and\"", registry).filter(images).toString());
+        assertThrows(IllegalArgumentException.class, () -> new TagQuery("landscape AND (sunset", registry));
+        assertThrows(IllegalArgumentException.class, () -> new TagQuery("landscape sunset", registry));
+
+        // a tag only the images carry is found once the query knows the indexed tags.
+        images.add("/images/f @landscape @fog.jpg");
+        assertEquals(6, new TagQuery("NOT fog", registry).filter(images).size());
+        TagQuery withIndexed = new TagQuery("landscape AND NOT fog*", registry, Arrays.asList("landscape", "fog"));
+        assertEquals(3, withIndexed.filter(images).size());
+        assertEquals(5, registry.size());
+    }
+
+    @Test
+    void testBatchTagger() throws IOException {
+        createFiles("a @sunset.jpg", "b.jpg", "trip/c @sun.png");
+        LogManager logManager = openLog();
+        BatchTagger batchTagger = new BatchTagger(logManager, 4);
+        ArrayList<String> paths = new ArrayList<>(Arrays.asList(path("a @sunset.jpg"), path("b.jpg"), path("trip/c @sun.png")));
+
+        Map<String, String> renamed = batchTagger.tag(paths, "sun", false, done -> {}).join();
+        assertEquals(1, renamed.size());
+        assertTrue(Files.exists(root.resolve("a @sunset.jpg")));
+        assertTrue(Files.exists(root.resolve("trip/c.png")));
+
+        paths.set(2, path("trip/c.png"));
+        renamed = batchTagger.tag(paths, "lovely", true, done -> {}).join();
+        assertEquals(3, renamed.size());
+        assertTrue(Files.exists(root.resolve("b @lovely.jpg")));
+        assertEquals("[c @lovely, c, c @sun]", HistoryJournal.open(root.resolve("trip").toFile()).getHistory("c @lovely").toString());
+        assertEquals(4, logManager.getInfo().size());
+    }
+
+    @Test
+    void testBatchTaggerCommitsAfterErrors() throws IOException {
+        createFiles("a.jpg", "b.jpg");
+        BatchTagger batchTagger = new BatchTagger(openLog(), 2);
+        UnaryOperator<String> rewrite = p -> {
+            if (p.endsWith("b.jpg")) {
+                throw new IllegalArgumentException(p);
+            }
+            return FileManager.addTagToPath(p, "sea");
+        };
+
+        BatchTagger.Result result = batchTagger.rename(Arrays.asList(path("a.jpg"), path("b.jpg")), rewrite, (o, n) -> {}, true,
+                done -> { throw new IllegalStateException("progress"); }).join();
+        assertEquals(Arrays.asList(path("b.jpg")), result.getFailed());
+        assertEquals(path("a @sea.jpg"), result.getRenamed().get(path("a.jpg")));
+        assertEquals("[a @sea, a]", HistoryJournal.open(root.toFile()).getHistory("a @sea").toString());
+    }
+
+    @Test
+    void testBatchTaggerWaitsForImageLock() throws IOException {
+        createFiles("a.jpg");
+        BatchTagger batchTagger = new BatchTagger(openLog(), 2);
+        Lock lock = FileManager.getImageLock(path("a.jpg"));
+        lock.lock();
+        CompletableFuture<BatchTagger.Result> batch;
+        try {
+            batch = batchTagger.rename(Arrays.asList(path("a.jpg")), p -> FileManager.addTagToPath(p, "sea"), (o, n) -> {}, true, done -> {});
+            // a single change renames the image while the batch waits for it.
+            Files.move(root.resolve("a.jpg"), root.resolve("a @sun.jpg"));
+        } finally {
+            lock.unlock();
+        }
+        assertEquals(Arrays.asList(path("a.jpg")), batch.join().getFailed());
+        assertTrue(Files.exists(root.resolve("a @sun.jpg")));
+    }
+
+    @Test
+    void testTagRefactoring() throws IOException {
+        createFiles("a @sunset @sea.jpg", "b @sunset @sunsets.jpg", "c @sunsets.jpg");
+        TagManager tagManager = new TagManager(path("tags.txt"));
+        tagManager.addInfo("sunset");
+        tagManager.addInfo("sunsets");
+        TagIndex tagIndex = new TagIndex(path("tag_index.txt"));
+        tagIndex.load(root.toFile());
+        FileManager.setTagIndex(tagIndex);
+        LogManager logManager = openLog();
+        BatchTagger batchTagger = new BatchTagger(logManager, 2);
+
+        assertEquals(2, tagManager.renameTag("sunset", "sunsets", tagIndex, batchTagger, done -> {}).join().getRenamed().size());
+        assertTrue(Files.exists(root.resolve("a @sunsets @sea.jpg")));
+        assertTrue(Files.exists(root.resolve("b @sunsets.jpg")));
+        assertEquals("[sunsets]", tagManager.getInfo().toString());
+        assertEquals("[a @sunsets @sea, a @sunset @sea]", new FileManager(path("a @sunsets @sea.jpg")).getImageHistory().toString());
+        assertTrue(logManager.getInfo().get(0).startsWith("@sunset--->@sunsets on 2 images"));
+        assertFalse(tagManager.isRenameTagPending());
+
+        // interrupted after renaming one image, before its history was written.
+        Files.move(root.resolve("a @sunsets @sea.jpg"), root.resolve("a @sea.jpg"));
+        try (DataOutputStream journal = new DataOutputStream(new FileOutputStream(path("tag_rename.journal")))) {
+            journal.writeUTF(root.toString());
+            journal.writeUTF("sunsets");
+            journal.writeBoolean(false);
+            journal.writeUTF("");
+            journal.writeUTF(path("a @sunsets @sea.jpg"));
+            journal.writeUTF(path("a @sea.jpg"));
+            journal.writeUTF(path("b @sunsets.jpg"));
+        }
+        TagManager reopened = new TagManager(path("tags.txt"));
+        assertTrue(reopened.isRenameTagPending());
+        assertEquals(3, reopened.resumeRenameTag(tagIndex, batchTagger, done -> {}).join().getRenamed().size());
+        assertTrue(Files.exists(root.resolve("b.jpg")));
+        assertTrue(Files.exists(root.resolve("c.jpg")));
+        assertEquals("[a @sea, a @sunsets @sea, a @sunset @sea]", new FileManager(path("a @sea.jpg")).getImageHistory().toString());
+        assertFalse(reopened.isRenameTagPending());
+    }
+
+    @Test
+    void testTagRefactoringKeepsFailures() throws IOException {
+        createFiles("a @sunset.jpg", "b @sunset.jpg", "b @sunsets.jpg");
+        TagManager tagManager = new TagManager(path("tags.txt"));
+        tagManager.addInfo("sunset");
+        TagIndex tagIndex = new TagIndex(path("tag_index.txt"));
+        tagIndex.load(root.toFile());
+        FileManager.setTagIndex(tagIndex);
+        BatchTagger batchTagger = new BatchTagger(openLog(), 2);
+
+        // b can't be renamed over the image that has the new name already.
+        BatchTagger.Result result = tagManager.renameTag("sunset", "sunsets", tagIndex, batchTagger, done -> {}).join();
+        assertEquals("[" + path("a @sunset.jpg") + "]", result.getRenamed().keySet().toString());
+        assertEquals("[" + path("b @sunset.jpg") + "]", result.getFailed().toString());
+        assertTrue(tagManager.contains("sunset"));
+        assertTrue(tagManager.isRenameTagPending());
+
+        Files.delete(root.resolve("b @sunsets.jpg"));
+        result = tagManager.resumeRenameTag(tagIndex, batchTagger, done -> {}).join();
+        assertEquals(1, result.getRenamed().size());
+        assertTrue(result.getFailed().isEmpty());
+        assertFalse(tagManager.contains("sunset"));
+        assertFalse(tagManager.isRenameTagPending());
+    }
+
+    @Test
+    void testTagParser() {
+        String path = "/photos @old/sunset @landscape @lovely.v2.jpg";
+        int[] bounds = new int[4];
+        assertEquals(2, TagParser.parse(path, bounds));
+        assertEquals("landscape", path.substring(bounds[0], bounds[1]));
+        assertEquals(2, TagParser.parse(path, new int[2]));
+        assertEquals("[landscape, lovely.v2]", FileManager.getImageTags(path).toString());
+        assertEquals("[]", FileManager.getImageTags("/photos/a @ @b.jpg").toString());
+        assertTrue(TagParser.hasTag(path, "landscape"));
+        assertFalse(TagParser.hasTag(path, "land"));
+        assertFalse(TagParser.hasTag(path, "old"));
+
+        TagRegistry registry = new TagRegistry();
+        for (int i = 0; i < 40; i++) {
+            registry.add("tag" + i);
+        }
+        registry.add("lovely.v2");
+        registry.remove("tag3");
+        assertEquals(registry.getId("lovely.v2"), registry.getId(path, bounds[2], bounds[3]));
+        assertEquals(-1, registry.getId("xtag3y", 1, 5));
+        assertEquals(7, registry.getId("xtag7y", 1, 5));
+        assertEquals("{40}", FileManager.getImageTagSet(path, registry).toString());
+    }
+
+    @Test
+    void testTagRegistryRemoveKeepsOtherTags() {
+        TagRegistry registry = new TagRegistry();
+        for (int i = 0; i < 300; i++) {
+            registry.add("t" + i);
+        }
+        for (int i = 0; i < 300; i += 3) {
+            assertTrue(registry.remove("t" + i));
+        }
+        assertFalse(registry.remove("t0"));
+        for (int i = 0; i < 300; i++) {
+            assertEquals(i % 3 == 0 ? -1 : i, registry.getId("t" + i));
+        }
+        assertEquals(200, registry.size());
+        assertEquals(300, registry.add("t0"));
+
+        registry.addAll(Arrays.asList("t1", "n0", "n1", "n0"));
+        assertEquals(203, registry.size());
+        assertEquals(302, registry.getId("n1"));
+        assertEquals(1, registry.getId("t1"));
+    }
+
+    @Test
+    void testTagStore() throws IOException {
+        createFiles("a @sea.jpg", "b.jpg");
+        Files.createDirectory(root.resolve("trip"));
+        String a = path("a @sea.jpg");
+        String b = path("b.jpg");
+        TagIndex tagIndex = new TagIndex(path("tag_index.txt"));
+        FileManager.setTagIndex(tagIndex);
+        FileManager.setTagStore(new TagStore(root.toFile()));
+        tagIndex.load(root.toFile());
+        LogManager logManager = openLog();
+        new FileManager(a).addTagToImage("sunset", logManager);
+        new FileManager(a).deleteTagToImage("sea", logManager);
+        assertTrue(Files.exists(root.resolve("a @sea.jpg")));
+        assertEquals("[sunset]", new FileManager(a).getImageTags().toString());
+        assertTrue(FileManager.hasTag(a, "sunset"));
+        assertFalse(FileManager.hasTag(a, "sea"));
+        assertEquals("[" + a + "]", tagIndex.getImages(new ArrayList<>(Arrays.asList("sunset"))).toString());
+        assertEquals("[a @sunset, a @sea @sunset, a @sea]", new FileManager(a).getImageHistory().toString());
+
+        BatchTagger batchTagger = new BatchTagger(logManager, 2);
+        Map<String, String> changed = batchTagger.tag(Arrays.asList(a, b), "sunset", true, done -> {}).join();
+        assertEquals(b, changed.get(b));
+        assertTrue(Files.exists(root.resolve("b.jpg")));
+
+        // a move outside the app keeps the tags, the image is found by its file key.
+        FileManager.setTagStore(null);
+        Files.move(root.resolve("b.jpg"), root.resolve("trip/b2.jpg"));
+        TagStore reopened = new TagStore(root.toFile());
+        FileManager.setTagStore(reopened);
+        assertEquals("[sunset]", reopened.getTags(path("trip/b2.jpg")).toString());
+        assertFalse(reopened.matchesNames());
+
+        assertEquals(2, batchTagger.exportTags(done -> {}).join().size());
+        assertTrue(Files.exists(root.resolve("a @sunset.jpg")));
+        assertTrue(Files.exists(root.resolve("trip/b2 @sunset.jpg")));
+        assertTrue(reopened.matchesNames());
+        assertEquals("[a @sunset, a @sea @sunset, a @sea]", new FileManager(path("a @sunset.jpg")).getImageHistory().toString());
+    }
+
+    @Test
+    void testOperationJournal() throws IOException {
+        createFiles("a @sun.jpg", "b.jpg");
+        String a = path("a.jpg");
+        String aTagged = path("a @sun.jpg");
+        String b = path("b.jpg");
+        String bTagged = path("b @sun.jpg");
+        // a was renamed before the app stopped, b was not.
+        try (DataOutputStream output = new DataOutputStream(new FileOutputStream(path("operations.journal")))) {
+            for (OperationJournal.Intent intent : Arrays.asList(
+                    new OperationJournal.Intent(a, aTagged, a, aTagged, "a--->a @sun Changed at: 2018-03-02 10:00:00", ""),
+                    new OperationJournal.Intent(b, bTagged, b, bTagged, "b--->b @sun Changed at: 2018-03-02 10:00:00", ""))) {
+                byte[] record = intent.encode();
+                output.writeInt(record.length);
+                output.write(record);
+            }
+            output.writeInt(100);
+        }
+        LogManager logManager = openLog();
+        OperationJournal journal = new OperationJournal(path("operations.journal"), logManager);
+        assertEquals("[a @sun, a]", HistoryJournal.open(root.toFile()).getHistory("a @sun").toString());
+        assertTrue(HistoryJournal.open(root.toFile()).getHistory("b @sun").isEmpty());
+        assertEquals("[a--->a @sun Changed at: 2018-03-02 10:00:00]", logManager.getInfo().toString());
+        assertEquals(0, Files.size(root.resolve("operations.journal")));
+
+        TagIndex tagIndex = new TagIndex(path("tag_index.txt"));
+        tagIndex.load(root.toFile());
+        FileManager.setTagIndex(tagIndex);
+        FileManager.setOperationJournal(journal);
+        BatchTagger batchTagger = new BatchTagger(logManager, 4);
+        assertEquals(2, batchTagger.tag(Arrays.asList(aTagged, b), "sea", true, done -> {}).join().size());
+        assertTrue(Files.size(root.resolve("operations.journal")) > 0);
+        new FileManager(bTagged.replace("b @sun", "b @sea")).changeImageName("c", logManager);
+        assertEquals("[c, b @sea, b]", HistoryJournal.open(root.toFile()).getHistory("c").toString());
+        assertEquals(4, logManager.getInfo().size());
+        journal.close();
+        assertEquals(0, Files.size(root.resolve("operations.journal")));
+    }
 }
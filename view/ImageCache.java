@@ -0,0 +1,183 @@
+package view;
+
+import javafx.scene.image.Image;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Keeps recently viewed decoded images in memory. Images are counted by their decoded size (width
+ * x height x 4 bytes), and the least recently used ones are evicted once the byte budget is
+ * exceeded. Evicted images are still held by soft references, so they can be reused until the heap
+ * runs low.
+ */
+public class ImageCache {
+  private long budget;
+  private long used = 0;
+  private long hits = 0;
+  private long misses = 0;
+  private LinkedHashMap<String, Image> images = new LinkedHashMap<>(16, 0.75f, true);
+  private HashMap<String, KeyedReference> evicted = new HashMap<>();
+  private ReferenceQueue<Image> cleared = new ReferenceQueue<>();
+
+  /**
+   * Instantiates a new Image cache.
+   *
+   * @param budget the number of bytes decoded images may take
+   */
+  public ImageCache(long budget) {
+    this.budget = budget;
+  }
+
+  /**
+   * Get a cached image.
+   *
+   * @param key the key of image, e.g. its path
+   * @return the image, null if it is not cached
+   */
+  public synchronized Image get(String key) {
+    purgeCleared();
+    Image image = images.get(key);
+    if (image == null) {
+      KeyedReference reference = evicted.remove(key);
+      image = reference == null ? null : reference.get();
+      if (image != null) {
+        // still reachable after eviction, count it in the budget again.
+        add(key, image);
+      }
+    }
+    if (image == null) {
+      misses++;
+    } else {
+      hits++;
+    }
+    return image;
+  }
+
+  /**
+   * Check if an image is cached, without counting a hit or miss.
+   *
+   * @param key the key of image, e.g. its path
+   * @return true if the image is cached, else false
+   */
+  public synchronized boolean contains(String key) {
+    if (images.containsKey(key)) {
+      return true;
+    }
+    KeyedReference reference = evicted.get(key);
+    return reference != null && reference.get() != null;
+  }
+
+  /**
+   * Cache a decoded image. Images that failed to load or are bigger than the whole budget are not
+   * cached.
+   *
+   * @param key the key of image, e.g. its path
+   * @param image the decoded image
+   */
+  public synchronized void put(String key, Image image) {
+    if (image.isError() || sizeOf(image) > budget) {
+      return;
+    }
+    purgeCleared();
+    evicted.remove(key);
+    Image old = images.remove(key);
+    if (old != null) {
+      used -= sizeOf(old);
+    }
+    add(key, image);
+  }
+
+  /**
+   * Change the number of bytes decoded images may take, evicting images if needed.
+   *
+   * @param budget the number of bytes
+   */
+  public synchronized void setBudget(long budget) {
+    this.budget = budget;
+    evict();
+  }
+
+  /**
+   * Gets the number of lookups that found an image.
+   *
+   * @return the hits
+   */
+  public synchronized long getHits() {
+    return hits;
+  }
+
+  /**
+   * Gets the number of lookups that found no image.
+   *
+   * @return the misses
+   */
+  public synchronized long getMisses() {
+    return misses;
+  }
+
+  /**
+   * Gets the number of bytes the cached images take.
+   *
+   * @return the bytes used
+   */
+  public synchronized long getUsed() {
+    return used;
+  }
+
+  /**
+   * Count an image in and evict least recently used images over the budget.
+   *
+   * @param key the key of image
+   * @param image the decoded image
+   */
+  private void add(String key, Image image) {
+    images.put(key, image);
+    used += sizeOf(image);
+    evict();
+  }
+
+  /** Evict least recently used images until the budget is met, keeping soft references. */
+  private void evict() {
+    Iterator<Map.Entry<String, Image>> entries = images.entrySet().iterator();
+    while (used > budget && entries.hasNext()) {
+      Map.Entry<String, Image> entry = entries.next();
+      used -= sizeOf(entry.getValue());
+      evicted.put(entry.getKey(), new KeyedReference(entry.getKey(), entry.getValue(), cleared));
+      entries.remove();
+    }
+  }
+
+  /** Forget evicted images the garbage collector has cleared. */
+  private void purgeCleared() {
+    KeyedReference reference = (KeyedReference) cleared.poll();
+    while (reference != null) {
+      evicted.remove(reference.key, reference);
+      reference = (KeyedReference) cleared.poll();
+    }
+  }
+
+  /**
+   * Estimate the memory taken by a decoded image.
+   *
+   * @param image the decoded image
+   * @return width x height x 4 bytes
+   */
+  private static long sizeOf(Image image) {
+    return (long) image.getWidth() * (long) image.getHeight() * 4;
+  }
+
+  /** Soft reference that remembers the key of its image. */
+  private static class KeyedReference extends SoftReference<Image> {
+    private final String key;
+
+    KeyedReference(String key, Image image, ReferenceQueue<Image> queue) {
+      super(image, queue);
+      this.key = key;
+    }
+  }
+}
@@ -0,0 +1,162 @@
+package view;
+
+import javafx.scene.image.Image;
+import javafx.scene.image.PixelFormat;
+import javafx.scene.image.PixelWriter;
+import javafx.scene.image.WritableImage;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.event.IIOReadProgressListener;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.nio.IntBuffer;
+import java.util.Iterator;
+import java.util.function.DoubleConsumer;
+
+/**
+ * Decodes images at the size they are shown in. The size of an image is read from its header
+ * first, and big images are decoded with source subsampling, so only every n-th pixel of every n-th
+ * row is ever held in memory. Images that need no subsampling, or that ImageIO can't read, are
+ * decoded and scaled by JavaFX. Zoomed in views decode tiles instead, see {@link TileSource}.
+ */
+final class ImageDecoder {
+  private ImageDecoder() {}
+
+  /**
+   * Decode an image at least as wide as a width, or at its own width if it is narrower. Blocks
+   * until the image is decoded, and stops early if the thread is interrupted.
+   *
+   * @param path the path of image
+   * @param width the width the image is shown in
+   * @param progress called with the share of the image decoded so far, from 0 to 1
+   * @return the decoded image, null if the thread was interrupted
+   */
+  static Image decode(String path, int width, DoubleConsumer progress) {
+    try (ImageInputStream input = ImageIO.createImageInputStream(new File(path))) {
+      ImageReader reader = reader(input);
+      if (reader == null) {
+        return decodeScaled(path, width);
+      }
+      try {
+        reader.setInput(input, true, true);
+        int step = Math.max(1, reader.getWidth(0) / Math.max(1, width));
+        if (step == 1) {
+          return decodeScaled(path, width);
+        }
+        ImageReadParam param = reader.getDefaultReadParam();
+        param.setSourceSubsampling(step, step, 0, 0);
+        reader.addIIOReadProgressListener(new Progress(progress));
+        BufferedImage decoded = reader.read(0, param);
+        return Thread.currentThread().isInterrupted() ? null : toImage(decoded);
+      } finally {
+        reader.dispose();
+      }
+    } catch (IOException | RuntimeException e) {
+      return decodeScaled(path, width);
+    }
+  }
+
+  /**
+   * Decode an image with JavaFX, scaled down to a width while it is decoded.
+   *
+   * @param path the path of image
+   * @param width the width the image is shown in
+   * @return the decoded image
+   */
+  private static Image decodeScaled(String path, int width) {
+    return new Image("file:" + path, width, 0, true, true);
+  }
+
+  /**
+   * Find an ImageIO reader for an image.
+   *
+   * @param input the image
+   * @return the reader, null if there is none
+   */
+  static ImageReader reader(ImageInputStream input) {
+    if (input == null) {
+      return null;
+    }
+    Iterator<ImageReader> readers = ImageIO.getImageReaders(input);
+    return readers.hasNext() ? readers.next() : null;
+  }
+
+  /**
+   * Copy a decoded image into a JavaFX image one row at a time.
+   *
+   * @param decoded the decoded image
+   * @return the JavaFX image
+   */
+  static Image toImage(BufferedImage decoded) {
+    int width = decoded.getWidth();
+    WritableImage image = new WritableImage(width, decoded.getHeight());
+    PixelWriter writer = image.getPixelWriter();
+    PixelFormat<IntBuffer> format = PixelFormat.getIntArgbInstance();
+    int[] row = new int[width];
+    for (int y = 0; y < decoded.getHeight(); y++) {
+      decoded.getRGB(0, y, width, 1, row, 0, width);
+      writer.setPixels(0, y, width, 1, format, row, 0, width);
+    }
+    return image;
+  }
+
+  /** Reports the progress of a decode, and aborts it when the thread is interrupted. */
+  static class Progress implements IIOReadProgressListener {
+    private final DoubleConsumer progress;
+    private int reported = -1;
+
+    /**
+     * Instantiates a new Progress.
+     *
+     * @param progress called with the share of the image decoded so far
+     */
+    Progress(DoubleConsumer progress) {
+      this.progress = progress;
+    }
+
+    @Override
+    public void imageProgress(ImageReader source, float percentageDone) {
+      if (Thread.currentThread().isInterrupted()) {
+        source.abort();
+        return;
+      }
+      // whole percents only, so the UI is not flooded with updates.
+      if ((int) percentageDone != reported) {
+        reported = (int) percentageDone;
+        progress.accept(percentageDone / 100);
+      }
+    }
+
+    @Override
+    public void imageStarted(ImageReader source, int imageIndex) {
+      progress.accept(0);
+    }
+
+    @Override
+    public void imageComplete(ImageReader source) {
+      progress.accept(1);
+    }
+
+    @Override
+    public void sequenceStarted(ImageReader source, int minIndex) {}
+
+    @Override
+    public void sequenceComplete(ImageReader source) {}
+
+    @Override
+    public void readAborted(ImageReader source) {}
+
+    @Override
+    public void thumbnailStarted(ImageReader source, int imageIndex, int thumbnailIndex) {}
+
+    @Override
+    public void thumbnailProgress(ImageReader source, float percentageDone) {}
+
+    @Override
+    public void thumbnailComplete(ImageReader source) {}
+  }
+}
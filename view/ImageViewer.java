@@ -0,0 +1,364 @@
+package view;
+
+import javafx.application.Platform;
+import javafx.beans.binding.Bindings;
+import javafx.geometry.Bounds;
+import javafx.scene.control.ProgressIndicator;
+import javafx.scene.control.ScrollPane;
+import javafx.scene.image.Image;
+import javafx.scene.image.ImageView;
+import javafx.scene.input.ScrollEvent;
+import javafx.scene.layout.Pane;
+import javafx.scene.layout.StackPane;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+/**
+ * Shows one image, decoded in the background at the width it is shown in while a progress
+ * placeholder is shown. Ctrl+scroll zooms in and out, dragging pans, and a double click fits the
+ * image again.
+ *
+ * <p>Zoomed in past the pixels of that preview, the image is shown in tiles from the level of
+ * detail that has at least as many pixels as the zoom needs (see {@link TileSource}). Only the
+ * tiles in view are decoded, then one ring of tiles around them so panning finds them ready. Tiles
+ * are kept in a tile cache with a byte budget across levels and images, and the preview stays
+ * underneath until they arrive, so memory stays bounded however big the image is.
+ */
+public class ImageViewer extends StackPane {
+  private static final double ZOOM_STEP = 1.25;
+  // zoomed in as far as one image pixel taking this many screen pixels.
+  private static final double PIXEL_ZOOM = 4;
+  // zoom limit for images that can't be tiled, whose preview is only scaled.
+  private static final double MAX_PREVIEW_ZOOM = 4;
+  private static final int PREFETCH_RING = 1;
+  private static final ExecutorService decoder =
+      Executors.newFixedThreadPool(
+          2,
+          runnable -> {
+            Thread thread = new Thread(runnable, "image-decode");
+            thread.setDaemon(true);
+            return thread;
+          });
+  private static final ImageCache tiles =
+      new ImageCache(Math.min(Runtime.getRuntime().maxMemory() / 16, 256L << 20));
+  // the viewer on screen, whose decodes are the only ones worth finishing.
+  private static ImageViewer current;
+
+  private final String path;
+  private final int displayWidth;
+  private final ImageView view = new ImageView();
+  private final Pane canvas = new Pane(view);
+  private final ScrollPane scroller = new ScrollPane();
+  private final ProgressIndicator progress = new ProgressIndicator();
+  private Future<?> pending;
+  // opened on the decoding thread together with the preview, null if it can't be tiled.
+  private volatile TileSource source;
+  private volatile boolean closed = false;
+  private double zoom = 1;
+  private HashMap<String, ImageView> placed = new HashMap<>();
+  private HashMap<String, Future<?>> loading = new HashMap<>();
+
+  /**
+   * Instantiates a new Image viewer and starts decoding its image, unless it is cached.
+   *
+   * @param path the path of image, empty to show nothing
+   * @param displayWidth the width the image is shown in when it fits
+   * @param cache the cache of images decoded at the display width
+   */
+  public ImageViewer(String path, int displayWidth, ImageCache cache) {
+    this.path = path;
+    this.displayWidth = displayWidth;
+    view.setFitWidth(displayWidth);
+    view.setPreserveRatio(true);
+    view.setSmooth(true);
+
+    /* Center the image while it is smaller than the viewport. */
+    StackPane content = new StackPane(canvas);
+    canvas.setMaxSize(Pane.USE_PREF_SIZE, Pane.USE_PREF_SIZE);
+    content
+        .minWidthProperty()
+        .bind(
+            Bindings.createDoubleBinding(
+                () -> scroller.getViewportBounds().getWidth(), scroller.viewportBoundsProperty()));
+    content
+        .minHeightProperty()
+        .bind(
+            Bindings.createDoubleBinding(
+                () -> scroller.getViewportBounds().getHeight(), scroller.viewportBoundsProperty()));
+    scroller.setContent(content);
+    scroller.setPannable(true);
+    scroller.addEventFilter(ScrollEvent.SCROLL, this::onScroll);
+    scroller.setOnMouseClicked(
+        event -> {
+          if (event.getClickCount() == 2) {
+            setZoom(1);
+          }
+        });
+    scroller.hvalueProperty().addListener(observable -> updateTiles());
+    scroller.vvalueProperty().addListener(observable -> updateTiles());
+    scroller.viewportBoundsProperty().addListener(observable -> updateTiles());
+
+    progress.setMaxSize(60, 60);
+    progress.setVisible(false);
+    getChildren().addAll(scroller, progress);
+
+    if (current != null) {
+      current.close();
+    }
+    current = this;
+    if (path.isEmpty()) {
+      return;
+    }
+    Image cached = cache.get(path);
+    view.setImage(cached);
+    progress.setVisible(cached == null);
+    pending =
+        decoder.submit(
+            () -> {
+              TileSource opened = TileSource.open(path);
+              source = opened;
+              if (closed && opened != null) {
+                opened.close();
+              }
+              Image image = null;
+              if (cached == null) {
+                image = ImageDecoder.decode(path, displayWidth, this::showProgress);
+                if (image != null) {
+                  cache.put(path, image);
+                }
+              }
+              Image preview = image;
+              Platform.runLater(() -> showPreview(preview));
+            });
+  }
+
+  /**
+   * Zoom in or out with Ctrl+scroll, keeping plain scrolling for the scroll bars.
+   *
+   * @param event the scroll event
+   */
+  private void onScroll(ScrollEvent event) {
+    if (!event.isControlDown() || event.getDeltaY() == 0) {
+      return;
+    }
+    setZoom(event.getDeltaY() > 0 ? zoom * ZOOM_STEP : zoom / ZOOM_STEP);
+    event.consume();
+  }
+
+  /**
+   * Show the image at a zoom, in tiles if the preview has fewer pixels than the zoom needs.
+   *
+   * @param newZoom the zoom, 1 to fit the display width
+   */
+  private void setZoom(double newZoom) {
+    TileSource tileSource = source;
+    double maxZoom =
+        tileSource == null
+            ? MAX_PREVIEW_ZOOM
+            : Math.max(1, PIXEL_ZOOM * tileSource.getWidth() / displayWidth);
+    zoom = Math.max(1, Math.min(maxZoom, newZoom));
+    view.setFitWidth(displayWidth * zoom);
+    updateTiles();
+  }
+
+  /**
+   * Place the tiles in view and around it, start decoding the missing ones, and drop the rest.
+   * Called whenever the zoom, the scroll position or the viewport changes, and when a tile is
+   * decoded.
+   */
+  private void updateTiles() {
+    // column and row of tiles by key, in view first and then the prefetched ring.
+    LinkedHashMap<String, int[]> wanted = new LinkedHashMap<>();
+    TileSource tileSource = source;
+    Image preview = view.getImage();
+    double shownWidth = displayWidth * zoom;
+    int level = 0;
+    double tileSize = 0;
+    if (tileSource != null && preview != null && shownWidth > preview.getWidth()) {
+      level = level(tileSource.getWidth() / shownWidth);
+      int sourceTile = TileSource.TILE << level;
+      tileSize = sourceTile * shownWidth / tileSource.getWidth();
+      int columns = (tileSource.getWidth() + sourceTile - 1) / sourceTile;
+      int rows = (tileSource.getHeight() + sourceTile - 1) / sourceTile;
+      Bounds visible = canvas.sceneToLocal(scroller.localToScene(scroller.getLayoutBounds()));
+      int firstColumn = (int) Math.floor(visible.getMinX() / tileSize);
+      int lastColumn = (int) Math.floor(visible.getMaxX() / tileSize);
+      int firstRow = (int) Math.floor(visible.getMinY() / tileSize);
+      int lastRow = (int) Math.floor(visible.getMaxY() / tileSize);
+      for (int ring = 0; ring <= PREFETCH_RING; ring++) {
+        for (int row = firstRow - ring; row <= lastRow + ring; row++) {
+          for (int column = firstColumn - ring; column <= lastColumn + ring; column++) {
+            boolean onRing =
+                ring == 0
+                    || row == firstRow - ring
+                    || row == lastRow + ring
+                    || column == firstColumn - ring
+                    || column == lastColumn + ring;
+            if (onRing && row >= 0 && row < rows && column >= 0 && column < columns) {
+              wanted.put(key(level, column, row), new int[] {column, row});
+            }
+          }
+        }
+      }
+    }
+
+    Iterator<Map.Entry<String, ImageView>> shown = placed.entrySet().iterator();
+    while (shown.hasNext()) {
+      Map.Entry<String, ImageView> entry = shown.next();
+      int[] tile = wanted.get(entry.getKey());
+      if (tile == null) {
+        canvas.getChildren().remove(entry.getValue());
+        shown.remove();
+      } else {
+        layout(entry.getValue(), tile, tileSize);
+      }
+    }
+    Iterator<Map.Entry<String, Future<?>>> decoding = loading.entrySet().iterator();
+    while (decoding.hasNext()) {
+      Map.Entry<String, Future<?>> entry = decoding.next();
+      if (!wanted.containsKey(entry.getKey())) {
+        entry.getValue().cancel(true);
+        decoding.remove();
+      }
+    }
+    for (Map.Entry<String, int[]> entry : wanted.entrySet()) {
+      String key = entry.getKey();
+      if (placed.containsKey(key) || loading.containsKey(key)) {
+        continue;
+      }
+      Image tile = tiles.get(key);
+      if (tile != null) {
+        ImageView tileView = new ImageView(tile);
+        layout(tileView, entry.getValue(), tileSize);
+        canvas.getChildren().add(tileView);
+        placed.put(key, tileView);
+      } else {
+        loading.put(key, decodeTile(tileSource, key, level, entry.getValue()));
+      }
+    }
+  }
+
+  /**
+   * Get the level of detail to show tiles from: the smallest one that still has at least as many
+   * pixels as are shown.
+   *
+   * @param reduction the width of image divided by the width it is shown in
+   * @return the level, 0 for full resolution
+   */
+  private static int level(double reduction) {
+    int level = 0;
+    while (2 << level <= reduction) {
+      level++;
+    }
+    return level;
+  }
+
+  /**
+   * Decode a tile in the background, put it into the tile cache and place it if still wanted.
+   *
+   * @param tileSource the image
+   * @param key the key of tile
+   * @param level the level of detail
+   * @param tile the column and row of tile
+   * @return the future of decode
+   */
+  private Future<?> decodeTile(TileSource tileSource, String key, int level, int[] tile) {
+    return decoder.submit(
+        () -> {
+          Image decoded = tileSource.decode(level, tile[0], tile[1]);
+          if (decoded != null) {
+            tiles.put(key, decoded);
+          }
+          Platform.runLater(
+              () -> {
+                loading.remove(key);
+                if (decoded != null && this == current) {
+                  updateTiles();
+                }
+              });
+        });
+  }
+
+  /**
+   * Position and size a placed tile for the current zoom.
+   *
+   * @param tileView the placed tile
+   * @param tile the column and row of tile
+   * @param tileSize the width of a whole tile on screen
+   */
+  private static void layout(ImageView tileView, int[] tile, double tileSize) {
+    double scale = tileSize / TileSource.TILE;
+    tileView.setLayoutX(tile[0] * tileSize);
+    tileView.setLayoutY(tile[1] * tileSize);
+    tileView.setFitWidth(tileView.getImage().getWidth() * scale);
+    tileView.setFitHeight(tileView.getImage().getHeight() * scale);
+  }
+
+  /**
+   * Get the key of a tile in the tile cache.
+   *
+   * @param level the level of detail
+   * @param column the column of tile
+   * @param row the row of tile
+   * @return the key
+   */
+  private String key(int level, int column, int row) {
+    return path + "#" + level + "/" + column + "/" + row;
+  }
+
+  /**
+   * Show the decoded preview and hide the placeholder.
+   *
+   * @param image the preview, null to keep the shown one
+   */
+  private void showPreview(Image image) {
+    pending = null;
+    progress.setVisible(false);
+    if (this != current) {
+      return;
+    }
+    if (image != null) {
+      view.setImage(image);
+    }
+    setZoom(zoom);
+  }
+
+  /**
+   * Show the share of the preview decoded so far. Called from the decoding thread.
+   *
+   * @param done the share decoded, from 0 to 1
+   */
+  private void showProgress(double done) {
+    Platform.runLater(
+        () -> {
+          progress.setVisible(true);
+          progress.setProgress(done);
+        });
+  }
+
+  /** Stop decoding for this viewer and close its image, e.g. when another image is opened. */
+  private void close() {
+    closed = true;
+    if (pending != null) {
+      pending.cancel(true);
+    }
+    for (Future<?> future : loading.values()) {
+      future.cancel(true);
+    }
+    loading.clear();
+    // closed off the JavaFX thread, after a tile decode that is still running.
+    decoder.execute(
+        () -> {
+          TileSource tileSource = source;
+          if (tileSource != null) {
+            tileSource.close();
+          }
+        });
+  }
+}
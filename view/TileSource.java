@@ -0,0 +1,133 @@
+package view;
+
+import javafx.scene.image.Image;
+
+import javax.imageio.ImageIO;
+import javax.imageio.ImageReadParam;
+import javax.imageio.ImageReader;
+import javax.imageio.stream.ImageInputStream;
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+
+/**
+ * One image cut into square tiles at levels of detail, decoded one tile at a time with ImageIO
+ * source regions. Level 0 has the full resolution, and every next level has half the width and
+ * height of the one before, by source subsampling. Decoding a tile only holds the pixels of that
+ * tile, however big the image is. The image stays open until the source is closed.
+ */
+final class TileSource {
+  /** Width and height of a tile, in pixels of its level. */
+  static final int TILE = 256;
+
+  private final ImageInputStream input;
+  private final ImageReader reader;
+  private final int width;
+  private final int height;
+  private boolean closed = false;
+
+  /**
+   * Instantiates a new Tile source.
+   *
+   * @param input the image
+   * @param reader the reader of image, with the image as input
+   * @throws IOException if the header can't be read
+   */
+  private TileSource(ImageInputStream input, ImageReader reader) throws IOException {
+    this.input = input;
+    this.reader = reader;
+    width = reader.getWidth(0);
+    height = reader.getHeight(0);
+    reader.addIIOReadProgressListener(new ImageDecoder.Progress(done -> {}));
+  }
+
+  /**
+   * Open an image for decoding its tiles, reading its size from the header.
+   *
+   * @param path the path of image
+   * @return the tile source, null if ImageIO can't read the image
+   */
+  static TileSource open(String path) {
+    ImageInputStream input = null;
+    try {
+      input = ImageIO.createImageInputStream(new File(path));
+      ImageReader reader = ImageDecoder.reader(input);
+      if (reader != null) {
+        // not forward only, tiles are read in any order.
+        reader.setInput(input, false, true);
+        return new TileSource(input, reader);
+      }
+    } catch (IOException | RuntimeException e) {
+      System.out.println("Image can't be read in tiles, zooming only scales the preview.");
+    }
+    if (input != null) {
+      try {
+        input.close();
+      } catch (IOException e) {
+        // nothing was read from it.
+      }
+    }
+    return null;
+  }
+
+  /**
+   * Gets the width of the image at full resolution.
+   *
+   * @return the width in pixels
+   */
+  int getWidth() {
+    return width;
+  }
+
+  /**
+   * Gets the height of the image at full resolution.
+   *
+   * @return the height in pixels
+   */
+  int getHeight() {
+    return height;
+  }
+
+  /**
+   * Decode one tile. Stops early if the thread is interrupted.
+   *
+   * @param level the level of detail, 0 for full resolution
+   * @param column the column of tile in its level
+   * @param row the row of tile in its level
+   * @return the tile, smaller at the right and bottom edge, null if it is outside the image, the
+   *     image can't be read or the thread was interrupted
+   */
+  synchronized Image decode(int level, int column, int row) {
+    int step = 1 << level;
+    int x = column * TILE * step;
+    int y = row * TILE * step;
+    if (closed || x >= width || y >= height) {
+      return null;
+    }
+    ImageReadParam param = reader.getDefaultReadParam();
+    param.setSourceRegion(
+        new Rectangle(x, y, Math.min(TILE * step, width - x), Math.min(TILE * step, height - y)));
+    param.setSourceSubsampling(step, step, 0, 0);
+    try {
+      BufferedImage decoded = reader.read(0, param);
+      return Thread.currentThread().isInterrupted() ? null : ImageDecoder.toImage(decoded);
+    } catch (IOException | RuntimeException e) {
+      return null;
+    }
+  }
+
+  /** Close the image. Tiles that are decoded afterwards are null. */
+  synchronized void close() {
+    if (closed) {
+      return;
+    }
+    closed = true;
+    reader.dispose();
+    try {
+      input.close();
+    } catch (IOException e) {
+      System.out.println("Image is not successfully closed.");
+    }
+  }
+}
@@ -2,12 +2,13 @@ package view;
 
 import controller.ButtonActions;
 import controller.TreeManager;
+import controller.TreeSnapshot;
 import javafx.application.Application;
+import javafx.application.Platform;
 import javafx.geometry.Insets;
 import javafx.scene.Scene;
 import javafx.scene.control.*;
 import javafx.scene.image.Image;
-import javafx.scene.image.ImageView;
 import javafx.scene.layout.BorderPane;
 import javafx.scene.layout.FlowPane;
 import javafx.scene.layout.HBox;
@@ -15,16 +16,33 @@ import javafx.scene.text.Text;
 import javafx.stage.Stage;
 import model.FileManager;
 import model.LogManager;
+import model.OperationJournal;
+import model.TagIndex;
 import model.TagManager;
+import model.TagRegistry;
+import model.ThumbnailStore;
 
 import java.io.File;
+import java.util.BitSet;
+import java.util.concurrent.ForkJoinPool;
 
 /** The User interface. */
 public class UserInterface extends Application {
+  /** Width that images are shown in. */
+  public static final int DISPLAY_WIDTH = 600;
+
   private static BorderPane bp = new BorderPane();
   private static String home = System.getProperty("user.home");
-  private static TagManager tagManager = new TagManager(home + "/tags.txt");
+  // tags are read in the background while the window is built, the log only when it is viewed.
+  private static TagManager tagManager =
+      new TagManager(home + "/tags.txt", ForkJoinPool.commonPool());
   private static LogManager logManager = new LogManager(home + "/log.txt");
+  private static OperationJournal journal =
+      new OperationJournal(home + "/operations.journal", logManager);
+  private static TagIndex tagIndex = new TagIndex(home + "/tag_index.txt");
+  private static ThumbnailStore thumbnails = new ThumbnailStore(home + "/thumbnails.pack");
+  private static TreeSnapshot snapshot = new TreeSnapshot(home + "/tree_snapshot.bin");
+  private static ImageCache imageCache = new ImageCache(Runtime.getRuntime().maxMemory() / 4);
 
   /**
    * The entry point of application.
@@ -45,36 +63,69 @@ public class UserInterface extends Application {
     Button load = new Button("Load Folder");
     load.setOnAction(e -> ButtonActions.loadAction());
 
+    Button cancel_scan = new Button("Cancel Scan");
+    cancel_scan.setOnAction(e -> TreeManager.cancelScan());
+
     Button open_log = new Button("View Log");
     open_log.setOnMouseClicked(event -> ButtonActions.viewLog());
 
     Button filter_by_tag = new Button("Filter Images By Tag");
     filter_by_tag.setOnMouseClicked(event -> ButtonActions.filterImgByTags());
 
+    Button tag_selected = new Button("Tag Selected Images");
+    tag_selected.setOnMouseClicked(event -> ButtonActions.batchTagAction());
+
+    Button tag_store = new Button("Tag Store");
+    tag_store.setOnMouseClicked(event -> ButtonActions.tagStoreAction());
+
+    Button export_tags = new Button("Export Tags");
+    export_tags.setOnMouseClicked(event -> ButtonActions.exportTagsAction());
+
     HBox top = new HBox();
     top.setSpacing(10);
-    top.getChildren().addAll(load, open_log, filter_by_tag, abs_path);
+    top.getChildren()
+        .addAll(
+            load,
+            cancel_scan,
+            open_log,
+            filter_by_tag,
+            tag_selected,
+            tag_store,
+            export_tags,
+            abs_path);
     return top;
   }
 
   /**
-   * Return a ImageView when a image in the file tree is selected.
+   * Return a viewer when a image in the file tree is selected. The image is decoded in the
+   * background at the width it is shown in, unless it was recently viewed or prefetched and is in
+   * the image cache.
+   *
+   * @param path Path of image.
+   * @return the image viewer
+   */
+  public static ImageViewer imgView(String path) {
+    return new ImageViewer(path, DISPLAY_WIDTH, imageCache);
+  }
+
+  /**
+   * Decode an image at the width it is shown in, with source subsampling for big images. Blocks
+   * until the image is decoded, so it can be called from a background thread.
    *
    * @param path Path of image.
-   * @return the image view
+   * @return the decoded image
    */
-  public static ImageView imgView(String path) {
-    String img_path = "file:" + path;
-    Image image = new Image(img_path);
-
-    ImageView img = new ImageView();
-    img.setImage(image);
-    img.setFitWidth(600);
-    img.setPreserveRatio(true);
-    img.setSmooth(true);
-    img.setCache(true);
-
-    return img;
+  public static Image loadImage(String path) {
+    return ImageDecoder.decode(path, DISPLAY_WIDTH, done -> {});
+  }
+
+  /**
+   * Gets the cache of decoded images.
+   *
+   * @return the image cache
+   */
+  public static ImageCache getImageCache() {
+    return imageCache;
   }
 
   /**
@@ -95,7 +146,11 @@ public class UserInterface extends Application {
     /*Add a tag to existing ones.*/
     Button add_tag = new Button("Add Tag");
     add_tag.setOnMouseClicked(event -> ButtonActions.addTagAction(flow, item));
-    flow.getChildren().add(add_tag);
+
+    /*Rename or merge a tag in all images.*/
+    Button rename_tag = new Button("Rename Tag");
+    rename_tag.setOnMouseClicked(event -> ButtonActions.renameTagAction());
+    flow.getChildren().addAll(add_tag, rename_tag);
 
     /*If an image is selected.*/
     if (item.getValue() != null) {
@@ -120,16 +175,18 @@ public class UserInterface extends Application {
 
     Text title = new Text("Tags: ");
     flow.getChildren().add(title);
+    /* Tags of the image, parsed once as a set of tag ids. */
+    TagRegistry registry = tagManager.getRegistry();
+    BitSet imageTags =
+        image_path.equals("") ? new BitSet() : FileManager.getImageTagSet(image_path, registry);
+
     /* Add all available tags to the flow pane. */
     for (String tag : tagManager.getInfo()) {
       ToggleButton tb = ButtonActions.customTB(tag, item, flow);
 
       /* highlight existing tags of an image */
-      if (!image_path.equals("")) {
-        FileManager fm = new FileManager(image_path);
-        if (fm.getImageTags().contains(tag)) {
-          tb.setSelected(true);
-        }
+      if (imageTags.get(registry.getId(tag))) {
+        tb.setSelected(true);
       }
 
       flow.getChildren().add(tb);
@@ -147,6 +204,13 @@ public class UserInterface extends Application {
     bp.setRight(tagView(item));
   }
 
+  /** Show the tags without an image selected, if no tag view is shown yet. */
+  private static void showEmptyTagView() {
+    if (bp.getRight() == null) {
+      refreshTagView(new TreeItem<>());
+    }
+  }
+
   @Override
   public void start(Stage stage) {
     /*Text field that shows absolute path.*/
@@ -154,8 +218,10 @@ public class UserInterface extends Application {
     abs_path.setPrefWidth(750);
     abs_path.setEditable(false);
 
+    FileManager.setOperationJournal(journal);
+
     /*Manage tree functions*/
-    TreeManager treeManager = new TreeManager(bp, abs_path);
+    TreeManager treeManager = new TreeManager(bp, abs_path, tagIndex, thumbnails, snapshot);
     TreeView<File> tree = TreeManager.getTree();
 
     ButtonActions buttonActions = new ButtonActions(tagManager, treeManager, logManager, stage);
@@ -163,17 +229,34 @@ public class UserInterface extends Application {
     bp.setTop(topBar(abs_path));
     bp.setLeft(tree);
     bp.setCenter(imgView(""));
-    bp.setRight(tagView(new TreeItem<>()));
+    /*The tag view shows once the tags are read, unless an image was opened before.*/
+    tagManager.whenLoaded().thenRun(() -> Platform.runLater(UserInterface::showEmptyTagView));
 
     stage.setScene(new Scene(bp, 1100, 600));
     stage.setTitle("Photo Tag Manager");
     stage.show();
+
+    /*Show the folder of the last session from its snapshot, unless images are renamed below.*/
+    if (!tagManager.isRenameTagPending()) {
+      TreeManager.reopenLastFolder();
+    }
+
+    /*Finish a tag rename that was interrupted last time.*/
+    ButtonActions.resumeTagRename();
   }
 
-  /** Save tags and history to file on app close. */
+  /**
+   * Save tags, history, tag index, thumbnails, the tag store and the tree snapshot to file on app
+   * close, and empty the operation journal.
+   */
   @Override
   public void stop() {
     tagManager.writeInfo();
+    TreeManager.saveSnapshot();
+    journal.close();
     logManager.writeInfo();
+    tagIndex.writeIndex();
+    thumbnails.close();
+    FileManager.setTagStore(null);
   }
 }